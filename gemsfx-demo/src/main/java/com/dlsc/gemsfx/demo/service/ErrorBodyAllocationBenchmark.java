@@ -0,0 +1,92 @@
+package com.dlsc.gemsfx.demo.service;
+
+import com.dlsc.gemsfx.util.ServiceInvocation;
+import javafx.application.Platform;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import retrofit2.Response;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+
+/**
+ * Measures the bytes allocated by the failure path of a service invocation when the backend
+ * answers with a large HTML error page, e.g. the one of a misconfigured gateway. The invocations
+ * run directly on the benchmark thread, so that the allocations of that thread are exactly the
+ * allocations of the failure path (the handlers themselves run on the UI thread and are not
+ * included). The same buffered response gets reused for all invocations, just like Retrofit
+ * buffers the error body before handing it to the invocation.
+ */
+public class ErrorBodyAllocationBenchmark {
+
+    private static final int ERROR_PAGE_SIZE = 2 * 1024 * 1024;
+
+    private static final int WARMUP = 200;
+
+    private static final int ITERATIONS = 1000;
+
+    public static void main(String[] args) throws InterruptedException {
+        CountDownLatch startup = new CountDownLatch(1);
+        Platform.startup(startup::countDown);
+        startup.await();
+
+        Response<String> response = Response.error(502, ResponseBody.create(MediaType.get("text/html; charset=utf-8"), createErrorPage()));
+
+        run("no failure handler", response, invocation -> {
+        });
+        run("onFailure, unlimited", response, invocation -> invocation
+                .withMaxErrorBodySize(Integer.MAX_VALUE)
+                .onFailure((name, message) -> {
+                }));
+        run("onFailure, 64 KB", response, invocation -> invocation
+                .onFailure((name, message) -> {
+                }));
+        run("onFailureDetailedPreview, 4 KB", response, invocation -> invocation
+                .withMaxErrorBodySize(4 * 1024)
+                .onFailureDetailedPreview((name, preview) -> {
+                }));
+
+        Platform.exit();
+    }
+
+    private static void run(String label, Response<String> response, Consumer<ServiceInvocation<String>> configuration) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        for (int i = 0; i < WARMUP; i++) {
+            invoke(response, configuration);
+        }
+
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            invoke(response, configuration);
+        }
+
+        long time = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        System.out.printf("%-33s %,12d bytes / invocation %,10d ns / invocation%n", label, allocated / ITERATIONS, time / ITERATIONS);
+    }
+
+    private static void invoke(Response<String> response, Consumer<ServiceInvocation<String>> configuration) {
+        ServiceInvocation<String> invocation = ServiceInvocation.create("Error page", () -> response)
+                .withAsyncCallbacks(true);
+
+        configuration.accept(invocation);
+
+        invocation.execute(Runnable::run);
+    }
+
+    private static String createErrorPage() {
+        StringBuilder page = new StringBuilder(ERROR_PAGE_SIZE + 100);
+        page.append("<html><body><h1>502 Bad Gateway</h1>");
+        while (page.length() < ERROR_PAGE_SIZE) {
+            page.append("<p>The upstream server did not respond in time.</p>\n");
+        }
+        page.append("</body></html>");
+        return page.toString();
+    }
+}
@@ -0,0 +1,183 @@
+package com.dlsc.gemsfx.demo.service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Retrofit;
+import retrofit2.http.GET;
+import retrofit2.http.Header;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small in-process HTTP server used by the service invocation demos and benchmarks. Responses
+ * are sent after a configurable latency. The latency is simulated by a scheduler so that the
+ * server itself does not need one thread per pending request, which would otherwise distort
+ * the thread counts measured on the client side.
+ * <p>
+ * By default every request is answered with status code 200. Failure sequences can be scripted
+ * via {@link #enqueue(int, Map)}, the scripted responses will be used for the next requests in
+ * the order in which they were enqueued.
+ * </p>
+ * <p>
+ * Successful responses carry an "ETag" derived from the current {@link #setVersion(long) version}
+ * of the data. Requests with a matching "If-None-Match" header are answered with status code 304.
+ * </p>
+ */
+public class MockBackend {
+
+    private final Duration latency;
+
+    private final AtomicLong requestCount = new AtomicLong();
+
+    private final Queue<ScriptedResponse> script = new ConcurrentLinkedQueue<>();
+
+    private volatile long version = 1;
+
+    private HttpServer server;
+
+    private ScheduledExecutorService scheduler;
+
+    public MockBackend(Duration latency) {
+        this.latency = latency;
+    }
+
+    public void start() throws IOException {
+        scheduler = Executors.newScheduledThreadPool(4, r -> {
+            Thread thread = new Thread(r, "Mock Backend Thread");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        server.createContext("/", this::handle);
+        server.setExecutor(scheduler);
+        server.start();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            scheduler.shutdownNow();
+            server = null;
+        }
+    }
+
+    public String getBaseUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/";
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Sets the version of the data served by the backend, used for computing the "ETag".
+     *
+     * @param version the data version
+     */
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Scripts the response for one of the next requests.
+     *
+     * @param statusCode the status code to respond with
+     */
+    public void enqueue(int statusCode) {
+        enqueue(statusCode, Map.of());
+    }
+
+    /**
+     * Scripts the response for one of the next requests.
+     *
+     * @param statusCode the status code to respond with
+     * @param headers    additional response headers, e.g. "Retry-After"
+     */
+    public void enqueue(int statusCode, Map<String, String> headers) {
+        script.add(new ScriptedResponse(statusCode, headers));
+    }
+
+    /**
+     * Creates a Retrofit based client for the mock backend.
+     *
+     * @return the backend API
+     */
+    public Api createApi() {
+        return new Retrofit.Builder().baseUrl(getBaseUrl()).build().create(Api.class);
+    }
+
+    private void handle(HttpExchange exchange) {
+        requestCount.incrementAndGet();
+        scheduler.schedule(() -> respond(exchange), latency.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void respond(HttpExchange exchange) {
+        ScriptedResponse scripted = script.poll();
+        String eTag = "\"v" + version + "\"";
+        int statusCode = scripted != null ? scripted.statusCode : 200;
+
+        if (scripted == null && eTag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            statusCode = 304;
+        }
+
+        byte[] body = statusCode == 304 ? new byte[0] : ("{\"path\":\"" + exchange.getRequestURI().getPath() + "\",\"status\":" + statusCode + ",\"version\":" + version + "}").getBytes(StandardCharsets.UTF_8);
+        try (OutputStream out = exchange.getResponseBody()) {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            if (statusCode == 200 || statusCode == 304) {
+                exchange.getResponseHeaders().set("ETag", eTag);
+            }
+            if (scripted != null) {
+                scripted.headers.forEach((name, value) -> exchange.getResponseHeaders().set(name, value));
+            }
+            exchange.sendResponseHeaders(statusCode, body.length == 0 ? -1 : body.length);
+            out.write(body);
+        } catch (IOException e) {
+            // client went away
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static final class ScriptedResponse {
+
+        private final int statusCode;
+
+        private final Map<String, String> headers;
+
+        private ScriptedResponse(int statusCode, Map<String, String> headers) {
+            this.statusCode = statusCode;
+            this.headers = headers;
+        }
+    }
+
+    /**
+     * The Retrofit interface of the mock backend.
+     */
+    public interface Api {
+
+        @GET("data")
+        Call<ResponseBody> data();
+
+        @GET("data")
+        Call<ResponseBody> data(@Header("If-None-Match") String eTag);
+    }
+}
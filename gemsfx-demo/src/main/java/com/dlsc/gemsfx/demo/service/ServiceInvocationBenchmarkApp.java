@@ -0,0 +1,147 @@
+package com.dlsc.gemsfx.demo.service;
+
+import com.dlsc.gemsfx.util.FXDispatcher;
+import com.dlsc.gemsfx.util.ServiceInvocation;
+import com.dlsc.gemsfx.util.ServiceInvocation.ExecutorStrategy;
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.geometry.Insets;
+import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.ComboBox;
+import javafx.scene.control.TextArea;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+import javafx.stage.Stage;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fires a configurable number of concurrent service invocations against an in-process mock
+ * backend and compares the peak number of platform threads, the peak heap usage and the
+ * completion latency of the available {@link ExecutorStrategy executor strategies}. The app
+ * also reports how many "run later" calls were needed for dispatching the UI updates.
+ */
+public class ServiceInvocationBenchmarkApp extends Application {
+
+    private static final int INVOCATIONS = 1000;
+
+    private final MockBackend backend = new MockBackend(Duration.ofMillis(200));
+
+    private TextArea output;
+
+    @Override
+    public void start(Stage stage) throws Exception {
+        backend.start();
+
+        output = new TextArea();
+        output.setEditable(false);
+        output.setStyle("-fx-font-family: monospace;");
+        VBox.setVgrow(output, Priority.ALWAYS);
+
+        ComboBox<ExecutorStrategy> strategyBox = new ComboBox<>();
+        strategyBox.getItems().setAll(ExecutorStrategy.values());
+        strategyBox.setValue(ExecutorStrategy.PLATFORM_THREADS);
+
+        Button runButton = new Button("Run " + INVOCATIONS + " invocations");
+        runButton.setOnAction(evt -> {
+            runButton.setDisable(true);
+            run(strategyBox.getValue()).whenComplete((result, ex) -> Platform.runLater(() -> runButton.setDisable(false)));
+        });
+
+        HBox controls = new HBox(10, strategyBox, runButton);
+
+        VBox box = new VBox(10, controls, output);
+        box.setPadding(new Insets(20));
+
+        stage.setScene(new Scene(box, 800, 600));
+        stage.setTitle("Service Invocation Benchmark");
+        stage.setOnHidden(evt -> backend.stop());
+        stage.show();
+    }
+
+    private CompletableFuture<Void> run(ExecutorStrategy strategy) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+        System.gc();
+
+        int threadsBefore = threads.getThreadCount();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+
+        FXDispatcher dispatcher = FXDispatcher.getDefault();
+        long dispatchedBefore = dispatcher.getDispatchCount();
+        long runLaterBefore = dispatcher.getRunLaterCount();
+
+        threads.resetPeakThreadCount();
+        AtomicLong peakHeap = new AtomicLong(heapBefore);
+
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Benchmark Sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(() -> peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max), 0, 10, TimeUnit.MILLISECONDS);
+
+        MockBackend.Api api = backend.createApi();
+        long[] latencies = new long[INVOCATIONS];
+        CompletableFuture<?>[] futures = new CompletableFuture[INVOCATIONS];
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < INVOCATIONS; i++) {
+            int index = i;
+            long invocationStart = System.nanoTime();
+            CompletableFuture<Void> finished = new CompletableFuture<>();
+            futures[i] = finished;
+
+            ServiceInvocation.create("Benchmark " + i, () -> api.data().execute())
+                    .withExecutorStrategy(strategy)
+                    .onFinally(() -> {
+                        latencies[index] = System.nanoTime() - invocationStart;
+                        finished.complete(null);
+                    })
+                    .execute();
+        }
+
+        return CompletableFuture.allOf(futures).thenRun(() -> {
+            long wallTime = System.nanoTime() - start;
+            sampler.shutdownNow();
+
+            Arrays.sort(latencies);
+
+            String result = String.format("%s: %d invocations in %d ms%n"
+                            + "    platform threads: %d before, %d peak%n"
+                            + "    heap: %d MB before, %d MB peak%n"
+                            + "    latency: p50 = %d ms, p99 = %d ms, max = %d ms%n"
+                            + "    UI thread: %d dispatched runnables, %d run later calls%n",
+                    strategy, INVOCATIONS, TimeUnit.NANOSECONDS.toMillis(wallTime),
+                    threadsBefore, threads.getPeakThreadCount(),
+                    heapBefore >> 20, peakHeap.get() >> 20,
+                    percentile(latencies, 0.5), percentile(latencies, 0.99), TimeUnit.NANOSECONDS.toMillis(latencies[latencies.length - 1]),
+                    dispatcher.getDispatchCount() - dispatchedBefore, dispatcher.getRunLaterCount() - runLaterBefore);
+
+            System.out.print(result);
+            Platform.runLater(() -> output.appendText(result));
+        });
+    }
+
+    private static long percentile(long[] sortedNanos, double percentile) {
+        int index = (int) Math.ceil(percentile * sortedNanos.length) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sortedNanos[Math.max(0, index)]);
+    }
+
+    public static void main(String[] args) {
+        launch();
+    }
+}
@@ -0,0 +1,184 @@
+package com.dlsc.gemsfx.demo.service;
+
+import com.dlsc.gemsfx.util.FXDispatcher;
+import com.dlsc.gemsfx.util.ServiceInvocation;
+import javafx.application.Platform;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A headless throughput benchmark for {@link ServiceInvocation}. Fires 10, 100 and 1000
+ * concurrent invocations from the UI thread against the in-process {@link MockBackend}, every
+ * tenth of them answered with a server error, and reports the throughput, the latency
+ * percentiles (from calling execute() until the "on finally" handler), the peak number of
+ * runnables waiting in the {@link FXDispatcher} queue and the peak number of threads.
+ * <p>
+ * The threading contract of the invocations (exactly one outcome handler followed by the
+ * finally handler, all of them on the UI thread) is checked by the
+ * ServiceInvocationConcurrencyTest of the gemsfx module. Without a display the benchmark can be
+ * run with the Monocle headless platform, i.e. with the openjfx-monocle artifact used by the
+ * tests of the gemsfx module on the classpath:
+ * </p>
+ * <pre>
+ *     java -Dglass.platform=Monocle -Dmonocle.platform=Headless -Dprism.order=sw ...
+ * </pre>
+ */
+public class ServiceInvocationStressBenchmark {
+
+    // strongly referenced, the logger would otherwise lose its level when garbage collected
+    private static final Logger SERVICE_INVOCATION_LOG = Logger.getLogger(ServiceInvocation.class.getName());
+
+    private static final int[] CONCURRENCY_LEVELS = {10, 100, 1000};
+
+    private static final int WARMUP_ROUNDS = 2;
+
+    private static final int ROUNDS = 5;
+
+    private static final int FAILURE_RATE = 10;
+
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+
+    private final MockBackend backend = new MockBackend(Duration.ofMillis(50));
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        // the scripted server errors would otherwise flood the console
+        SERVICE_INVOCATION_LOG.setLevel(Level.OFF);
+
+        CountDownLatch startup = new CountDownLatch(1);
+        Platform.startup(startup::countDown);
+        startup.await();
+
+        try {
+            new ServiceInvocationStressBenchmark().run();
+        } finally {
+            Platform.exit();
+        }
+    }
+
+    private void run() throws Exception {
+        backend.start();
+
+        try {
+            MockBackend.Api api = backend.createApi();
+
+            System.out.printf("%-12s %10s %10s %10s %10s %10s %12s %10s%n", "concurrency", "calls/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "fx queue", "threads");
+
+            for (int concurrency : CONCURRENCY_LEVELS) {
+                for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                    round(api, concurrency);
+                }
+
+                long[] latencies = new long[0];
+                long wallTime = 0;
+                int peakQueue = 0;
+                int peakThreads = 0;
+
+                for (int i = 0; i < ROUNDS; i++) {
+                    RoundResult result = round(api, concurrency);
+                    latencies = concat(latencies, result.latencies);
+                    wallTime += result.wallTime;
+                    peakQueue = Math.max(peakQueue, result.peakQueue);
+                    peakThreads = Math.max(peakThreads, result.peakThreads);
+                }
+
+                Arrays.sort(latencies);
+
+                System.out.printf("%-12d %10.0f %10.1f %10.1f %10.1f %10.1f %12d %10d%n", concurrency,
+                        latencies.length / (wallTime / (double) TimeUnit.SECONDS.toNanos(1)),
+                        percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99), percentile(latencies, 1),
+                        peakQueue, peakThreads);
+            }
+        } finally {
+            backend.stop();
+        }
+    }
+
+    private RoundResult round(MockBackend.Api api, int concurrency) throws InterruptedException {
+        FXDispatcher dispatcher = FXDispatcher.getDefault();
+
+        long[] latencies = new long[concurrency];
+        CountDownLatch finished = new CountDownLatch(concurrency);
+        AtomicInteger peakQueue = new AtomicInteger();
+
+        for (int i = 0; i < concurrency; i += FAILURE_RATE) {
+            backend.enqueue(503);
+        }
+
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Benchmark Sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(() -> peakQueue.accumulateAndGet(dispatcher.getQueueSize(), Math::max), 0, 1, TimeUnit.MILLISECONDS);
+
+        threads.resetPeakThreadCount();
+
+        long start = System.nanoTime();
+
+        Platform.runLater(() -> {
+            for (int i = 0; i < concurrency; i++) {
+                int index = i;
+                long invocationStart = System.nanoTime();
+
+                ServiceInvocation.createForCall("Stress " + concurrency, api::data)
+                        .onFinally(() -> {
+                            latencies[index] = System.nanoTime() - invocationStart;
+                            finished.countDown();
+                        })
+                        .execute();
+            }
+        });
+
+        boolean completed = finished.await(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        long wallTime = System.nanoTime() - start;
+
+        sampler.shutdownNow();
+
+        if (!completed) {
+            throw new IllegalStateException(concurrency + " concurrent: only " + (concurrency - finished.getCount()) + " invocations finished within " + TIMEOUT);
+        }
+
+        return new RoundResult(latencies, wallTime, peakQueue.get(), threads.getPeakThreadCount());
+    }
+
+    private static long[] concat(long[] first, long[] second) {
+        long[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static double percentile(long[] sortedNanos, double percentile) {
+        int index = (int) Math.ceil(percentile * sortedNanos.length) - 1;
+        return sortedNanos[Math.max(0, index)] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static final class RoundResult {
+
+        private final long[] latencies;
+
+        private final long wallTime;
+
+        private final int peakQueue;
+
+        private final int peakThreads;
+
+        private RoundResult(long[] latencies, long wallTime, int peakQueue, int peakThreads) {
+            this.latencies = latencies;
+            this.wallTime = wallTime;
+            this.peakQueue = peakQueue;
+            this.peakThreads = peakThreads;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.dlsc.gemsfx.demo.service;
+
+import com.dlsc.gemsfx.util.HttpStatusCode;
+import com.dlsc.gemsfx.util.LatencyHistogram;
+import com.dlsc.gemsfx.util.ServiceInvocation;
+import com.dlsc.gemsfx.util.SimulationProfile;
+import javafx.animation.AnimationTimer;
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.geometry.Insets;
+import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.ListView;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.control.TextArea;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+import javafx.stage.Stage;
+import retrofit2.Response;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives a few hundred service invocations against a {@link SimulationProfile} with log-normal
+ * latencies, failures and timeouts, while the results are being added to a list view. The
+ * intervals between the pulses of the UI thread are recorded with an animation timer, long
+ * intervals are the frames the user perceives as jank. Comparing the pulse times with and
+ * without asynchronous callbacks shows how much the handlers block the UI thread.
+ */
+public class SimulationBenchmarkApp extends Application {
+
+    private static final int INVOCATIONS = 500;
+
+    private static final long FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(17);
+
+    private final LatencyHistogram pulses = new LatencyHistogram();
+
+    private final AtomicInteger jankFrames = new AtomicInteger();
+
+    private final ListView<String> listView = new ListView<>();
+
+    private final ProgressBar progressBar = new ProgressBar(0);
+
+    private TextArea output;
+
+    @Override
+    public void start(Stage stage) {
+        SimulationProfile profile = new SimulationProfile();
+        profile.getDefault()
+                .withLatency(Duration.ofMillis(100), Duration.ofMillis(1500))
+                .withFailures(0.05, HttpStatusCode.SERVICE_UNAVAILABLE)
+                .withTimeouts(0.01, Duration.ofSeconds(3));
+
+        ServiceInvocation.setSimulationProfile(profile);
+
+        output = new TextArea();
+        output.setEditable(false);
+        output.setStyle("-fx-font-family: monospace;");
+        output.setPrefRowCount(8);
+
+        CheckBox asyncBox = new CheckBox("Asynchronous callbacks");
+
+        Button runButton = new Button("Run " + INVOCATIONS + " invocations");
+        runButton.setOnAction(evt -> {
+            runButton.setDisable(true);
+            run(asyncBox.isSelected()).whenComplete((result, ex) -> Platform.runLater(() -> runButton.setDisable(false)));
+        });
+
+        progressBar.setMaxWidth(Double.MAX_VALUE);
+        HBox.setHgrow(progressBar, Priority.ALWAYS);
+
+        HBox controls = new HBox(10, asyncBox, runButton, progressBar);
+        VBox.setVgrow(listView, Priority.ALWAYS);
+
+        VBox box = new VBox(10, controls, listView, output);
+        box.setPadding(new Insets(20));
+
+        stage.setScene(new Scene(box, 800, 600));
+        stage.setTitle("Service Invocation Simulation Benchmark");
+        stage.setOnHidden(evt -> ServiceInvocation.setSimulationProfile(null));
+        stage.show();
+    }
+
+    private CompletableFuture<Void> run(boolean async) {
+        listView.getItems().clear();
+        pulses.reset();
+        jankFrames.set(0);
+
+        AnimationTimer pulseRecorder = new AnimationTimer() {
+
+            private long lastPulse;
+
+            @Override
+            public void handle(long now) {
+                if (lastPulse > 0) {
+                    long interval = now - lastPulse;
+                    pulses.record(interval);
+                    if (interval > 2 * FRAME_NANOS) {
+                        jankFrames.incrementAndGet();
+                    }
+                }
+                lastPulse = now;
+            }
+        };
+
+        pulseRecorder.start();
+
+        AtomicInteger succeeded = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger exceptions = new AtomicInteger();
+        AtomicInteger completed = new AtomicInteger();
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < INVOCATIONS; i++) {
+            int index = i;
+            CompletableFuture<Void> finished = new CompletableFuture<>();
+            futures.add(finished);
+
+            ServiceInvocation.create("Simulation " + i, () -> Response.success(createItems(index)))
+                    .withAsyncCallbacks(async)
+                    .withTimeout(Duration.ofSeconds(2))
+                    .onSuccess(items -> {
+                        succeeded.incrementAndGet();
+                        listView.getItems().addAll(items);
+                        listView.scrollTo(listView.getItems().size() - 1);
+                    })
+                    .onFailure((name, message) -> failed.incrementAndGet())
+                    .onException((name, ex) -> exceptions.incrementAndGet())
+                    .onFinally(() -> {
+                        progressBar.setProgress((double) completed.incrementAndGet() / INVOCATIONS);
+                        finished.complete(null);
+                    })
+                    .execute();
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenRun(() -> Platform.runLater(() -> {
+            pulseRecorder.stop();
+
+            String result = String.format("%s callbacks: %d invocations in %d ms%n"
+                            + "    outcomes: %d succeeded, %d failed, %d exceptions / timeouts%n"
+                            + "    pulses: %d, interval p50 = %.1f ms, p99 = %.1f ms, max = %.1f ms%n"
+                            + "    jank frames (> %d ms): %d%n",
+                    async ? "asynchronous" : "synchronous", INVOCATIONS, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                    succeeded.get(), failed.get(), exceptions.get(),
+                    pulses.getCount(), pulses.getValueAtPercentile(50, TimeUnit.MILLISECONDS), pulses.getValueAtPercentile(99, TimeUnit.MILLISECONDS), pulses.getMax(TimeUnit.MILLISECONDS),
+                    2 * TimeUnit.NANOSECONDS.toMillis(FRAME_NANOS), jankFrames.get());
+
+            System.out.print(result);
+            output.appendText(result);
+        }));
+    }
+
+    private static List<String> createItems(int index) {
+        List<String> items = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            items.add("Invocation " + index + ", item " + i);
+        }
+        return items;
+    }
+
+    public static void main(String[] args) {
+        launch();
+    }
+}
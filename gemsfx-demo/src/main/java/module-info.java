@@ -6,6 +6,12 @@ module com.dlsc.gemsfx.demo {
     requires com.dlsc.gemsfx;
     requires org.kordamp.ikonli.javafx;
     requires org.kordamp.ikonli.materialdesign;
+    requires retrofit2;
+    requires okhttp3;
+    requires jdk.httpserver;
+    requires java.management;
+    requires jdk.management;
 
     exports com.dlsc.gemsfx.demo;
+    exports com.dlsc.gemsfx.demo.service;
 }
\ No newline at end of file
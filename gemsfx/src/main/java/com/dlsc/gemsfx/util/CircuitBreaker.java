@@ -0,0 +1,401 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.beans.property.ReadOnlyDoubleWrapper;
+import javafx.beans.property.ReadOnlyObjectProperty;
+import javafx.beans.property.ReadOnlyObjectWrapper;
+
+/**
+ * A circuit breaker protects the application from wasting threads and sockets on a backend
+ * that is currently not working. The breaker records the outcome of the service invocations
+ * that are using it in a sliding window. When the failure rate or the rate of slow calls in the
+ * window exceeds a threshold the breaker "opens" and all further invocations fail immediately
+ * with a {@link CircuitBreakerOpenException} without calling the backend. After a waiting period
+ * the breaker becomes "half open" and lets a few trial invocations pass. If they succeed the
+ * breaker "closes" again, otherwise it goes back to the open state.
+ * <p>
+ * Exceptions thrown by the service call and responses with a status code of the
+ * {@link HttpStatusCode.Family#SERVER_ERROR} family count as failures. Cancelled invocations
+ * are not recorded at all.
+ * </p>
+ * The state of the breaker and the current rates are available as JavaFX properties, e.g. for
+ * showing them in a status bar. These properties are only updated on the UI thread.
+ *
+ * <h3>Example:</h3>
+ * <pre>
+ *         ServiceInvocation.createForCall("Load data ...", () -> myService.loadData())
+ *              .withCircuitBreaker(CircuitBreaker.forKey("data-service"))
+ *              .onSuccess(data -> listView.getItems().setAll(data)).execute();
+ *     </pre>
+ *
+ * @see ServiceInvocation#withCircuitBreaker(CircuitBreaker)
+ */
+public final class CircuitBreaker {
+
+    private static final Logger LOG = Logger.getLogger(CircuitBreaker.class.getName());
+
+    private static final Map<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    /**
+     * The possible states of a circuit breaker.
+     */
+    public enum State {
+
+        /**
+         * Invocations pass, their outcome is being recorded.
+         */
+        CLOSED,
+
+        /**
+         * Invocations fail immediately.
+         */
+        OPEN,
+
+        /**
+         * A limited number of trial invocations pass, all others fail immediately.
+         */
+        HALF_OPEN
+    }
+
+    private static final byte FAILED = 1;
+
+    private static final byte SLOW = 2;
+
+    private final String name;
+
+    private double failureRateThreshold = 0.5;
+
+    private double slowCallRateThreshold = 1;
+
+    private long slowCallNanos = Long.MAX_VALUE;
+
+    private int minimumCalls = 10;
+
+    private long openNanos = Duration.ofSeconds(30).toNanos();
+
+    private int permittedHalfOpenCalls = 3;
+
+    // sliding window, guarded by "this"
+
+    private byte[] window = new byte[50];
+
+    private int windowIndex;
+
+    private int windowCount;
+
+    private int failureCount;
+
+    private int slowCount;
+
+    private State currentState = State.CLOSED;
+
+    private long openedAt;
+
+    private int halfOpenPermits;
+
+    private int halfOpenSuccesses;
+
+    /**
+     * Constructs a new circuit breaker with default settings: a sliding window of 50 calls, a
+     * failure rate threshold of 50%, no slow call threshold, a minimum of 10 calls before rates
+     * will be evaluated, and an open state lasting 30 seconds followed by 3 trial calls.
+     *
+     * @param name the name of the breaker, e.g. the name of the protected service
+     */
+    public CircuitBreaker(String name) {
+        this.name = Objects.requireNonNull(name, "name can not be null");
+    }
+
+    /**
+     * Returns the shared breaker for the given key. The breaker will be created with default
+     * settings when it gets requested for the first time.
+     *
+     * @param key the key, e.g. the name of a service invocation
+     * @return the breaker
+     */
+    public static CircuitBreaker forKey(String key) {
+        return BREAKERS.computeIfAbsent(key, CircuitBreaker::new);
+    }
+
+    /**
+     * Returns the name of the breaker.
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sets the failure rate at which the breaker opens, e.g. 0.5 for 50%.
+     *
+     * @param threshold the threshold between 0 (exclusive) and 1
+     * @return the breaker
+     */
+    public synchronized CircuitBreaker withFailureRateThreshold(double threshold) {
+        checkRate(threshold);
+        failureRateThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Sets the rate of slow calls at which the breaker opens and the duration from which
+     * on a call is considered slow.
+     *
+     * @param threshold the threshold between 0 (exclusive) and 1
+     * @param slowCall  the minimum duration of a slow call
+     * @return the breaker
+     */
+    public synchronized CircuitBreaker withSlowCallThreshold(double threshold, Duration slowCall) {
+        checkRate(threshold);
+        Objects.requireNonNull(slowCall, "slow call duration can not be null");
+        slowCallRateThreshold = threshold;
+        slowCallNanos = slowCall.toNanos();
+        return this;
+    }
+
+    /**
+     * Sets the size of the sliding window and the minimum number of calls that have to be
+     * recorded before the rates will be evaluated. Changing the window resets the recorded calls.
+     *
+     * @param size         the number of calls in the window
+     * @param minimumCalls the minimum number of recorded calls
+     * @return the breaker
+     */
+    public synchronized CircuitBreaker withSlidingWindow(int size, int minimumCalls) {
+        if (size < 1 || minimumCalls < 1 || minimumCalls > size) {
+            throw new IllegalArgumentException("window must satisfy 1 <= minimum calls <= size but was " + minimumCalls + " / " + size);
+        }
+        window = new byte[size];
+        this.minimumCalls = minimumCalls;
+        resetWindow();
+        return this;
+    }
+
+    /**
+     * Sets how long the breaker stays open and how many trial calls it lets pass
+     * afterwards.
+     *
+     * @param openDuration    the time the breaker stays open
+     * @param permittedCalls  the number of trial calls in the half open state
+     * @return the breaker
+     */
+    public synchronized CircuitBreaker withOpenDuration(Duration openDuration, int permittedCalls) {
+        Objects.requireNonNull(openDuration, "open duration can not be null");
+        if (permittedCalls < 1) {
+            throw new IllegalArgumentException("permitted calls must be at least 1 but was " + permittedCalls);
+        }
+        openNanos = openDuration.toNanos();
+        permittedHalfOpenCalls = permittedCalls;
+        return this;
+    }
+
+    private static void checkRate(double rate) {
+        if (rate <= 0 || rate > 1) {
+            throw new IllegalArgumentException("rate must be greater than 0 and at most 1 but was " + rate);
+        }
+    }
+
+    /**
+     * Closes the breaker and discards all recorded calls.
+     */
+    public synchronized void reset() {
+        resetWindow();
+        transitionTo(State.CLOSED);
+    }
+
+    /**
+     * Determines whether a call may pass. Every granted permission has to be followed by
+     * a call to {@link #record(boolean, long)} or {@link #release()}.
+     *
+     * @return true if the call may pass
+     */
+    synchronized boolean tryAcquirePermission() {
+        switch (currentState) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - openedAt < openNanos) {
+                    return false;
+                }
+                transitionTo(State.HALF_OPEN);
+                // fall through
+            default:
+                if (halfOpenPermits >= permittedHalfOpenCalls) {
+                    return false;
+                }
+                halfOpenPermits++;
+                return true;
+        }
+    }
+
+    /**
+     * Gives back a permission without recording an outcome, e.g. after a cancellation.
+     */
+    synchronized void release() {
+        if (currentState == State.HALF_OPEN && halfOpenPermits > 0) {
+            halfOpenPermits--;
+        }
+    }
+
+    /**
+     * Records the outcome of a call.
+     *
+     * @param failed      true if the call failed
+     * @param durationNanos the duration of the call
+     */
+    synchronized void record(boolean failed, long durationNanos) {
+        boolean slow = durationNanos >= slowCallNanos;
+
+        if (currentState == State.HALF_OPEN) {
+            if (failed || slow) {
+                transitionTo(State.OPEN);
+            } else if (++halfOpenSuccesses >= permittedHalfOpenCalls) {
+                resetWindow();
+                transitionTo(State.CLOSED);
+            }
+            return;
+        }
+
+        if (currentState == State.OPEN) {
+            // a call that was started before the breaker opened
+            return;
+        }
+
+        if (windowCount == window.length) {
+            byte evicted = window[windowIndex];
+            if ((evicted & FAILED) != 0) {
+                failureCount--;
+            }
+            if ((evicted & SLOW) != 0) {
+                slowCount--;
+            }
+        } else {
+            windowCount++;
+        }
+
+        window[windowIndex] = (byte) ((failed ? FAILED : 0) | (slow ? SLOW : 0));
+        windowIndex = (windowIndex + 1) % window.length;
+
+        if (failed) {
+            failureCount++;
+        }
+        if (slow) {
+            slowCount++;
+        }
+
+        double failureRate = (double) failureCount / windowCount;
+        double slowCallRate = (double) slowCount / windowCount;
+
+        updateRates(failureRate, slowCallRate);
+
+        if (windowCount >= minimumCalls && (failureRate >= failureRateThreshold || slowCallRate >= slowCallRateThreshold)) {
+            LOG.warning("opening circuit breaker " + name + ", failure rate = " + failureRate + ", slow call rate = " + slowCallRate);
+            transitionTo(State.OPEN);
+        }
+    }
+
+    private void resetWindow() {
+        windowIndex = 0;
+        windowCount = 0;
+        failureCount = 0;
+        slowCount = 0;
+        updateRates(0, 0);
+    }
+
+    private void transitionTo(State newState) {
+        if (newState == State.OPEN) {
+            openedAt = System.nanoTime();
+        }
+        halfOpenPermits = 0;
+        halfOpenSuccesses = 0;
+
+        if (currentState != newState) {
+            LOG.fine("circuit breaker " + name + " changes from " + currentState + " to " + newState);
+            currentState = newState;
+            FXDispatcher.getDefault().update(state, () -> state.set(newState));
+        }
+    }
+
+    private void updateRates(double failureRate, double slowCallRate) {
+        FXDispatcher.getDefault().update(this.failureRate, () -> {
+            this.failureRate.set(failureRate);
+            this.slowCallRate.set(slowCallRate);
+        });
+    }
+
+    // state
+
+    private final ReadOnlyObjectWrapper<State> state = new ReadOnlyObjectWrapper<>(this, "state", State.CLOSED);
+
+    /**
+     * Returns the state of the breaker as last published on the UI thread.
+     *
+     * @return the state
+     */
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * A read-only property for observing the state of the breaker.
+     *
+     * @return the state property
+     */
+    public ReadOnlyObjectProperty<State> stateProperty() {
+        return state.getReadOnlyProperty();
+    }
+
+    // failure rate
+
+    private final ReadOnlyDoubleWrapper failureRate = new ReadOnlyDoubleWrapper(this, "failureRate");
+
+    /**
+     * Returns the failure rate within the sliding window.
+     *
+     * @return the failure rate between 0 and 1
+     */
+    public double getFailureRate() {
+        return failureRate.get();
+    }
+
+    /**
+     * A read-only property for observing the failure rate within the sliding window.
+     *
+     * @return the failure rate property
+     */
+    public ReadOnlyDoubleProperty failureRateProperty() {
+        return failureRate.getReadOnlyProperty();
+    }
+
+    // slow call rate
+
+    private final ReadOnlyDoubleWrapper slowCallRate = new ReadOnlyDoubleWrapper(this, "slowCallRate");
+
+    /**
+     * Returns the rate of slow calls within the sliding window.
+     *
+     * @return the slow call rate between 0 and 1
+     */
+    public double getSlowCallRate() {
+        return slowCallRate.get();
+    }
+
+    /**
+     * A read-only property for observing the rate of slow calls within the sliding window.
+     *
+     * @return the slow call rate property
+     */
+    public ReadOnlyDoubleProperty slowCallRateProperty() {
+        return slowCallRate.getReadOnlyProperty();
+    }
+}
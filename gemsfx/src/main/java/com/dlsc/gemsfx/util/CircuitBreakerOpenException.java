@@ -0,0 +1,27 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+/**
+ * The exception passed to the exception handler of a {@link ServiceInvocation} when the
+ * invocation was rejected by an open {@link CircuitBreaker}.
+ */
+public class CircuitBreakerOpenException extends RuntimeException {
+
+    private final transient CircuitBreaker circuitBreaker;
+
+    public CircuitBreakerOpenException(CircuitBreaker circuitBreaker) {
+        super("circuit breaker " + circuitBreaker.getName() + " is open");
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Returns the breaker that rejected the invocation.
+     *
+     * @return the circuit breaker
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * An immutable point in time by which a {@link ServiceInvocation} has to be completed. Deadlines
+ * are based on {@link System#nanoTime()} and are therefore not affected by changes of the system
+ * clock.
+ * <p>
+ * Deadlines get propagated from one invocation to the next: an invocation that gets executed from
+ * within a handler of another invocation and that has no deadline of its own inherits the deadline
+ * of the other invocation. This way a chain of invocations triggered by a single user action can
+ * not take longer than the time budget of the first invocation.
+ * </p>
+ * <pre>
+ *         ServiceInvocation.createForCall("Load customer ...", () -> myService.loadCustomer(id))
+ *              .withTimeout(Duration.ofSeconds(5))
+ *              .onSuccess(customer -> ServiceInvocation.createForCall("Load orders ...", () -> myService.loadOrders(customer))
+ *                   .onSuccess(orders -> ...).execute()) // gets the remaining budget of the first invocation
+ *              .execute();
+ *     </pre>
+ *
+ * @see ServiceInvocation#withDeadline(Deadline)
+ * @see ServiceInvocation#withTimeout(Duration)
+ */
+public final class Deadline implements Comparable<Deadline> {
+
+    private final long nanoTime;
+
+    private Deadline(long nanoTime) {
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * Returns a deadline that expires after the given duration.
+     *
+     * @param duration the duration, starting now
+     * @return the deadline
+     */
+    public static Deadline after(Duration duration) {
+        Objects.requireNonNull(duration, "duration can not be null");
+        return new Deadline(System.nanoTime() + saturatedNanos(duration));
+    }
+
+    /**
+     * Returns the deadline of the service invocation whose handler is currently being executed on
+     * the calling thread.
+     *
+     * @return the current deadline or null
+     */
+    public static Deadline current() {
+        return ServiceInvocation.currentDeadline();
+    }
+
+    private static long saturatedNanos(Duration duration) {
+        try {
+            return duration.toNanos();
+        } catch (ArithmeticException e) {
+            return duration.isNegative() ? Long.MIN_VALUE / 2 : Long.MAX_VALUE / 2;
+        }
+    }
+
+    /**
+     * Returns the time left until the deadline expires.
+     *
+     * @return the remaining time, never negative
+     */
+    public Duration getRemaining() {
+        return Duration.ofNanos(Math.max(0, getRemainingNanos()));
+    }
+
+    long getRemainingNanos() {
+        return nanoTime - System.nanoTime();
+    }
+
+    /**
+     * Returns true if the deadline has expired.
+     *
+     * @return true if expired
+     */
+    public boolean isExpired() {
+        return getRemainingNanos() <= 0;
+    }
+
+    /**
+     * Returns the earlier of this and the given deadline.
+     *
+     * @param other the other deadline, may be null
+     * @return the earlier deadline
+     */
+    public Deadline earliest(Deadline other) {
+        return other == null || compareTo(other) <= 0 ? this : other;
+    }
+
+    @Override
+    public int compareTo(Deadline other) {
+        return Long.compare(nanoTime - other.nanoTime, 0);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof Deadline && ((Deadline) obj).nanoTime == nanoTime;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(nanoTime);
+    }
+
+    @Override
+    public String toString() {
+        return "Deadline{remaining=" + getRemainingNanos() / 1_000_000 + "ms}";
+    }
+}
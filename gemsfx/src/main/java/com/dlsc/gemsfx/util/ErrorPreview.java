@@ -0,0 +1,154 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import retrofit2.Response;
+
+/**
+ * The beginning of the body of an unsuccessful response together with the status code and the
+ * headers of the response. Backends and gateways sometimes answer with huge error pages, a
+ * preview only decodes the first bytes of such a page (see
+ * {@link ServiceInvocation#withMaxErrorBodySize(int)}) instead of turning the whole page into
+ * a string.
+ *
+ * @see ServiceInvocation#onFailureDetailedPreview(java.util.function.BiConsumer)
+ */
+public final class ErrorPreview {
+
+    private final int statusCode;
+
+    private final Headers headers;
+
+    private final MediaType contentType;
+
+    private final long contentLength;
+
+    private final String text;
+
+    private final boolean truncated;
+
+    private ErrorPreview(int statusCode, Headers headers, MediaType contentType, long contentLength, String text, boolean truncated) {
+        this.statusCode = statusCode;
+        this.headers = headers;
+        this.contentType = contentType;
+        this.contentLength = contentLength;
+        this.text = text;
+        this.truncated = truncated;
+    }
+
+    /**
+     * Creates the preview of the given response. The error body does not get consumed, it can
+     * still be read by other handlers.
+     *
+     * @param response the unsuccessful response
+     * @param maxBytes the maximum number of bytes to decode
+     * @return the preview
+     * @throws IOException if the error body can not be read
+     */
+    static ErrorPreview of(Response<?> response, int maxBytes) throws IOException {
+        ResponseBody body = response.errorBody();
+
+        if (body == null) {
+            return new ErrorPreview(response.code(), response.headers(), null, 0, "", false);
+        }
+
+        MediaType contentType = body.contentType();
+        Charset charset = contentType != null ? contentType.charset(StandardCharsets.UTF_8) : StandardCharsets.UTF_8;
+
+        // peeks at the buffered bytes, reading at most one byte more than needed to detect truncation
+        BufferedSource source = body.source();
+        source.request(maxBytes + 1L);
+        Buffer buffer = source.buffer();
+
+        long available = buffer.size();
+        boolean truncated = available > maxBytes;
+        long length = Math.min(available, maxBytes);
+
+        Buffer preview = new Buffer();
+        buffer.copyTo(preview, 0, length);
+
+        return new ErrorPreview(response.code(), response.headers(), contentType, body.contentLength(), preview.readString(charset), truncated);
+    }
+
+    /**
+     * Returns the HTTP status code of the response.
+     *
+     * @return the status code
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Returns the HTTP status of the response.
+     *
+     * @return the status or null if the status code is unknown
+     */
+    public HttpStatusCode getStatus() {
+        return HttpStatusCode.fromStatusCode(statusCode);
+    }
+
+    /**
+     * Returns the family of the status code, e.g. client or server error.
+     *
+     * @return the family
+     */
+    public HttpStatusCode.Family getFamily() {
+        return HttpStatusCode.Family.familyOf(statusCode);
+    }
+
+    public Headers getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Returns the content type of the error body.
+     *
+     * @return the content type or null if unknown
+     */
+    public MediaType getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Returns the length of the complete error body.
+     *
+     * @return the length in bytes or -1 if unknown
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Returns the decoded beginning of the error body.
+     *
+     * @return the text, never null
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Determines whether the error body was longer than the preview.
+     *
+     * @return true if the text has been truncated
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    @Override
+    public String toString() {
+        return "ErrorPreview{statusCode=" + statusCode + ", contentType=" + contentType + ", contentLength=" + contentLength + ", truncated=" + truncated + "}";
+    }
+}
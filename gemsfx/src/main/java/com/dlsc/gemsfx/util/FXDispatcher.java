@@ -0,0 +1,239 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+
+/**
+ * A dispatcher used for executing runnables on the JavaFX application thread. Instead of
+ * calling {@link Platform#runLater(Runnable)} for every single runnable the dispatcher collects
+ * them in a queue and drains the queue once per pulse, i.e. right before the scene graph gets
+ * rendered. Runnables submitted while the dispatcher is waiting for the next pulse simply get
+ * added to the queue. This keeps the JavaFX event queue small when many background threads
+ * (e.g. many concurrent {@link ServiceInvocation}s) have to update the user interface at the
+ * same time.
+ * <p>
+ * The drain is performed by an {@link AnimationTimer}, which only runs while runnables are
+ * waiting, so an idle dispatcher does not cause any pulses. A single "run later" call is needed
+ * for starting the timer when the first runnable arrives. Each drain only runs for the
+ * configured {@link #setTimeBudget(Duration) time budget}. Runnables that could not be executed
+ * within the budget will be executed in the next pulse, so the application thread still gets
+ * a chance to render in between.
+ * </p>
+ * <p>
+ * Property updates where only the latest value matters (e.g. progress updates) can be submitted
+ * via {@link #update(Object, Runnable)}. Pending updates for the same key replace each other.
+ * </p>
+ * Runnables are always executed in the order in which they were submitted.
+ */
+public final class FXDispatcher {
+
+    private static final Logger LOG = Logger.getLogger(FXDispatcher.class.getName());
+
+    private static final FXDispatcher DEFAULT = new FXDispatcher();
+
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+
+    private final Map<Object, Runnable> pendingUpdates = new ConcurrentHashMap<>();
+
+    // true while the pulse timer is running or about to be started
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    private final AnimationTimer pulseTimer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            drain();
+        }
+    };
+
+    private final LongAdder dispatchCount = new LongAdder();
+
+    private final LongAdder runLaterCount = new LongAdder();
+
+    private final LongAdder replacedUpdateCount = new LongAdder();
+
+    private volatile long timeBudgetNanos = Duration.ofMillis(8).toNanos();
+
+    /**
+     * Constructs a new dispatcher. Most applications will use the shared dispatcher
+     * returned by {@link #getDefault()}.
+     */
+    public FXDispatcher() {
+    }
+
+    /**
+     * Returns the shared dispatcher instance.
+     *
+     * @return the default dispatcher
+     */
+    public static FXDispatcher getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Schedules the given runnable for execution on the JavaFX application thread.
+     *
+     * @param runnable the runnable to execute
+     */
+    public void dispatch(Runnable runnable) {
+        Objects.requireNonNull(runnable, "runnable can not be null");
+        dispatchCount.increment();
+        queue.add(runnable);
+        scheduleDrain();
+    }
+
+    /**
+     * Schedules the given runnable for execution on the JavaFX application thread. If another
+     * runnable for the same key is still pending then that runnable will be replaced and never
+     * be executed. The replacement runs at the position of the replaced runnable.
+     *
+     * @param key      the key identifying the updated value, e.g. a property
+     * @param runnable the runnable to execute
+     */
+    public void update(Object key, Runnable runnable) {
+        Objects.requireNonNull(key, "key can not be null");
+        Objects.requireNonNull(runnable, "runnable can not be null");
+
+        dispatchCount.increment();
+
+        if (pendingUpdates.put(key, runnable) != null) {
+            replacedUpdateCount.increment();
+            return;
+        }
+
+        queue.add(() -> {
+            Runnable latest = pendingUpdates.remove(key);
+            if (latest != null) {
+                latest.run();
+            }
+        });
+
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            runLaterCount.increment();
+            Platform.runLater(pulseTimer::start);
+        }
+    }
+
+    /*
+     * Called by the pulse timer once per pulse.
+     */
+    private void drain() {
+        long deadline = System.nanoTime() + timeBudgetNanos;
+
+        while (true) {
+            Runnable runnable = queue.poll();
+
+            if (runnable == null) {
+                drainScheduled.set(false);
+
+                // something might have been added after the poll but before resetting the flag
+                if (queue.isEmpty() || !drainScheduled.compareAndSet(false, true)) {
+                    pulseTimer.stop();
+                    return;
+                }
+
+                continue;
+            }
+
+            try {
+                runnable.run();
+            } catch (Exception e) {
+                LOG.log(Level.SEVERE, "error when executing a dispatched runnable", e);
+            }
+
+            if (System.nanoTime() - deadline > 0 && !queue.isEmpty()) {
+                // give the application thread a chance to render, the timer keeps running
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sets the maximum amount of time the drain of the queue may occupy the JavaFX
+     * application thread per pulse. The default is 8 milliseconds.
+     *
+     * @param budget the time budget per pulse
+     */
+    public void setTimeBudget(Duration budget) {
+        Objects.requireNonNull(budget, "budget can not be null");
+        if (budget.isNegative() || budget.isZero()) {
+            throw new IllegalArgumentException("budget must be positive but was " + budget);
+        }
+        timeBudgetNanos = budget.toNanos();
+    }
+
+    /**
+     * Returns the maximum amount of time the drain of the queue may occupy the JavaFX
+     * application thread per pulse.
+     *
+     * @return the time budget per pulse
+     */
+    public Duration getTimeBudget() {
+        return Duration.ofNanos(timeBudgetNanos);
+    }
+
+    /**
+     * Returns the number of runnables that are currently waiting for execution.
+     *
+     * @return the queue size
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the total number of runnables submitted to this dispatcher.
+     *
+     * @return the number of dispatched runnables
+     */
+    public long getDispatchCount() {
+        return dispatchCount.sum();
+    }
+
+    /**
+     * Returns the number of calls the dispatcher made to {@link Platform#runLater(Runnable)}.
+     *
+     * @return the number of "run later" calls
+     */
+    public long getRunLaterCount() {
+        return runLaterCount.sum();
+    }
+
+    /**
+     * Returns the number of calls to {@link Platform#runLater(Runnable)} that were saved by
+     * batching, i.e. the number of dispatched runnables minus the number of "run later" calls
+     * actually made.
+     *
+     * @return the number of saved "run later" calls
+     */
+    public long getSavedRunLaterCount() {
+        return Math.max(0, getDispatchCount() - getRunLaterCount());
+    }
+
+    /**
+     * Returns the number of updates submitted via {@link #update(Object, Runnable)} that
+     * were replaced by a newer update before they got executed.
+     *
+     * @return the number of replaced updates
+     */
+    public long getReplacedUpdateCount() {
+        return replacedUpdateCount.sum();
+    }
+}
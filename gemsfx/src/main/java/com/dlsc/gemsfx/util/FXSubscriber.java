@@ -0,0 +1,78 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.util.Objects;
+import java.util.concurrent.Flow;
+
+/**
+ * A subscriber that forwards all signals of a publisher to another subscriber on the JavaFX
+ * application thread. The signals are handed over via the {@link FXDispatcher}, which keeps
+ * their order and batches them with the other updates of the user interface. The publishers of
+ * the service invocations never use the UI thread themselves, so wrapping a subscriber is the
+ * only way their items end up on the UI thread.
+ * <pre>
+ *     invocation.toPublisher().subscribe(FXSubscriber.of(subscriber));
+ * </pre>
+ *
+ * @param <T> the type of the items
+ * @see ServiceInvocation#toPublisher()
+ * @see PagingPublisher
+ */
+public final class FXSubscriber<T> implements Flow.Subscriber<T> {
+
+    private final Flow.Subscriber<? super T> delegate;
+
+    private final FXDispatcher dispatcher;
+
+    private FXSubscriber(Flow.Subscriber<? super T> delegate, FXDispatcher dispatcher) {
+        this.delegate = Objects.requireNonNull(delegate, "subscriber can not be null");
+        this.dispatcher = Objects.requireNonNull(dispatcher, "dispatcher can not be null");
+    }
+
+    /**
+     * Wraps the given subscriber so that it gets called on the JavaFX application thread, using
+     * the {@link FXDispatcher#getDefault() default dispatcher}.
+     *
+     * @param subscriber the subscriber observing on the UI thread
+     * @param <T>        the type of the items
+     * @return the wrapping subscriber
+     */
+    public static <T> FXSubscriber<T> of(Flow.Subscriber<? super T> subscriber) {
+        return of(subscriber, FXDispatcher.getDefault());
+    }
+
+    /**
+     * Wraps the given subscriber so that it gets called on the JavaFX application thread, using
+     * the given dispatcher.
+     *
+     * @param subscriber the subscriber observing on the UI thread
+     * @param dispatcher the dispatcher used for handing the signals to the UI thread
+     * @param <T>        the type of the items
+     * @return the wrapping subscriber
+     */
+    public static <T> FXSubscriber<T> of(Flow.Subscriber<? super T> subscriber, FXDispatcher dispatcher) {
+        return new FXSubscriber<>(subscriber, dispatcher);
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        dispatcher.dispatch(() -> delegate.onSubscribe(subscription));
+    }
+
+    @Override
+    public void onNext(T item) {
+        dispatcher.dispatch(() -> delegate.onNext(item));
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        dispatcher.dispatch(() -> delegate.onError(throwable));
+    }
+
+    @Override
+    public void onComplete() {
+        dispatcher.dispatch(delegate::onComplete);
+    }
+}
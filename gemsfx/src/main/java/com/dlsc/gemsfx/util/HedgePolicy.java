@@ -0,0 +1,229 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A policy for "hedging" service calls that suffer from a long latency tail. When the backend
+ * has not responded after a certain delay, a second, identical call will be started. The first
+ * response that arrives wins, the other call gets cancelled. Hedging requires an invocation
+ * created with a {@link ServiceInvocation.CallSupplier} and must only be used for idempotent
+ * calls.
+ * <p>
+ * The delay can either be fixed or follow a percentile of the latencies observed for the key
+ * of the invocation (see {@link ServiceInvocationMetrics}), e.g. the 95th percentile, so that
+ * only the slowest 5% of the calls get hedged. Only the latencies of the winning calls are
+ * being recorded. The number of hedged calls is limited to a ratio of all calls (10% by
+ * default, at most 100%), so hedging can never more than double the load on the backend. A
+ * policy is meant to be shared by all invocations of the same endpoint, it also collects
+ * statistics about how often the hedged call won.
+ * </p>
+ * <h3>Example:</h3>
+ * <pre>
+ *         HedgePolicy hedging = new HedgePolicy().withPercentile(95).withMaxHedgeRatio(0.05);
+ *
+ *         ServiceInvocation.createForCall("Search ...", () -> myService.search(text))
+ *              .withHedging(hedging)
+ *              .onSuccess(result -> listView.getItems().setAll(result)).execute();
+ *     </pre>
+ *
+ * @see ServiceInvocation#withHedging(HedgePolicy)
+ */
+public final class HedgePolicy {
+
+    private long delayNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private double percentile;
+
+    private long minSamples = 20;
+
+    private double maxHedgeRatio = 0.1;
+
+    // statistics, guarded by "this"
+
+    private long callCount;
+
+    private long hedgeCount;
+
+    private long hedgeWinCount;
+
+    private long deniedCount;
+
+    /**
+     * Constructs a new policy with a fixed delay of 100 milliseconds and a maximum hedge ratio
+     * of 10%.
+     */
+    public HedgePolicy() {
+    }
+
+    /**
+     * Sets the time after which a second call will be started. When a percentile has been set this
+     * delay will only be used as long as not enough latencies have been observed.
+     *
+     * @param delay the delay
+     * @return the policy
+     */
+    public synchronized HedgePolicy withDelay(Duration delay) {
+        Objects.requireNonNull(delay, "delay can not be null");
+        if (delay.isNegative()) {
+            throw new IllegalArgumentException("delay can not be negative but was " + delay);
+        }
+        this.delayNanos = delay.toNanos();
+        return this;
+    }
+
+    /**
+     * Sets the percentile of the observed latencies after which a second call will be started,
+     * e.g. 95. The latencies are taken from the "network" histogram of the invocation, see
+     * {@link ServiceInvocationMetrics.Phase#NETWORK}. A value of 0 disables the percentile and
+     * the fixed delay will be used.
+     *
+     * @param percentile the percentile between 0 and 100
+     * @return the policy
+     */
+    public synchronized HedgePolicy withPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100 but was " + percentile);
+        }
+        this.percentile = percentile;
+        return this;
+    }
+
+    /**
+     * Sets the number of latencies that need to be observed before the percentile will be used
+     * instead of the fixed delay. The default is 20.
+     *
+     * @param minSamples the minimum number of observed latencies
+     * @return the policy
+     */
+    public synchronized HedgePolicy withMinSamples(long minSamples) {
+        if (minSamples < 1) {
+            throw new IllegalArgumentException("min samples must be at least 1 but was " + minSamples);
+        }
+        this.minSamples = minSamples;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of hedged calls in relation to the number of calls, e.g. 0.1 for
+     * one hedged call per ten calls. The value can not be higher than 1, which would allow hedging
+     * every call and thus doubling the load.
+     *
+     * @param ratio the ratio between 0 and 1
+     * @return the policy
+     */
+    public synchronized HedgePolicy withMaxHedgeRatio(double ratio) {
+        if (ratio < 0 || ratio > 1) {
+            throw new IllegalArgumentException("ratio must be between 0 and 1 but was " + ratio);
+        }
+        this.maxHedgeRatio = ratio;
+        return this;
+    }
+
+    public synchronized Duration getDelay() {
+        return Duration.ofNanos(delayNanos);
+    }
+
+    public synchronized double getPercentile() {
+        return percentile;
+    }
+
+    public synchronized long getMinSamples() {
+        return minSamples;
+    }
+
+    public synchronized double getMaxHedgeRatio() {
+        return maxHedgeRatio;
+    }
+
+    /**
+     * Returns the time after which a second call should be started.
+     *
+     * @param observed the latencies observed so far or null
+     * @return the delay in nanoseconds
+     */
+    synchronized long getDelayNanos(LatencyHistogram observed) {
+        if (percentile > 0 && observed != null && observed.getCount() >= minSamples) {
+            return (long) observed.getValueAtPercentile(percentile, TimeUnit.NANOSECONDS);
+        }
+        return delayNanos;
+    }
+
+    /**
+     * Records a call that might get hedged.
+     */
+    synchronized void recordCall() {
+        callCount++;
+    }
+
+    /**
+     * Tries to acquire the permission for a hedged call.
+     *
+     * @return true if the hedged call may be started
+     */
+    synchronized boolean tryAcquireHedge() {
+        if (hedgeCount + 1 <= maxHedgeRatio * callCount) {
+            hedgeCount++;
+            return true;
+        }
+        deniedCount++;
+        return false;
+    }
+
+    /**
+     * Records that the hedged call responded first.
+     */
+    synchronized void recordHedgeWin() {
+        hedgeWinCount++;
+    }
+
+    /**
+     * Returns the number of calls made with this policy, not counting the hedged calls.
+     *
+     * @return the number of calls
+     */
+    public synchronized long getCallCount() {
+        return callCount;
+    }
+
+    /**
+     * Returns the number of hedged calls that have been started.
+     *
+     * @return the number of hedged calls
+     */
+    public synchronized long getHedgeCount() {
+        return hedgeCount;
+    }
+
+    /**
+     * Returns the number of hedged calls that responded before the original call.
+     *
+     * @return the number of won hedges
+     */
+    public synchronized long getHedgeWinCount() {
+        return hedgeWinCount;
+    }
+
+    /**
+     * Returns the number of hedged calls that were not started because the maximum hedge ratio
+     * had been reached.
+     *
+     * @return the number of denied hedges
+     */
+    public synchronized long getDeniedCount() {
+        return deniedCount;
+    }
+
+    /**
+     * Returns the ratio of won hedges to started hedges.
+     *
+     * @return the win rate between 0 and 1
+     */
+    public synchronized double getHedgeWinRate() {
+        return hedgeCount == 0 ? 0 : (double) hedgeWinCount / hedgeCount;
+    }
+}
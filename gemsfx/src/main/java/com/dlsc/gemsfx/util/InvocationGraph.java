@@ -0,0 +1,697 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javafx.concurrent.Worker;
+import retrofit2.Call;
+import retrofit2.Response;
+
+/**
+ * A graph of dependent service calls, e.g. "load the user, then load the permissions and the
+ * settings of the user in parallel, then load the dashboard". Each node of the graph creates its
+ * Retrofit call from the results of the nodes it depends on. A node gets started on a background
+ * thread as soon as all of its dependencies have succeeded, so independent nodes run concurrently.
+ * The intermediate results are passed from one background thread to the next, only the final
+ * results get published on the UI thread, in a single batch.
+ * <p>
+ * Every node is called via its own {@link ServiceInvocation}, named after the node, so the
+ * scheduler, retry policy, circuit breaker, deadline, metrics and events apply to the nodes just
+ * like to any other invocation. The invocations can be configured via
+ * {@link #withInvocationSetup(Consumer)}, their handlers are not being called.
+ * </p>
+ * <p>
+ * The graph is a {@link Worker}, its "work done" is the number of completed nodes. When a node
+ * fails the graph fails, the calls still running get cancelled and no further nodes get started.
+ * The results contain the timing of every node and the critical path, i.e. the chain of nodes
+ * that determined the total time of the graph.
+ * </p>
+ * <h3>Example:</h3>
+ * <pre>
+ *         InvocationGraph graph = InvocationGraph.create("Load dashboard ...");
+ *
+ *         InvocationGraph.Node&lt;User&gt; user = graph.add("user", results -> myService.loadUser(id));
+ *         InvocationGraph.Node&lt;Permissions&gt; permissions = graph.add("permissions", results -> myService.loadPermissions(results.get(user)), user);
+ *         InvocationGraph.Node&lt;Settings&gt; settings = graph.add("settings", results -> myService.loadSettings(results.get(user)), user);
+ *         InvocationGraph.Node&lt;Dashboard&gt; dashboard = graph.add("dashboard", results -> myService.loadDashboard(results.get(permissions), results.get(settings)), permissions, settings);
+ *
+ *         graph.onSuccess(results -> view.show(results.get(dashboard))).execute();
+ *     </pre>
+ */
+public final class InvocationGraph extends InvocationWorker<InvocationGraph.Results> {
+
+    private static final Logger LOG = Logger.getLogger(InvocationGraph.class.getName());
+
+    /**
+     * Creates the Retrofit call of a node.
+     *
+     * @param <T> the type of the result object wrapped inside the retrofit response
+     */
+    @FunctionalInterface
+    public interface NodeCall<T> {
+
+        /**
+         * Creates the call, invoked on a background thread once all dependencies of the node
+         * have succeeded, and again for every retry of the node invocation.
+         *
+         * @param results the results of the graph, containing the results of all dependencies
+         * @return the call
+         * @throws Exception if the call can not be created
+         */
+        Call<T> create(Results results) throws Exception;
+    }
+
+    /**
+     * A node of the graph.
+     *
+     * @param <T> the type of the result of the node
+     */
+    public static final class Node<T> {
+
+        private final InvocationGraph graph;
+
+        private final int index;
+
+        private final String name;
+
+        private final NodeCall<T> call;
+
+        private final List<Node<?>> dependencies;
+
+        private final List<Node<?>> dependents = new ArrayList<>();
+
+        private Node(InvocationGraph graph, int index, String name, NodeCall<T> call, List<Node<?>> dependencies) {
+            this.graph = graph;
+            this.index = index;
+            this.name = name;
+            this.call = call;
+            this.dependencies = dependencies;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the nodes this node depends on.
+         *
+         * @return the dependencies
+         */
+        public List<Node<?>> getDependencies() {
+            return Collections.unmodifiableList(dependencies);
+        }
+
+        @Override
+        public String toString() {
+            return "Node{" + name + "}";
+        }
+    }
+
+    private final String name;
+
+    private final List<Node<?>> nodes = new ArrayList<>();
+
+    private Executor executor;
+
+    private Consumer<ServiceInvocation<?>> invocationSetup;
+
+    private Consumer<Results> onSuccess;
+
+    private BiConsumer<String, Results> onFailure;
+
+    private Runnable onFinally;
+
+    // execution state, guarded by "this"
+
+    private Results results;
+
+    private int[] pendingDependencies;
+
+    private ServiceInvocation<?>[] invocations;
+
+    private int completedCount;
+
+    private boolean done;
+
+    private long startedAt;
+
+    private CompletableFuture<Results> result;
+
+    private InvocationGraph(String name) {
+        super(Objects.requireNonNull(name, "graph name can not be null"), "Graph");
+
+        this.name = name;
+    }
+
+    /**
+     * Creates a new, empty graph.
+     *
+     * @param name the name of the graph
+     * @return the graph
+     */
+    public static InvocationGraph create(String name) {
+        return new InvocationGraph(name);
+    }
+
+    /**
+     * Returns the name of the graph.
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Adds a node to the graph. The dependencies need to have been added before, which makes
+     * cycles impossible.
+     *
+     * @param name         the name of the node
+     * @param call         the function creating the call of the node
+     * @param dependencies the nodes that need to succeed before this node can be started
+     * @param <T>          the type of the result of the node
+     * @return the new node
+     */
+    public synchronized <T> Node<T> add(String name, NodeCall<T> call, Node<?>... dependencies) {
+        Objects.requireNonNull(name, "node name can not be null");
+        Objects.requireNonNull(call, "node call can not be null");
+
+        if (result != null) {
+            throw new IllegalStateException("nodes can not be added to a graph that has already been executed");
+        }
+
+        for (Node<?> dependency : dependencies) {
+            if (dependency.graph != this) {
+                throw new IllegalArgumentException("dependency " + dependency.getName() + " is not part of graph " + this.name);
+            }
+        }
+
+        Node<T> node = new Node<>(this, nodes.size(), name, call, Arrays.asList(dependencies.clone()));
+        for (Node<?> dependency : dependencies) {
+            dependency.dependents.add(node);
+        }
+        nodes.add(node);
+        return node;
+    }
+
+    /**
+     * Returns the nodes of the graph.
+     *
+     * @return the nodes
+     */
+    public synchronized List<Node<?>> getNodes() {
+        return Collections.unmodifiableList(new ArrayList<>(nodes));
+    }
+
+    /**
+     * Sets the executor used for running the nodes. By default the nodes run on the executor
+     * their invocations would use when executed on their own, i.e. the scheduler or the
+     * executor strategy of the invocation.
+     *
+     * @param executor the executor or null
+     * @return the graph
+     */
+    public InvocationGraph withExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Sets a consumer that gets invoked for the invocation of every node before it gets
+     * executed, e.g. for configuring a timeout, retries or a scheduler. The name of the
+     * invocation is the name of the node. The handlers of the invocation (on success, on
+     * failure, ...) will not be called, the results get delivered to the handlers of the graph
+     * instead. Invocations appending their requests to an {@link OfflineQueue} fail the graph
+     * when the backend is not available, as their nodes have no result.
+     *
+     * @param invocationSetup the setup of the node invocations
+     * @return the graph
+     */
+    public InvocationGraph withInvocationSetup(Consumer<ServiceInvocation<?>> invocationSetup) {
+        this.invocationSetup = invocationSetup;
+        return this;
+    }
+
+    /**
+     * A consumer that will be invoked on the UI thread once all nodes have succeeded.
+     *
+     * @param onSuccess the "on success" handler
+     * @return the graph
+     */
+    public InvocationGraph onSuccess(Consumer<Results> onSuccess) {
+        this.onSuccess = onSuccess;
+        return this;
+    }
+
+    /**
+     * A consumer that will be invoked on the UI thread when a node has failed. The consumer will
+     * receive the name of the graph and the results, which contain the failed node.
+     *
+     * @param onFailure the "on failure" handler
+     * @return the graph
+     */
+    public InvocationGraph onFailure(BiConsumer<String, Results> onFailure) {
+        this.onFailure = onFailure;
+        return this;
+    }
+
+    /**
+     * A runnable that will be invoked after the graph has completed, no matter if it succeeded,
+     * failed, or got cancelled.
+     *
+     * @param onFinally the runnable
+     * @return the graph
+     */
+    public InvocationGraph onFinally(Runnable onFinally) {
+        this.onFinally = onFinally;
+        return this;
+    }
+
+    /**
+     * Executes the graph, starting with the nodes without dependencies.
+     *
+     * @return a completable future object usable for chaining, completed with the results
+     */
+    public synchronized CompletableFuture<Results> execute() {
+        if (result != null) {
+            throw new IllegalStateException("graph has already been executed: " + name);
+        }
+
+        result = new CompletableFuture<>();
+
+        int size = nodes.size();
+
+        results = new Results(new ArrayList<>(nodes));
+        pendingDependencies = new int[size];
+        invocations = new ServiceInvocation<?>[size];
+        startedAt = System.nanoTime();
+
+        started(size);
+
+        LOG.fine("executing invocation graph " + name + " with " + size + " node(s)");
+
+        if (size == 0) {
+            finish(State.SUCCEEDED);
+            return result;
+        }
+
+        for (Node<?> node : nodes) {
+            pendingDependencies[node.index] = node.dependencies.size();
+        }
+
+        for (Node<?> node : nodes) {
+            if (node.dependencies.isEmpty()) {
+                start(node);
+            }
+        }
+
+        return result;
+    }
+
+    private <T> void start(Node<T> node) {
+        results.states[node.index] = State.SCHEDULED;
+
+        Results liveResults = results;
+        ServiceInvocation<T> invocation = ServiceInvocation.createForCall(node.getName(), () -> node.call.create(liveResults));
+        if (invocationSetup != null) {
+            invocationSetup.accept(invocation);
+        }
+
+        invocations[node.index] = invocation;
+
+        Executor target = executor != null ? executor : invocation.resolveExecutor();
+
+        invocation.submitDetached(target, () -> run(node, invocation), e -> rejected(node, e));
+    }
+
+    private synchronized void rejected(Node<?> node, RejectedExecutionException e) {
+        LOG.log(Level.SEVERE, "executor rejected node " + node.getName() + " of graph " + name, e);
+        if (!done) {
+            results.exceptions[node.index] = e;
+            results.states[node.index] = State.FAILED;
+            fail(node);
+        }
+    }
+
+    private <T> void run(Node<T> node, ServiceInvocation<T> invocation) {
+        int index = node.index;
+
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            results.states[index] = State.RUNNING;
+            results.startTimes[index] = System.nanoTime();
+        }
+
+        Response<T> response = null;
+        Exception error = null;
+
+        try {
+            response = invocation.executeDetached();
+            if (response == null) {
+                error = new IllegalStateException("request of node " + node.getName() + " has been queued for later delivery");
+            }
+        } catch (Exception e) {
+            error = e;
+        }
+
+        synchronized (this) {
+            if (done) {
+                // the published results have been frozen already
+                return;
+            }
+
+            results.endTimes[index] = System.nanoTime();
+            results.responses[index] = response;
+            completedCount++;
+
+            if (error == null && response.isSuccessful()) {
+                results.states[index] = State.SUCCEEDED;
+                results.values[index] = response.body();
+                succeeded(node);
+            } else {
+                if (error != null) {
+                    LOG.log(Level.SEVERE, "node " + node.getName() + " of graph " + name + " failed", error);
+                } else {
+                    LOG.severe("node " + node.getName() + " of graph " + name + " was not successful, status code " + response.code());
+                }
+                results.states[index] = State.FAILED;
+                results.exceptions[index] = error;
+                fail(node);
+            }
+
+            publishProgress(completedCount, nodes.size(), done);
+        }
+    }
+
+    private void succeeded(Node<?> node) {
+        if (completedCount == nodes.size()) {
+            finish(State.SUCCEEDED);
+            return;
+        }
+
+        for (Node<?> dependent : node.dependents) {
+            if (--pendingDependencies[dependent.index] == 0) {
+                start(dependent);
+            }
+        }
+    }
+
+    private void fail(Node<?> node) {
+        if (done) {
+            return;
+        }
+
+        results.failedNode = node;
+
+        finish(State.FAILED);
+    }
+
+    /*
+     * Completes the graph, cancels the calls still running and publishes the results in a single
+     * batch on the UI thread.
+     */
+    private void finish(State finalState) {
+        done = true;
+
+        cancelRunning();
+
+        results.totalTime = System.nanoTime() - startedAt;
+        results.computeCriticalPath();
+
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.fine("invocation graph " + name + " completed in " + results.getTotalTime().toMillis() + "ms, critical path: " + results.getCriticalPath());
+        }
+
+        Results finalResults = results.freeze();
+        Consumer<Results> onSuccessHandler = onSuccess;
+        BiConsumer<String, Results> onFailureHandler = onFailure;
+
+        Runnable handler = null;
+        if (finalState == State.SUCCEEDED && onSuccessHandler != null) {
+            handler = () -> onSuccessHandler.accept(finalResults);
+        } else if (finalState != State.SUCCEEDED && onFailureHandler != null) {
+            handler = () -> onFailureHandler.accept(name, finalResults);
+        }
+
+        publishResults(finalResults, finalState, finalResults.getException(finalResults.getFailedNode()), handler, result, onFinally);
+    }
+
+    private void cancelRunning() {
+        for (ServiceInvocation<?> invocation : invocations) {
+            if (invocation != null) {
+                invocation.cancel();
+            }
+        }
+    }
+
+    /**
+     * Cancels the graph. Calls that are still running get cancelled, no further nodes get started.
+     *
+     * @return true if the graph was cancelled, false if it had not been executed or had already completed
+     */
+    @Override
+    public synchronized boolean cancel() {
+        if (result == null || done) {
+            return false;
+        }
+
+        done = true;
+
+        LOG.fine("cancelling invocation graph " + name);
+
+        cancelRunning();
+
+        publishCancellation(result, onFinally);
+
+        return true;
+    }
+
+    /**
+     * The results and the timing of the nodes of a graph. While the graph is running, node calls
+     * can only access the results of their own dependencies. The results passed to the handlers
+     * of the graph are a snapshot taken when the graph completed, they do not change anymore.
+     * Nodes that were still running at that time have the state {@link State#RUNNING}.
+     */
+    public static final class Results {
+
+        private final List<Node<?>> nodes;
+
+        private final Object[] values;
+
+        private final Response<?>[] responses;
+
+        private final State[] states;
+
+        private final Exception[] exceptions;
+
+        private final long[] startTimes;
+
+        private final long[] endTimes;
+
+        private Node<?> failedNode;
+
+        private long totalTime;
+
+        private List<Node<?>> criticalPath = Collections.emptyList();
+
+        private Results(List<Node<?>> nodes) {
+            int size = nodes.size();
+
+            this.nodes = Collections.unmodifiableList(nodes);
+            this.values = new Object[size];
+            this.responses = new Response<?>[size];
+            this.states = new State[size];
+            this.exceptions = new Exception[size];
+            this.startTimes = new long[size];
+            this.endTimes = new long[size];
+
+            Arrays.fill(states, State.READY);
+        }
+
+        private Results(Results results) {
+            this.nodes = results.nodes;
+            this.values = results.values.clone();
+            this.responses = results.responses.clone();
+            this.states = results.states.clone();
+            this.exceptions = results.exceptions.clone();
+            this.startTimes = results.startTimes.clone();
+            this.endTimes = results.endTimes.clone();
+            this.failedNode = results.failedNode;
+            this.totalTime = results.totalTime;
+            this.criticalPath = results.criticalPath;
+        }
+
+        /*
+         * Returns a copy that is not affected by nodes completing after the graph.
+         */
+        private Results freeze() {
+            return new Results(this);
+        }
+
+        private int indexOf(Node<?> node) {
+            if (node.index >= nodes.size() || nodes.get(node.index) != node) {
+                throw new IllegalArgumentException("node is not part of the graph: " + node.getName());
+            }
+            return node.index;
+        }
+
+        /**
+         * Returns the result of the given node.
+         *
+         * @param node the node
+         * @param <T>  the type of the result
+         * @return the result
+         * @throws IllegalStateException if the node has not succeeded
+         */
+        @SuppressWarnings("unchecked")
+        public <T> T get(Node<T> node) {
+            int index = indexOf(node);
+            synchronized (node.graph) {
+                if (states[index] != State.SUCCEEDED) {
+                    throw new IllegalStateException("node " + node.getName() + " has not succeeded, state = " + states[index]);
+                }
+                return (T) values[index];
+            }
+        }
+
+        /**
+         * Returns the state of the given node.
+         *
+         * @param node the node
+         * @return the state
+         */
+        public State getState(Node<?> node) {
+            int index = indexOf(node);
+            synchronized (node.graph) {
+                return states[index];
+            }
+        }
+
+        /**
+         * Returns the response received by the given node.
+         *
+         * @param node the node
+         * @param <T>  the type of the result
+         * @return the response or null
+         */
+        @SuppressWarnings("unchecked")
+        public <T> Response<T> getResponse(Node<T> node) {
+            int index = indexOf(node);
+            synchronized (node.graph) {
+                return (Response<T>) responses[index];
+            }
+        }
+
+        /**
+         * Returns the exception thrown by the call of the given node.
+         *
+         * @param node the node or null
+         * @return the exception or null
+         */
+        public Exception getException(Node<?> node) {
+            if (node == null) {
+                return null;
+            }
+            int index = indexOf(node);
+            synchronized (node.graph) {
+                return exceptions[index];
+            }
+        }
+
+        /**
+         * Returns the node that caused the graph to fail.
+         *
+         * @return the failed node or null
+         */
+        public Node<?> getFailedNode() {
+            return failedNode;
+        }
+
+        /**
+         * Returns the time the call of the given node took.
+         *
+         * @param node the node
+         * @return the duration or zero if the node has not completed
+         */
+        public Duration getDuration(Node<?> node) {
+            int index = indexOf(node);
+            synchronized (node.graph) {
+                return endTimes[index] == 0 ? Duration.ZERO : Duration.ofNanos(endTimes[index] - startTimes[index]);
+            }
+        }
+
+        /**
+         * Returns the time between the execution of the graph and its completion.
+         *
+         * @return the total time
+         */
+        public Duration getTotalTime() {
+            return Duration.ofNanos(totalTime);
+        }
+
+        /**
+         * Returns the critical path, i.e. the chain of nodes, starting with a node without
+         * dependencies, in which each node was the last dependency of its successor to complete.
+         * Speeding up any other node would not have reduced the total time.
+         *
+         * @return the nodes on the critical path
+         */
+        public List<Node<?>> getCriticalPath() {
+            return criticalPath;
+        }
+
+        /**
+         * Returns the sum of the call durations of the nodes on the critical path. The difference
+         * to the total time is the time spent between the calls, e.g. waiting for a thread.
+         *
+         * @return the time spent in the calls of the critical path
+         */
+        public Duration getCriticalPathTime() {
+            long nanos = 0;
+            for (Node<?> node : criticalPath) {
+                nanos += endTimes[node.index] - startTimes[node.index];
+            }
+            return Duration.ofNanos(nanos);
+        }
+
+        private void computeCriticalPath() {
+            Node<?> last = null;
+            for (Node<?> node : nodes) {
+                if (endTimes[node.index] != 0 && (last == null || endTimes[node.index] - endTimes[last.index] > 0)) {
+                    last = node;
+                }
+            }
+
+            List<Node<?>> path = new ArrayList<>();
+            while (last != null) {
+                path.add(0, last);
+
+                Node<?> previous = null;
+                for (Node<?> dependency : last.dependencies) {
+                    if (endTimes[dependency.index] != 0 && (previous == null || endTimes[dependency.index] - endTimes[previous.index] > 0)) {
+                        previous = dependency;
+                    }
+                }
+                last = previous;
+            }
+
+            criticalPath = Collections.unmodifiableList(path);
+        }
+    }
+}
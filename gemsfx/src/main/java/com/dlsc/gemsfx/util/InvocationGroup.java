@@ -0,0 +1,486 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import javafx.concurrent.Worker;
+import retrofit2.Response;
+
+/**
+ * A group of independent service invocations that get executed in parallel, e.g. all the
+ * resources needed by a screen. The group itself is a {@link Worker}, its "work done" is the
+ * number of completed invocations, so it can be bound to a single progress indicator. Instead of
+ * one handler per invocation the group calls a single handler with the results of all
+ * invocations, on the UI thread.
+ * <p>
+ * In {@link Completion#ALL_OF} mode (the default) the group succeeds when all invocations have
+ * succeeded and fails as soon as one of them fails, in which case the remaining invocations get
+ * cancelled. In {@link Completion#ANY_OF} mode the group succeeds with the first invocation that
+ * succeeds and cancels the others, it only fails when all invocations have failed.
+ * </p>
+ * <h3>Example:</h3>
+ * <pre>
+ *         ServiceInvocation&lt;Customer&gt; customer = ServiceInvocation.createForCall("Load customer ...", () -> myService.loadCustomer(id));
+ *         ServiceInvocation&lt;List&lt;Order&gt;&gt; orders = ServiceInvocation.createForCall("Load orders ...", () -> myService.loadOrders(id));
+ *
+ *         InvocationGroup.create("Load customer view ...")
+ *              .add(customer)
+ *              .add(orders)
+ *              .withMaxConcurrency(4)
+ *              .onSuccess(results -> view.show(results.get(customer), results.get(orders)))
+ *              .execute();
+ *     </pre>
+ * The individual invocations can still have their own handlers, they will be called as usual.
+ */
+public final class InvocationGroup extends InvocationWorker<InvocationGroup.Results> {
+
+    private static final Logger LOG = Logger.getLogger(InvocationGroup.class.getName());
+
+    /**
+     * The conditions under which a group completes.
+     */
+    public enum Completion {
+
+        /**
+         * The group succeeds when all invocations have succeeded.
+         */
+        ALL_OF,
+
+        /**
+         * The group succeeds when the first invocation has succeeded.
+         */
+        ANY_OF
+    }
+
+    private final String name;
+
+    private final List<ServiceInvocation<?>> invocations = new ArrayList<>();
+
+    private Completion completion = Completion.ALL_OF;
+
+    private int maxConcurrency = Integer.MAX_VALUE;
+
+    private Consumer<Results> onSuccess;
+
+    private BiConsumer<String, Results> onFailure;
+
+    private Runnable onFinally;
+
+    // execution state, guarded by "this"
+
+    private Response<?>[] responses;
+
+    private State[] outcomes;
+
+    private Throwable[] exceptions;
+
+    private int nextIndex;
+
+    private int runningCount;
+
+    private int completedCount;
+
+    private boolean done;
+
+    private CompletableFuture<Results> result;
+
+    private InvocationGroup(String name) {
+        super(Objects.requireNonNull(name, "group name can not be null"), "Group");
+
+        this.name = name;
+    }
+
+    /**
+     * Creates a new, empty group.
+     *
+     * @param name the name of the group
+     * @return the group
+     */
+    public static InvocationGroup create(String name) {
+        return new InvocationGroup(name);
+    }
+
+    /**
+     * Returns the name of the group.
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Adds an invocation to the group. The invocation must not have been executed yet, it will
+     * be executed by the group.
+     *
+     * @param invocation the invocation
+     * @return the group
+     */
+    public InvocationGroup add(ServiceInvocation<?> invocation) {
+        Objects.requireNonNull(invocation, "invocation can not be null");
+        if (result != null) {
+            throw new IllegalStateException("invocations can not be added to a group that has already been executed");
+        }
+        invocations.add(invocation);
+        return this;
+    }
+
+    /**
+     * Returns the invocations of the group.
+     *
+     * @return the invocations
+     */
+    public List<ServiceInvocation<?>> getInvocations() {
+        return Collections.unmodifiableList(invocations);
+    }
+
+    /**
+     * Sets the condition under which the group completes. The default is {@link Completion#ALL_OF}.
+     *
+     * @param completion the completion mode
+     * @return the group
+     */
+    public InvocationGroup withCompletion(Completion completion) {
+        this.completion = Objects.requireNonNull(completion, "completion can not be null");
+        return this;
+    }
+
+    public Completion getCompletion() {
+        return completion;
+    }
+
+    /**
+     * Sets the maximum number of invocations of this group running at the same time. By default
+     * all invocations will be executed right away.
+     *
+     * @param maxConcurrency the maximum number of running invocations
+     * @return the group
+     */
+    public InvocationGroup withMaxConcurrency(int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("max concurrency must be at least 1 but was " + maxConcurrency);
+        }
+        this.maxConcurrency = maxConcurrency;
+        return this;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * A consumer that will be invoked once when the group has succeeded. The consumer will receive
+     * the results of all invocations.
+     *
+     * @param onSuccess the "on success" handler
+     * @return the group
+     */
+    public InvocationGroup onSuccess(Consumer<Results> onSuccess) {
+        this.onSuccess = onSuccess;
+        return this;
+    }
+
+    /**
+     * A consumer that will be invoked once when the group has failed. The consumer will receive
+     * the name of the group and the results of all invocations, which can be used to find out
+     * which invocation(s) failed.
+     *
+     * @param onFailure the "on failure" handler
+     * @return the group
+     */
+    public InvocationGroup onFailure(BiConsumer<String, Results> onFailure) {
+        this.onFailure = onFailure;
+        return this;
+    }
+
+    /**
+     * A runnable that will be invoked after the group has completed, no matter if it succeeded,
+     * failed, or got cancelled.
+     *
+     * @param onFinally the runnable
+     * @return the group
+     */
+    public InvocationGroup onFinally(Runnable onFinally) {
+        this.onFinally = onFinally;
+        return this;
+    }
+
+    /**
+     * Executes the invocations of the group.
+     *
+     * @return a completable future object usable for chaining, completed with the results
+     */
+    public synchronized CompletableFuture<Results> execute() {
+        if (result != null) {
+            throw new IllegalStateException("group has already been executed: " + name);
+        }
+
+        result = new CompletableFuture<>();
+
+        int size = invocations.size();
+
+        responses = new Response<?>[size];
+        outcomes = new State[size];
+        exceptions = new Throwable[size];
+        Arrays.fill(outcomes, State.READY);
+
+        started(size);
+
+        LOG.fine("executing invocation group " + name + " with " + size + " invocation(s)");
+
+        if (size == 0) {
+            finish(completion == Completion.ALL_OF ? State.SUCCEEDED : State.FAILED);
+        } else {
+            startNext();
+        }
+
+        return result;
+    }
+
+    private void startNext() {
+        while (!done && runningCount < maxConcurrency && nextIndex < invocations.size()) {
+            int index = nextIndex++;
+            runningCount++;
+            outcomes[index] = State.RUNNING;
+            start(index, invocations.get(index));
+        }
+    }
+
+    private <T> void start(int index, ServiceInvocation<T> invocation) {
+        invocation.setResponseListener(response -> {
+            synchronized (this) {
+                responses[index] = response;
+            }
+        });
+
+        invocation.execute().whenComplete((ignored, ex) -> completed(index, ex));
+    }
+
+    private synchronized void completed(int index, Throwable ex) {
+        runningCount--;
+        completedCount++;
+
+        ServiceInvocation<?> invocation = invocations.get(index);
+        Response<?> response = responses[index];
+
+        if (ex != null) {
+            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            outcomes[index] = cause instanceof CancellationException ? State.CANCELLED : State.FAILED;
+            exceptions[index] = cause instanceof CancellationException ? null : cause;
+        } else if (response != null && response.isSuccessful() && !invocation.isSimulatingFailure()) {
+            outcomes[index] = State.SUCCEEDED;
+        } else {
+            outcomes[index] = State.FAILED;
+        }
+
+        int completed = completedCount;
+        int size = invocations.size();
+        State outcome = outcomes[index];
+
+        if (done) {
+            // an invocation that was cancelled by the group
+        } else if (completion == Completion.ALL_OF) {
+            if (outcome != State.SUCCEEDED) {
+                LOG.fine("invocation " + invocation.getName() + " of group " + name + " did not succeed, cancelling the group");
+                finish(State.FAILED);
+            } else if (completed == size) {
+                finish(State.SUCCEEDED);
+            }
+        } else {
+            if (outcome == State.SUCCEEDED) {
+                finish(State.SUCCEEDED);
+            } else if (completed == size) {
+                finish(State.FAILED);
+            }
+        }
+
+        publishProgress(completed, size, done);
+
+        startNext();
+    }
+
+    /*
+     * Completes the group, cancels all invocations still running and calls the handlers in a
+     * single batch on the UI thread.
+     */
+    private void finish(State finalState) {
+        done = true;
+
+        cancelRunning();
+
+        Results results = new Results(invocations, responses, outcomes, exceptions);
+
+        Throwable firstException = Arrays.stream(exceptions).filter(Objects::nonNull).findFirst().orElse(null);
+
+        Consumer<Results> onSuccessHandler = onSuccess;
+        BiConsumer<String, Results> onFailureHandler = onFailure;
+
+        Runnable handler = null;
+        if (finalState == State.SUCCEEDED && onSuccessHandler != null) {
+            handler = () -> onSuccessHandler.accept(results);
+        } else if (finalState != State.SUCCEEDED && onFailureHandler != null) {
+            handler = () -> onFailureHandler.accept(name, results);
+        }
+
+        publishResults(results, finalState, firstException, handler, result, onFinally);
+    }
+
+    private void cancelRunning() {
+        for (int i = 0; i < nextIndex; i++) {
+            if (outcomes[i] == State.RUNNING) {
+                invocations.get(i).cancel();
+            }
+        }
+    }
+
+    /**
+     * Cancels the group and all of its invocations that are still running. Invocations that
+     * have not been started yet will not be started anymore.
+     *
+     * @return true if the group was cancelled, false if it had not been executed or had already completed
+     */
+    @Override
+    public synchronized boolean cancel() {
+        if (result == null || done) {
+            return false;
+        }
+
+        done = true;
+
+        LOG.fine("cancelling invocation group " + name);
+
+        cancelRunning();
+
+        publishCancellation(result, onFinally);
+
+        return true;
+    }
+
+    /**
+     * The results of the invocations of a group.
+     */
+    public static final class Results {
+
+        private final List<ServiceInvocation<?>> invocations;
+
+        private final Response<?>[] responses;
+
+        private final State[] outcomes;
+
+        private final Throwable[] exceptions;
+
+        private Results(List<ServiceInvocation<?>> invocations, Response<?>[] responses, State[] outcomes, Throwable[] exceptions) {
+            this.invocations = Collections.unmodifiableList(new ArrayList<>(invocations));
+            this.responses = responses.clone();
+            this.outcomes = outcomes.clone();
+            this.exceptions = exceptions.clone();
+        }
+
+        private int indexOf(ServiceInvocation<?> invocation) {
+            for (int i = 0; i < invocations.size(); i++) {
+                if (invocations.get(i) == invocation) {
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException("invocation is not part of the group: " + invocation.getName());
+        }
+
+        /**
+         * Returns the invocations of the group.
+         *
+         * @return the invocations
+         */
+        public List<ServiceInvocation<?>> getInvocations() {
+            return invocations;
+        }
+
+        /**
+         * Returns the result of the given invocation.
+         *
+         * @param invocation the invocation
+         * @param <T>        the type of the result
+         * @return the result or null if the invocation did not succeed
+         */
+        @SuppressWarnings("unchecked")
+        public <T> T get(ServiceInvocation<T> invocation) {
+            int index = indexOf(invocation);
+            return outcomes[index] == State.SUCCEEDED ? (T) responses[index].body() : null;
+        }
+
+        /**
+         * Returns the outcome of the given invocation. Invocations that were not started have
+         * the state {@link State#READY}, invocations that were still running when the group
+         * completed have the state {@link State#RUNNING}.
+         *
+         * @param invocation the invocation
+         * @return the state of the invocation
+         */
+        public State getState(ServiceInvocation<?> invocation) {
+            return outcomes[indexOf(invocation)];
+        }
+
+        /**
+         * Returns the response of the given invocation.
+         *
+         * @param invocation the invocation
+         * @param <T>        the type of the result
+         * @return the response or null if no response was received
+         */
+        @SuppressWarnings("unchecked")
+        public <T> Response<T> getResponse(ServiceInvocation<T> invocation) {
+            return (Response<T>) responses[indexOf(invocation)];
+        }
+
+        /**
+         * Returns the exception of the given invocation.
+         *
+         * @param invocation the invocation
+         * @return the exception or null
+         */
+        public Throwable getException(ServiceInvocation<?> invocation) {
+            return exceptions[indexOf(invocation)];
+        }
+
+        /**
+         * Returns the invocations that succeeded.
+         *
+         * @return the successful invocations
+         */
+        public List<ServiceInvocation<?>> getSucceeded() {
+            List<ServiceInvocation<?>> succeeded = new ArrayList<>();
+            for (int i = 0; i < invocations.size(); i++) {
+                if (outcomes[i] == State.SUCCEEDED) {
+                    succeeded.add(invocations.get(i));
+                }
+            }
+            return succeeded;
+        }
+
+        /**
+         * Returns the invocations that failed, i.e. did not receive a successful response.
+         *
+         * @return the failed invocations
+         */
+        public List<ServiceInvocation<?>> getFailed() {
+            List<ServiceInvocation<?>> failed = new ArrayList<>();
+            for (int i = 0; i < invocations.size(); i++) {
+                if (outcomes[i] == State.FAILED) {
+                    failed.add(invocations.get(i));
+                }
+            }
+            return failed;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.util.Objects;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import retrofit2.HttpException;
+import retrofit2.Response;
+
+/**
+ * The publisher returned by {@link ServiceInvocation#toPublisher()}. Emits at most a single
+ * item, the body of a successful response. The invocation gets executed on its executor once
+ * the subscriber requests an item.
+ *
+ * @param <T> the type of the response body
+ */
+final class InvocationPublisher<T> implements Flow.Publisher<T> {
+
+    private static final Logger LOG = Logger.getLogger(InvocationPublisher.class.getName());
+
+    private final ServiceInvocation<T> invocation;
+
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    InvocationPublisher(ServiceInvocation<T> invocation) {
+        this.invocation = Objects.requireNonNull(invocation, "invocation can not be null");
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber can not be null");
+
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("service invocation " + invocation.getName() + " only supports a single subscriber"));
+            return;
+        }
+
+        subscriber.onSubscribe(new InvocationSubscription(subscriber));
+    }
+
+    private final class InvocationSubscription implements Flow.Subscription, Runnable {
+
+        private final Flow.Subscriber<? super T> subscriber;
+
+        private final AtomicBoolean requested = new AtomicBoolean();
+
+        private final AtomicBoolean terminated = new AtomicBoolean();
+
+        private InvocationSubscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                if (terminated.compareAndSet(false, true)) {
+                    invocation.cancel();
+                    subscriber.onError(new IllegalArgumentException("number of requested items must be positive but was " + n));
+                }
+                return;
+            }
+
+            if (requested.compareAndSet(false, true)) {
+                invocation.submitDetached(invocation.resolveExecutor(), this, this::rejected);
+            }
+        }
+
+        private void rejected(RejectedExecutionException ex) {
+            if (terminated.compareAndSet(false, true)) {
+                subscriber.onError(ex);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            if (terminated.compareAndSet(false, true)) {
+                LOG.fine("subscription cancelled, cancelling service invocation: " + invocation.getName());
+                invocation.cancel();
+            }
+        }
+
+        @Override
+        public void run() {
+            Response<T> response;
+
+            try {
+                response = invocation.executeDetached();
+            } catch (Exception ex) {
+                if (terminated.compareAndSet(false, true)) {
+                    subscriber.onError(ex);
+                }
+                return;
+            }
+
+            if (!terminated.compareAndSet(false, true)) {
+                return;
+            }
+
+            if (response == null) {
+                // appended to the offline queue, nothing to emit
+                subscriber.onComplete();
+            } else if (response.isSuccessful()) {
+                T body = response.body();
+                if (body != null) {
+                    subscriber.onNext(body);
+                }
+                subscriber.onComplete();
+            } else {
+                subscriber.onError(new HttpException(response));
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.util.concurrent.CompletableFuture;
+
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.ReadOnlyBooleanWrapper;
+import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.beans.property.ReadOnlyDoubleWrapper;
+import javafx.beans.property.ReadOnlyObjectProperty;
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.beans.property.ReadOnlyStringProperty;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.concurrent.Worker;
+
+/**
+ * The worker properties shared by the workers combining several service calls, i.e.
+ * {@link InvocationGroup} and {@link InvocationGraph}. The "work done" is the number of
+ * completed calls. The properties are only updated on the UI thread.
+ *
+ * @param <V> the type of the results
+ */
+abstract class InvocationWorker<V> implements Worker<V> {
+
+    private static final FXDispatcher DISPATCHER = FXDispatcher.getDefault();
+
+    private final String kind;
+
+    /**
+     * Constructs a new worker.
+     *
+     * @param title the title of the worker
+     * @param kind  the kind of the worker used in its messages, e.g. "Group"
+     */
+    InvocationWorker(String title, String kind) {
+        this.kind = kind;
+        this.title.set(title);
+    }
+
+    /*
+     * Sets the properties of a worker that has just been executed, must be called on the UI thread.
+     */
+    void started(int size) {
+        state.set(State.RUNNING);
+        running.set(true);
+        totalWork.set(size);
+        workDone.set(0);
+        progress.set(0);
+        message.set("0 of " + size + " completed");
+    }
+
+    /*
+     * Publishes the number of completed calls, only the latest update per pulse reaches the UI.
+     */
+    void publishProgress(int completed, int size, boolean finished) {
+        DISPATCHER.update(this, () -> {
+            workDone.set(completed);
+            progress.set(finished ? 1 : (double) completed / size);
+            if (!finished) {
+                message.set(completed + " of " + size + " completed");
+            }
+        });
+    }
+
+    /*
+     * Publishes the results in a single batch on the UI thread: updates the properties, calls the
+     * handler of the outcome, completes the future and calls the "on finally" handler.
+     */
+    void publishResults(V results, State finalState, Throwable failure, Runnable handler, CompletableFuture<V> result, Runnable onFinally) {
+        DISPATCHER.dispatch(() -> {
+            value.set(results);
+            state.set(finalState);
+            running.set(false);
+            progress.set(1);
+
+            try {
+                if (finalState == State.SUCCEEDED) {
+                    message.set(kind + " succeeded");
+                } else {
+                    exception.set(failure);
+                    message.set(kind + " failed");
+                }
+                if (handler != null) {
+                    handler.run();
+                }
+            } finally {
+                result.complete(results);
+                if (onFinally != null) {
+                    onFinally.run();
+                }
+            }
+        });
+    }
+
+    /*
+     * Publishes the cancellation on the UI thread.
+     */
+    void publishCancellation(CompletableFuture<V> result, Runnable onFinally) {
+        DISPATCHER.dispatch(() -> {
+            state.set(State.CANCELLED);
+            message.set("Cancelled");
+            running.set(false);
+            result.cancel(false);
+            if (onFinally != null) {
+                onFinally.run();
+            }
+        });
+    }
+
+    // state
+
+    private final ReadOnlyObjectWrapper<State> state = new ReadOnlyObjectWrapper<>(this, "state", State.READY);
+
+    @Override
+    public State getState() {
+        return state.get();
+    }
+
+    @Override
+    public ReadOnlyObjectProperty<State> stateProperty() {
+        return state.getReadOnlyProperty();
+    }
+
+    // value
+
+    private final ReadOnlyObjectWrapper<V> value = new ReadOnlyObjectWrapper<>(this, "value");
+
+    @Override
+    public V getValue() {
+        return value.get();
+    }
+
+    @Override
+    public ReadOnlyObjectProperty<V> valueProperty() {
+        return value.getReadOnlyProperty();
+    }
+
+    // exceptions
+
+    private final ReadOnlyObjectWrapper<Throwable> exception = new ReadOnlyObjectWrapper<>(this, "exception");
+
+    @Override
+    public Throwable getException() {
+        return exception.get();
+    }
+
+    @Override
+    public ReadOnlyObjectProperty<Throwable> exceptionProperty() {
+        return exception.getReadOnlyProperty();
+    }
+
+    // work done
+
+    private final ReadOnlyDoubleWrapper workDone = new ReadOnlyDoubleWrapper(this, "workDone");
+
+    @Override
+    public double getWorkDone() {
+        return workDone.get();
+    }
+
+    @Override
+    public ReadOnlyDoubleProperty workDoneProperty() {
+        return workDone.getReadOnlyProperty();
+    }
+
+    // total work
+
+    private final ReadOnlyDoubleWrapper totalWork = new ReadOnlyDoubleWrapper(this, "totalWork");
+
+    @Override
+    public double getTotalWork() {
+        return totalWork.get();
+    }
+
+    @Override
+    public ReadOnlyDoubleProperty totalWorkProperty() {
+        return totalWork.getReadOnlyProperty();
+    }
+
+    // progress
+
+    private final ReadOnlyDoubleWrapper progress = new ReadOnlyDoubleWrapper(this, "progress");
+
+    @Override
+    public double getProgress() {
+        return progress.get();
+    }
+
+    @Override
+    public ReadOnlyDoubleProperty progressProperty() {
+        return progress.getReadOnlyProperty();
+    }
+
+    // running
+
+    private final ReadOnlyBooleanWrapper running = new ReadOnlyBooleanWrapper(this, "running");
+
+    @Override
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    @Override
+    public ReadOnlyBooleanProperty runningProperty() {
+        return running.getReadOnlyProperty();
+    }
+
+    // message
+
+    private final ReadOnlyStringWrapper message = new ReadOnlyStringWrapper(this, "message");
+
+    @Override
+    public String getMessage() {
+        return message.get();
+    }
+
+    @Override
+    public ReadOnlyStringProperty messageProperty() {
+        return message.getReadOnlyProperty();
+    }
+
+    // title
+
+    private final ReadOnlyStringWrapper title = new ReadOnlyStringWrapper(this, "title");
+
+    @Override
+    public String getTitle() {
+        return title.get();
+    }
+
+    @Override
+    public ReadOnlyStringProperty titleProperty() {
+        return title.getReadOnlyProperty();
+    }
+}
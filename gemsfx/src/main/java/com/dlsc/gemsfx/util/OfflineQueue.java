@@ -0,0 +1,1068 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.beans.property.ReadOnlyDoubleWrapper;
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
+import okhttp3.Headers;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+
+/**
+ * A persistent queue for mutating requests that could not be delivered because the backend was
+ * unreachable. Service invocations using the queue (see
+ * {@link ServiceInvocation#withOfflineQueue(OfflineQueue)}) append their request to the queue
+ * when the call fails with an I/O error, or right away when the queue already holds requests so
+ * that the order of the requests is preserved. The queue replays the requests in order once the
+ * backend can be reached again, retrying with an exponential backoff in the meantime.
+ * <p>
+ * Every request carries an idempotency key in the "Idempotency-Key" header, so that the backend
+ * can detect requests that it has already processed, e.g. because the connection broke before
+ * the response arrived. If the request already has such a header (e.g. declared in the Retrofit
+ * interface) its value will be kept, otherwise a random key will be generated. The key gets
+ * assigned before the service invocation calls the backend for the first time, so a request
+ * that reached the backend but got queued because the response was lost carries the same key
+ * when it gets replayed. The live calls only carry the key if the client of the Retrofit
+ * service uses the {@link #idempotencyInterceptor() idempotency interceptor}, the clients
+ * created by the {@link ServiceClientFactory} do.
+ * </p>
+ * <p>
+ * The requests are stored in an append-only journal file. Appending a request returns only
+ * after the journal has been forced to the disk, concurrent appends share a single "fsync".
+ * Delivered requests are marked as completed in the journal and the journal gets compacted
+ * regularly. After a restart of the application the pending requests are read from the journal
+ * and replayed. A broken record at the end of the journal, e.g. caused by a crash while
+ * writing, is discarded.
+ * </p>
+ * Requests that the backend answers with a client error (4xx, except 408 and 429) will not be
+ * retried, they get reported to the {@link #setOnRejected(BiConsumer) rejection handler}. Server
+ * errors are treated like an unreachable backend. The number of pending requests and the
+ * replay throughput are available as JavaFX properties, these properties are only updated on
+ * the UI thread.
+ *
+ * <h3>Example:</h3>
+ * <pre>
+ *         OkHttpClient okHttpClient = new OkHttpClient.Builder()
+ *              .addInterceptor(OfflineQueue.idempotencyInterceptor())
+ *              .build();
+ *
+ *         OfflineQueue queue = OfflineQueue.open(dataDirectory.resolve("outbox.journal"), okHttpClient);
+ *
+ *         ServiceInvocation.createForCall("Save order ...", () -> myService.save(order))
+ *              .withOfflineQueue(queue)
+ *              .onSuccess(saved -> showConfirmation(saved))
+ *              .onQueued(name -> showHint("The order will be sent once the server is available"))
+ *              .execute();
+ *     </pre>
+ *
+ * @see ServiceInvocation#withOfflineQueue(OfflineQueue)
+ */
+public final class OfflineQueue implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(OfflineQueue.class.getName());
+
+    private static final byte ENQUEUED = 1;
+
+    private static final byte COMPLETED = 2;
+
+    private static final int COMPACTION_THRESHOLD = 256;
+
+    private static final Write CLOSE = new Write(null, null, false);
+
+    private static final ThreadLocal<IdempotencyKey> CURRENT_KEY = new ThreadLocal<>();
+
+    private static final Interceptor IDEMPOTENCY_INTERCEPTOR = chain -> {
+        Request request = chain.request();
+        IdempotencyKey key = CURRENT_KEY.get();
+        if (key != null && request.header(key.header) == null) {
+            request = key.applyTo(request);
+        }
+        return chain.proceed(request);
+    };
+
+    private final Path journal;
+
+    private final OkHttpClient client;
+
+    private final BlockingQueue<Write> writes = new LinkedBlockingQueue<>();
+
+    private final Thread writer;
+
+    private final ScheduledExecutorService replayer;
+
+    // only used by the writer thread after the journal has been opened
+
+    private FileChannel channel;
+
+    private int completedSinceCompaction;
+
+    // the length of the journal up to the last completely written record
+    private long validLength;
+
+    // queue, guarded by "this"
+
+    private final TreeMap<Long, Entry> pending = new TreeMap<>();
+
+    private long nextSequence = 1;
+
+    // requests that have been handed to the writer but are not durable yet
+    private int unsynced;
+
+    private boolean replayScheduled;
+
+    private ScheduledFuture<?> scheduledRetry;
+
+    private String idempotencyHeader = "Idempotency-Key";
+
+    private long minRetryNanos = TimeUnit.SECONDS.toNanos(1);
+
+    private long maxRetryNanos = TimeUnit.MINUTES.toNanos(1);
+
+    private BiConsumer<String, Integer> onRejected;
+
+    // only used by the replay thread
+
+    private long retryNanos;
+
+    private long replayStartedAt;
+
+    private long replayedInRun;
+
+    private volatile boolean closed;
+
+    // statistics
+
+    private final LongAdder enqueuedCount = new LongAdder();
+
+    private final LongAdder deliveredCount = new LongAdder();
+
+    private final LongAdder rejectedCount = new LongAdder();
+
+    private final LongAdder retryCount = new LongAdder();
+
+    private final LongAdder recordCount = new LongAdder();
+
+    private final LongAdder syncCount = new LongAdder();
+
+    private final LongAdder compactionCount = new LongAdder();
+
+    private OfflineQueue(Path journal, OkHttpClient client) {
+        this.journal = journal;
+        this.client = client;
+
+        writer = new Thread(this::writeLoop, "Offline Queue Writer");
+        writer.setDaemon(true);
+
+        replayer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Offline Queue Replay");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Opens the queue stored in the given journal file, which will be created if it does not
+     * exist yet. Pending requests found in the journal will be replayed right away.
+     *
+     * @param journal the journal file
+     * @param client  the client used for replaying the requests
+     * @return the queue
+     * @throws IOException if the journal can not be read or created
+     */
+    public static OfflineQueue open(Path journal, OkHttpClient client) throws IOException {
+        Objects.requireNonNull(journal, "journal can not be null");
+        Objects.requireNonNull(client, "client can not be null");
+
+        OfflineQueue queue = new OfflineQueue(journal, client);
+        queue.recover();
+        queue.writer.start();
+
+        if (!queue.isEmpty()) {
+            LOG.info("replaying pending requests from offline queue " + journal);
+            queue.triggerReplay();
+        }
+
+        return queue;
+    }
+
+    /**
+     * Sets the name of the header carrying the idempotency key. The default is "Idempotency-Key".
+     *
+     * @param header the name of the header
+     * @return the queue
+     */
+    public synchronized OfflineQueue withIdempotencyHeader(String header) {
+        this.idempotencyHeader = Objects.requireNonNull(header, "header can not be null");
+        return this;
+    }
+
+    /**
+     * Sets the interval between two attempts to reach the backend. The interval starts with the
+     * minimum and doubles with every failed attempt up to the maximum. The defaults are one
+     * second and one minute.
+     *
+     * @param min the minimum interval
+     * @param max the maximum interval
+     * @return the queue
+     */
+    public synchronized OfflineQueue withRetryInterval(Duration min, Duration max) {
+        Objects.requireNonNull(min, "min can not be null");
+        Objects.requireNonNull(max, "max can not be null");
+        if (min.isNegative() || min.isZero() || max.compareTo(min) < 0) {
+            throw new IllegalArgumentException("intervals must satisfy 0 < min <= max but were " + min + " / " + max);
+        }
+        this.minRetryNanos = min.toNanos();
+        this.maxRetryNanos = max.toNanos();
+        return this;
+    }
+
+    public synchronized String getIdempotencyHeader() {
+        return idempotencyHeader;
+    }
+
+    /**
+     * Returns the interceptor that adds the idempotency key to the live calls of service
+     * invocations using an offline queue. The interceptor has to be added to the client used by
+     * the Retrofit services, it does not change requests sent outside of such an invocation.
+     *
+     * @return the interceptor
+     */
+    public static Interceptor idempotencyInterceptor() {
+        return IDEMPOTENCY_INTERCEPTOR;
+    }
+
+    /*
+     * Assigns the idempotency key of a request before its first delivery attempt: the key
+     * declared by the request, or a new random key.
+     */
+    synchronized IdempotencyKey assignKey(Request request) {
+        String key = request.header(idempotencyHeader);
+        return new IdempotencyKey(idempotencyHeader, key != null ? key : UUID.randomUUID().toString());
+    }
+
+    /*
+     * Makes the given key the key of the requests sent by the current thread, returns the
+     * previous key so that it can be restored.
+     */
+    static IdempotencyKey bindKey(IdempotencyKey key) {
+        IdempotencyKey previous = CURRENT_KEY.get();
+        if (key != null) {
+            CURRENT_KEY.set(key);
+        } else {
+            CURRENT_KEY.remove();
+        }
+        return previous;
+    }
+
+    /**
+     * The idempotency key of a request together with the name of the header carrying it.
+     */
+    static final class IdempotencyKey {
+
+        private final String header;
+
+        private final String value;
+
+        private IdempotencyKey(String header, String value) {
+            this.header = header;
+            this.value = value;
+        }
+
+        String getValue() {
+            return value;
+        }
+
+        Request applyTo(Request request) {
+            return request.newBuilder().header(header, value).build();
+        }
+    }
+
+    /**
+     * Sets the handler that gets called on the UI thread when the backend rejected a replayed
+     * request with a client error. The handler receives the name of the invocation that queued
+     * the request and the status code. The request will not be retried.
+     *
+     * @param onRejected the handler or null
+     */
+    public synchronized void setOnRejected(BiConsumer<String, Integer> onRejected) {
+        this.onRejected = onRejected;
+    }
+
+    public synchronized BiConsumer<String, Integer> getOnRejected() {
+        return onRejected;
+    }
+
+    /**
+     * Determines whether requests are waiting for their delivery. Requests that are still being
+     * written to the journal count as waiting.
+     *
+     * @return true if the queue is empty
+     */
+    public synchronized boolean isEmpty() {
+        return pending.isEmpty() && unsynced == 0;
+    }
+
+    /**
+     * Appends a request to the queue. Returns once the request has been written to the disk. The
+     * idempotency key is taken from the request, a request without a key gets a random one.
+     *
+     * @param name    the name of the invocation, used for logging and for the rejection handler
+     * @param request the request
+     * @return the idempotency key of the request
+     * @throws IOException          if the request could not be written to the journal
+     * @throws InterruptedException if the thread got interrupted while waiting for the disk
+     */
+    String enqueue(String name, Request request) throws IOException, InterruptedException {
+        byte[] body = null;
+        String contentType = null;
+
+        RequestBody requestBody = request.body();
+        if (requestBody != null) {
+            Buffer buffer = new Buffer();
+            requestBody.writeTo(buffer);
+            body = buffer.readByteArray();
+            MediaType mediaType = requestBody.contentType();
+            contentType = mediaType != null ? mediaType.toString() : null;
+        }
+
+        Entry entry;
+
+        synchronized (this) {
+            // checked while holding the lock, close() queues the end of the writer with the same lock
+            if (closed) {
+                throw new IOException("offline queue has been closed: " + journal);
+            }
+
+            String key = request.header(idempotencyHeader);
+            if (key == null) {
+                key = UUID.randomUUID().toString();
+            }
+
+            entry = new Entry(nextSequence++, name, key, request.method(), request.url().toString(), request.headers(), contentType, body);
+
+            // queued while holding the lock so that the writer sees the entries in sequence order
+            writes.add(new Write(entry.frame, entry, true));
+            unsynced++;
+        }
+
+        try {
+            entry.durable.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+
+        enqueuedCount.increment();
+
+        LOG.fine("queued request of service invocation " + name + " for later delivery, key = " + entry.key);
+
+        return entry.key;
+    }
+
+    /**
+     * Replays the pending requests right away instead of waiting for the next retry, e.g. after
+     * the application has been notified that the network is available again. Does nothing if a
+     * replay is already running.
+     */
+    public synchronized void replayNow() {
+        if (closed) {
+            return;
+        }
+        if (scheduledRetry != null) {
+            if (scheduledRetry.cancel(false)) {
+                scheduledRetry = null;
+                replayer.execute(this::replay);
+            }
+        } else {
+            triggerReplay();
+        }
+    }
+
+    /**
+     * Stops the replay and closes the journal. Pending requests stay in the journal and will be
+     * replayed when the queue gets opened again.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            writes.add(CLOSE);
+        }
+        replayer.shutdownNow();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // writing
+
+    private static final class Write {
+
+        private final byte[] frame;
+
+        private final Entry entry;
+
+        private final boolean enqueue;
+
+        private Write(byte[] frame, Entry entry, boolean enqueue) {
+            this.frame = frame;
+            this.entry = entry;
+            this.enqueue = enqueue;
+        }
+    }
+
+    /*
+     * Writes the records in batches. A batch consists of all records queued while the previous
+     * batch was being written, all of them get forced to the disk with a single call. A batch
+     * that could not be written completely gets cut off the journal again before the next batch
+     * gets appended.
+     */
+    private void writeLoop() {
+        List<Write> batch = new ArrayList<>();
+        boolean stop = false;
+
+        while (!stop) {
+            try {
+                batch.add(writes.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            writes.drainTo(batch);
+
+            boolean sync = false;
+            int records = 0;
+            int completed = 0;
+
+            try {
+                restoreJournal();
+
+                for (Write write : batch) {
+                    if (write == CLOSE) {
+                        stop = true;
+                        continue;
+                    }
+                    writeFully(write.frame);
+                    records++;
+                    if (write.enqueue) {
+                        sync = true;
+                    } else {
+                        completed++;
+                    }
+                }
+
+                if (sync) {
+                    channel.force(false);
+                    syncCount.increment();
+                }
+
+                validLength = channel.size();
+            } catch (IOException e) {
+                LOG.log(Level.SEVERE, "error when trying to write to offline queue " + journal, e);
+                failed(batch, e);
+                batch.clear();
+
+                try {
+                    restoreJournal();
+                } catch (IOException ex) {
+                    LOG.log(Level.SEVERE, "error when trying to discard incomplete records of offline queue " + journal, ex);
+                }
+                continue;
+            }
+
+            recordCount.add(records);
+            completedSinceCompaction += completed;
+
+            boolean added = false;
+
+            for (Write write : batch) {
+                if (write.enqueue) {
+                    synchronized (this) {
+                        pending.put(write.entry.sequence, write.entry);
+                        unsynced--;
+                    }
+                    write.entry.durable.complete(null);
+                    added = true;
+                }
+            }
+
+            if (added) {
+                publishSize();
+                triggerReplay();
+            }
+
+            try {
+                compactIfNeeded();
+            } catch (IOException e) {
+                LOG.log(Level.SEVERE, "error when trying to compact offline queue " + journal, e);
+            }
+
+            batch.clear();
+        }
+
+        // appends left behind by an interrupted writer, nobody would complete them otherwise
+        writes.drainTo(batch);
+        failed(batch, new IOException("offline queue has been closed: " + journal));
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "error when trying to close offline queue " + journal, e);
+        }
+    }
+
+    /*
+     * Fails the appends of a batch that could not be written. The completion records of the batch
+     * get lost, after a restart these requests would be replayed again with the same key.
+     */
+    private void failed(List<Write> batch, IOException e) {
+        for (Write write : batch) {
+            if (write.enqueue) {
+                synchronized (this) {
+                    unsynced--;
+                }
+                write.entry.durable.completeExceptionally(e);
+            }
+        }
+    }
+
+    /*
+     * Reopens the journal if a failed compaction closed it, and cuts off the records of a batch
+     * that could not be written completely.
+     */
+    private void restoreJournal() throws IOException {
+        if (!channel.isOpen()) {
+            channel = openJournal();
+        }
+        if (channel.size() > validLength) {
+            LOG.warning("discarding incomplete records at the end of offline queue " + journal);
+            channel.truncate(validLength);
+            channel.force(false);
+        }
+    }
+
+    private void writeFully(byte[] frame) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /*
+     * Truncates the journal once all requests have been delivered, or rewrites it with the
+     * pending requests when enough completed requests have accumulated.
+     */
+    private void compactIfNeeded() throws IOException {
+        if (completedSinceCompaction == 0) {
+            return;
+        }
+
+        List<Entry> remaining;
+        synchronized (this) {
+            remaining = new ArrayList<>(pending.values());
+        }
+
+        if (remaining.isEmpty()) {
+            channel.truncate(0);
+            channel.force(false);
+            validLength = 0;
+        } else if (completedSinceCompaction >= COMPACTION_THRESHOLD) {
+            Path compacted = journal.resolveSibling(journal.getFileName() + ".compact");
+
+            long compactedLength = 0;
+
+            try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (Entry entry : remaining) {
+                    compactedLength += entry.frame.length;
+                    ByteBuffer buffer = ByteBuffer.wrap(entry.frame);
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                }
+                out.force(true);
+            }
+
+            channel.close();
+            Files.move(compacted, journal, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            validLength = compactedLength;
+            channel = openJournal();
+        } else {
+            return;
+        }
+
+        LOG.fine("compacted offline queue " + journal + ", pending requests = " + remaining.size());
+        completedSinceCompaction = 0;
+        compactionCount.increment();
+    }
+
+    private FileChannel openJournal() throws IOException {
+        return FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // recovery
+
+    /*
+     * Reads the journal and discards a broken record at its end.
+     */
+    private void recover() throws IOException {
+        long validLength = 0;
+        int completed = 0;
+
+        if (Files.exists(journal)) {
+            try (InputStream stream = Files.newInputStream(journal);
+                 DataInputStream in = new DataInputStream(new BufferedInputStream(stream))) {
+
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+
+                    byte[] payload;
+                    long checksum;
+                    try {
+                        checksum = in.readInt() & 0xFFFFFFFFL;
+                        if (length < 1 || length > Files.size(journal)) {
+                            throw new IOException("invalid record length: " + length);
+                        }
+                        payload = new byte[length];
+                        in.readFully(payload);
+                    } catch (IOException e) {
+                        LOG.warning("discarding broken record at the end of offline queue " + journal);
+                        break;
+                    }
+
+                    if (checksum(payload) != checksum) {
+                        LOG.warning("discarding record with invalid checksum at the end of offline queue " + journal);
+                        break;
+                    }
+
+                    if (payload[0] == ENQUEUED) {
+                        Entry entry = Entry.decode(payload);
+                        pending.put(entry.sequence, entry);
+                        nextSequence = Math.max(nextSequence, entry.sequence + 1);
+                    } else {
+                        long sequence = ByteBuffer.wrap(payload, 1, Long.BYTES).getLong();
+                        pending.remove(sequence);
+                        nextSequence = Math.max(nextSequence, sequence + 1);
+                        completed++;
+                    }
+
+                    validLength += 8 + length;
+                }
+            }
+        }
+
+        channel = openJournal();
+
+        if (channel.size() > validLength) {
+            channel.truncate(validLength);
+        }
+
+        this.validLength = validLength;
+        completedSinceCompaction = completed;
+        compactIfNeeded();
+        publishSize();
+    }
+
+    // replay
+
+    private synchronized void triggerReplay() {
+        if (!replayScheduled && !closed) {
+            replayScheduled = true;
+            replayer.execute(this::replay);
+        }
+    }
+
+    /*
+     * Delivers the pending requests in order. Stops at the first request that can not be
+     * delivered and schedules the next attempt.
+     */
+    private void replay() {
+        synchronized (this) {
+            scheduledRetry = null;
+        }
+
+        replayStartedAt = System.nanoTime();
+        replayedInRun = 0;
+
+        while (!closed) {
+            Entry entry;
+            String header;
+
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    replayScheduled = false;
+                    return;
+                }
+                entry = pending.firstEntry().getValue();
+                header = idempotencyHeader;
+            }
+
+            int code;
+
+            try (Response response = client.newCall(entry.toRequest(header)).execute()) {
+                code = response.code();
+            } catch (IOException e) {
+                LOG.fine("backend still unreachable, could not replay request of " + entry.name + ": " + e.getMessage());
+                scheduleRetry();
+                return;
+            }
+
+            if (code >= 500 || code == HttpStatusCode.REQUEST_TIMEOUT.getStatusCode() || code == HttpStatusCode.TOO_MANY_REQUESTS.getStatusCode()) {
+                LOG.fine("backend not available, could not replay request of " + entry.name + ", status code = " + code);
+                scheduleRetry();
+                return;
+            }
+
+            retryNanos = 0;
+            completed(entry, code);
+        }
+    }
+
+    private void scheduleRetry() {
+        long min;
+        long max;
+        synchronized (this) {
+            min = minRetryNanos;
+            max = maxRetryNanos;
+        }
+
+        retryNanos = retryNanos == 0 ? min : Math.min(max, retryNanos * 2);
+
+        synchronized (this) {
+            if (!closed) {
+                // the replay stays scheduled, replayNow() can cancel the wait
+                scheduledRetry = replayer.schedule(this::replay, retryNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        retryCount.increment();
+    }
+
+    private void completed(Entry entry, int code) {
+        BiConsumer<String, Integer> rejectionHandler;
+
+        synchronized (this) {
+            pending.remove(entry.sequence);
+            rejectionHandler = onRejected;
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(1 + Long.BYTES).put(COMPLETED).putLong(entry.sequence);
+        writes.add(new Write(frame(payload.array()), entry, false));
+
+        if (code >= 400) {
+            LOG.warning("replayed request of " + entry.name + " was rejected by the backend, status code = " + code);
+            rejectedCount.increment();
+            if (rejectionHandler != null) {
+                FXDispatcher.getDefault().dispatch(() -> rejectionHandler.accept(entry.name, code));
+            }
+        } else {
+            deliveredCount.increment();
+        }
+
+        replayedInRun++;
+        long elapsed = System.nanoTime() - replayStartedAt;
+        double rate = elapsed > 0 ? replayedInRun * 1_000_000_000d / elapsed : 0;
+
+        publishSize();
+        FXDispatcher.getDefault().update(replayRate, () -> replayRate.set(rate));
+    }
+
+    private void publishSize() {
+        FXDispatcher.getDefault().update(size, () -> {
+            int currentSize;
+            synchronized (this) {
+                currentSize = pending.size();
+            }
+            size.set(currentSize);
+        });
+    }
+
+    // records
+
+    private static byte[] frame(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) checksum(payload));
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    private static long checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return crc.getValue();
+    }
+
+    private static final class Entry {
+
+        private final long sequence;
+
+        private final String name;
+
+        private final String key;
+
+        private final String method;
+
+        private final String url;
+
+        private final Headers headers;
+
+        private final String contentType;
+
+        private final byte[] body;
+
+        private final byte[] frame;
+
+        private final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        private Entry(long sequence, String name, String key, String method, String url, Headers headers, String contentType, byte[] body) throws IOException {
+            this.sequence = sequence;
+            this.name = name;
+            this.key = key;
+            this.method = method;
+            this.url = url;
+            this.headers = headers;
+            this.contentType = contentType;
+            this.body = body;
+            this.frame = frame(encode());
+        }
+
+        private byte[] encode() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + (body != null ? body.length : 0));
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeByte(ENQUEUED);
+            out.writeLong(sequence);
+            out.writeUTF(name);
+            out.writeUTF(key);
+            out.writeUTF(method);
+            out.writeUTF(url);
+            out.writeInt(headers.size());
+            for (int i = 0; i < headers.size(); i++) {
+                out.writeUTF(headers.name(i));
+                out.writeUTF(headers.value(i));
+            }
+            out.writeUTF(contentType != null ? contentType : "");
+            out.writeInt(body != null ? body.length : -1);
+            if (body != null) {
+                out.write(body);
+            }
+
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private static Entry decode(byte[] payload) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+            in.readByte();
+            long sequence = in.readLong();
+            String name = in.readUTF();
+            String key = in.readUTF();
+            String method = in.readUTF();
+            String url = in.readUTF();
+
+            Headers.Builder headers = new Headers.Builder();
+            int headerCount = in.readInt();
+            for (int i = 0; i < headerCount; i++) {
+                headers.add(in.readUTF(), in.readUTF());
+            }
+
+            String contentType = in.readUTF();
+
+            byte[] body = null;
+            int bodyLength = in.readInt();
+            if (bodyLength >= 0) {
+                body = new byte[bodyLength];
+                in.readFully(body);
+            }
+
+            Entry entry = new Entry(sequence, name, key, method, url, headers.build(), contentType.isEmpty() ? null : contentType, body);
+            entry.durable.complete(null);
+            return entry;
+        }
+
+        private Request toRequest(String idempotencyHeader) {
+            RequestBody requestBody = null;
+            if (body != null) {
+                requestBody = RequestBody.create(contentType != null ? MediaType.parse(contentType) : null, body);
+            }
+
+            return new Request.Builder()
+                    .url(url)
+                    .headers(headers)
+                    .header(idempotencyHeader, key)
+                    .method(method, requestBody)
+                    .build();
+        }
+    }
+
+    // statistics
+
+    /**
+     * Returns the number of requests that have been appended to the queue.
+     *
+     * @return the number of queued requests
+     */
+    public long getEnqueuedCount() {
+        return enqueuedCount.sum();
+    }
+
+    /**
+     * Returns the number of replayed requests that the backend accepted.
+     *
+     * @return the number of delivered requests
+     */
+    public long getDeliveredCount() {
+        return deliveredCount.sum();
+    }
+
+    /**
+     * Returns the number of replayed requests that the backend rejected with a client error.
+     *
+     * @return the number of rejected requests
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * Returns the number of failed attempts to reach the backend.
+     *
+     * @return the number of retries
+     */
+    public long getRetryCount() {
+        return retryCount.sum();
+    }
+
+    /**
+     * Returns the number of records written to the journal.
+     *
+     * @return the number of records
+     */
+    public long getRecordCount() {
+        return recordCount.sum();
+    }
+
+    /**
+     * Returns the number of times the journal has been forced to the disk. Compared to the
+     * number of queued requests this shows how well appends are being batched.
+     *
+     * @return the number of syncs
+     */
+    public long getSyncCount() {
+        return syncCount.sum();
+    }
+
+    /**
+     * Returns the number of times the journal has been compacted.
+     *
+     * @return the number of compactions
+     */
+    public long getCompactionCount() {
+        return compactionCount.sum();
+    }
+
+    /**
+     * Returns the current size of the journal file.
+     *
+     * @return the size in bytes
+     * @throws IOException if the size can not be determined
+     */
+    public long getJournalSize() throws IOException {
+        return Files.exists(journal) ? Files.size(journal) : 0;
+    }
+
+    // size
+
+    private final ReadOnlyIntegerWrapper size = new ReadOnlyIntegerWrapper(this, "size");
+
+    /**
+     * Returns the number of pending requests as last published on the UI thread.
+     *
+     * @return the number of pending requests
+     */
+    public int getSize() {
+        return size.get();
+    }
+
+    /**
+     * A read-only property for observing the number of pending requests.
+     *
+     * @return the size property
+     */
+    public ReadOnlyIntegerProperty sizeProperty() {
+        return size.getReadOnlyProperty();
+    }
+
+    // replay rate
+
+    private final ReadOnlyDoubleWrapper replayRate = new ReadOnlyDoubleWrapper(this, "replayRate");
+
+    /**
+     * Returns the number of requests per second delivered by the current or last replay.
+     *
+     * @return the replay throughput
+     */
+    public double getReplayRate() {
+        return replayRate.get();
+    }
+
+    /**
+     * A read-only property for observing the replay throughput in requests per second.
+     *
+     * @return the replay rate property
+     */
+    public ReadOnlyDoubleProperty replayRateProperty() {
+        return replayRate.getReadOnlyProperty();
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import retrofit2.Call;
+import retrofit2.HttpException;
+import retrofit2.Response;
+
+/**
+ * A publisher emitting the pages of a paged backend resource, one item per page. Each page gets
+ * loaded by its own {@link ServiceInvocation}, hence the usual options like timeouts, retries or
+ * rate limiting can be applied to the page requests via
+ * {@link #withInvocationSetup(Consumer)}.
+ * <p>
+ * The publisher honours the demand of its subscriber: the first page is requested when the
+ * subscriber requests the first item, and at most one page gets loaded ahead of the demand so
+ * that the next page is usually available by the time the subscriber asks for it. Cancelling the
+ * subscription cancels the page request in flight and no further pages will be requested.
+ * </p>
+ * <p>
+ * The pages are loaded and emitted on background threads, the UI thread is not used at all.
+ * Subscribers that need to update the user interface can be wrapped with
+ * {@link FXSubscriber#of(Flow.Subscriber)}. Every subscriber starts with the first page.
+ * </p>
+ * <pre>
+ *     PagingPublisher&lt;Page&gt; publisher = new PagingPublisher&lt;&gt;("Load customers",
+ *             previous -&gt; previous == null ? service.customers(0) : previous.hasNext() ? service.customers(previous.getNumber() + 1) : null);
+ *
+ *     publisher.subscribe(FXSubscriber.of(subscriber));
+ * </pre>
+ *
+ * @param <P> the type of the pages
+ * @see ServiceInvocation#toPublisher()
+ */
+public final class PagingPublisher<P> implements Flow.Publisher<P> {
+
+    private static final Logger LOG = Logger.getLogger(PagingPublisher.class.getName());
+
+    /**
+     * Creates the call for loading the next page.
+     *
+     * @param <P> the type of the pages
+     */
+    @FunctionalInterface
+    public interface PageCallSupplier<P> {
+
+        /**
+         * Returns the call for the page following the given page.
+         *
+         * @param previous the previously loaded page or null when the first page is needed
+         * @return the call for the next page or null if there are no more pages
+         * @throws Exception if the call can not be created
+         */
+        Call<P> next(P previous) throws Exception;
+    }
+
+    private final String name;
+
+    private final PageCallSupplier<P> supplier;
+
+    private Consumer<ServiceInvocation<P>> invocationSetup;
+
+    private Executor executor;
+
+    /**
+     * Constructs a new publisher.
+     *
+     * @param name     the name used for the invocations of the pages
+     * @param supplier the supplier of the calls for the pages
+     */
+    public PagingPublisher(String name, PageCallSupplier<P> supplier) {
+        this.name = Objects.requireNonNull(name, "name can not be null");
+        this.supplier = Objects.requireNonNull(supplier, "page call supplier can not be null");
+    }
+
+    /**
+     * Returns the name used for the invocations of the pages.
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sets a consumer that gets invoked for every page invocation before it gets executed,
+     * e.g. for configuring a timeout, retries or a rate limiter. The handlers of the invocation
+     * (on success, on failure, ...) will not be called, the pages get delivered to the
+     * subscriber instead.
+     *
+     * @param invocationSetup the setup of the page invocations
+     * @return the publisher
+     */
+    public PagingPublisher<P> withInvocationSetup(Consumer<ServiceInvocation<P>> invocationSetup) {
+        this.invocationSetup = invocationSetup;
+        return this;
+    }
+
+    /**
+     * Sets the executor used for loading the pages. By default the pages get loaded on the
+     * executor their invocations would use when executed on their own, i.e. the scheduler or the
+     * executor strategy set via {@link #withInvocationSetup(Consumer)}.
+     *
+     * @param executor the executor or null
+     * @return the publisher
+     */
+    public PagingPublisher<P> withExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super P> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber can not be null");
+        subscriber.onSubscribe(new PagingSubscription(subscriber));
+    }
+
+    private final class PagingSubscription implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super P> subscriber;
+
+        // loaded pages waiting for demand, holds at most one page
+        private final Queue<P> pages = new ConcurrentLinkedQueue<>();
+
+        private final AtomicLong requested = new AtomicLong();
+
+        // serializes the signals sent to the subscriber
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private volatile boolean started;
+
+        private volatile boolean loading;
+
+        private volatile boolean done;
+
+        private volatile boolean cancelled;
+
+        private volatile Throwable error;
+
+        // a violation of the reactive streams rules, signalled before any buffered page
+        private volatile Throwable invalidRequest;
+
+        private volatile ServiceInvocation<P> current;
+
+        // written by the thread loading a page before it resets "loading"
+        private P previous;
+
+        private PagingSubscription(Flow.Subscriber<? super P> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("number of requested items must be positive but was " + n);
+                cancelCurrent();
+                drain();
+                return;
+            }
+
+            requested.getAndAccumulate(n, (r, m) -> r + m < 0 ? Long.MAX_VALUE : r + m);
+            started = true;
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                LOG.fine("subscription cancelled, no more pages will be loaded for: " + name);
+                cancelCurrent();
+                drain();
+            }
+        }
+
+        private void cancelCurrent() {
+            ServiceInvocation<P> invocation = current;
+            if (invocation != null) {
+                invocation.cancel();
+            }
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+
+            int missed = 1;
+
+            for (;;) {
+                if (cancelled) {
+                    pages.clear();
+                    return;
+                }
+
+                if (invalidRequest != null) {
+                    cancelled = true;
+                    pages.clear();
+                    subscriber.onError(invalidRequest);
+                    return;
+                }
+
+                long demand = requested.get();
+                long emitted = 0;
+
+                while (emitted != demand) {
+                    P page = pages.poll();
+                    if (page == null) {
+                        break;
+                    }
+
+                    subscriber.onNext(page);
+                    emitted++;
+
+                    if (cancelled) {
+                        pages.clear();
+                        return;
+                    }
+                }
+
+                if (emitted != 0 && demand != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+
+                if (pages.isEmpty()) {
+                    Throwable ex = error;
+                    if (ex != null) {
+                        cancelled = true;
+                        subscriber.onError(ex);
+                        return;
+                    }
+
+                    if (done) {
+                        cancelled = true;
+                        subscriber.onComplete();
+                        return;
+                    }
+
+                    if (started && !loading) {
+                        loadNextPage();
+                    }
+                }
+
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        /*
+         * Called by the drain loop when no page is buffered and none is being loaded, which
+         * keeps the publisher at most one page ahead of its subscriber. The page gets loaded
+         * on the executor once the rate limiter of the invocation permits it.
+         */
+        private void loadNextPage() {
+            loading = true;
+
+            ServiceInvocation<P> invocation;
+
+            try {
+                Call<P> call = supplier.next(previous);
+
+                if (call == null) {
+                    done = true;
+                    loading = false;
+                    // picked up by the drain loop that called this method
+                    wip.incrementAndGet();
+                    return;
+                }
+
+                invocation = ServiceInvocation.createForCall(name, () -> call.isExecuted() ? call.clone() : call);
+                if (invocationSetup != null) {
+                    invocationSetup.accept(invocation);
+                }
+            } catch (Exception ex) {
+                failed(ex);
+                return;
+            }
+
+            current = invocation;
+
+            Executor pageExecutor = executor != null ? executor : invocation.resolveExecutor();
+            invocation.submitDetached(pageExecutor, () -> load(invocation), this::failed);
+        }
+
+        private void failed(Exception ex) {
+            if (!cancelled && invalidRequest == null) {
+                error = ex;
+            }
+            current = null;
+            loading = false;
+            drain();
+        }
+
+        private void load(ServiceInvocation<P> invocation) {
+            try {
+                if (cancelled) {
+                    return;
+                }
+
+                Response<P> response = invocation.executeDetached();
+
+                if (response == null) {
+                    throw new IllegalStateException("page requests can not be added to an offline queue: " + name);
+                }
+
+                if (!response.isSuccessful()) {
+                    throw new HttpException(response);
+                }
+
+                P page = response.body();
+                if (page == null) {
+                    done = true;
+                } else {
+                    previous = page;
+                    pages.offer(page);
+                }
+            } catch (Exception ex) {
+                if (!cancelled && invalidRequest == null) {
+                    error = ex;
+                }
+            } finally {
+                current = null;
+                loading = false;
+                drain();
+            }
+        }
+    }
+}
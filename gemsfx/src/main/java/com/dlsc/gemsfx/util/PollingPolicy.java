@@ -0,0 +1,136 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * A policy for polling a backend with a {@link ServiceInvocation}, e.g. a status endpoint. The
+ * invocation calls the backend in the given interval as long as the responses keep changing.
+ * Every poll that returns an unchanged response (or fails) multiplies the interval by the
+ * backoff multiplier until the maximum interval has been reached, the first changed response
+ * resets it to the initial interval. In addition to that the interval gets multiplied when none
+ * of the windows of the application has the focus or when all of them are hidden or iconified,
+ * as the user can not see the result of the polling anyway.
+ * <h3>Example:</h3>
+ * <pre>
+ *         ServiceInvocation.createForConditionalCall("Job status ...", eTag -> myService.loadJobStatus(eTag))
+ *              .onSuccess(status -> statusLabel.setText(status.getText()))
+ *              .poll(new PollingPolicy(Duration.ofSeconds(2)).withMaxInterval(Duration.ofSeconds(30)));
+ *     </pre>
+ *
+ * @see ServiceInvocation#poll(PollingPolicy)
+ */
+public final class PollingPolicy {
+
+    private final Duration interval;
+
+    private Duration maxInterval;
+
+    private double backoffMultiplier = 1.5;
+
+    private double unfocusedMultiplier = 2;
+
+    private double hiddenMultiplier = 5;
+
+    /**
+     * Constructs a new policy with a maximum interval of eight times the given interval, a
+     * backoff multiplier of 1.5, and multipliers of 2 for unfocused and 5 for hidden windows.
+     *
+     * @param interval the interval used as long as the responses keep changing
+     */
+    public PollingPolicy(Duration interval) {
+        Objects.requireNonNull(interval, "interval can not be null");
+        if (interval.isNegative() || interval.isZero()) {
+            throw new IllegalArgumentException("interval must be positive but was " + interval);
+        }
+        this.interval = interval;
+        this.maxInterval = interval.multipliedBy(8);
+    }
+
+    /**
+     * Sets the interval up to which the polling backs off while the responses do not change.
+     *
+     * @param maxInterval the maximum interval, not shorter than the interval
+     * @return the policy
+     */
+    public synchronized PollingPolicy withMaxInterval(Duration maxInterval) {
+        Objects.requireNonNull(maxInterval, "max interval can not be null");
+        if (maxInterval.compareTo(interval) < 0) {
+            throw new IllegalArgumentException("max interval can not be shorter than the interval but was " + maxInterval);
+        }
+        this.maxInterval = maxInterval;
+        return this;
+    }
+
+    /**
+     * Sets the factor by which the interval grows with every unchanged response.
+     *
+     * @param multiplier the multiplier, at least 1
+     * @return the policy
+     */
+    public synchronized PollingPolicy withBackoffMultiplier(double multiplier) {
+        checkMultiplier(multiplier);
+        this.backoffMultiplier = multiplier;
+        return this;
+    }
+
+    /**
+     * Sets the factors applied to the interval when no window of the application has the focus
+     * and when no window is visible at all. A value of 1 disables the respective adjustment.
+     *
+     * @param unfocused the multiplier used while no window has the focus, at least 1
+     * @param hidden    the multiplier used while all windows are hidden or iconified, at least 1
+     * @return the policy
+     */
+    public synchronized PollingPolicy withWindowMultipliers(double unfocused, double hidden) {
+        checkMultiplier(unfocused);
+        checkMultiplier(hidden);
+        this.unfocusedMultiplier = unfocused;
+        this.hiddenMultiplier = hidden;
+        return this;
+    }
+
+    private static void checkMultiplier(double multiplier) {
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("multiplier must be at least 1 but was " + multiplier);
+        }
+    }
+
+    public Duration getInterval() {
+        return interval;
+    }
+
+    public synchronized Duration getMaxInterval() {
+        return maxInterval;
+    }
+
+    public synchronized double getBackoffMultiplier() {
+        return backoffMultiplier;
+    }
+
+    public synchronized double getUnfocusedMultiplier() {
+        return unfocusedMultiplier;
+    }
+
+    public synchronized double getHiddenMultiplier() {
+        return hiddenMultiplier;
+    }
+
+    /**
+     * Returns the next interval, based on the current one.
+     *
+     * @param currentNanos the current interval in nanoseconds, 0 for the first poll
+     * @param changed      true if the last poll returned a changed response
+     * @return the next interval in nanoseconds, not yet adjusted to the state of the windows
+     */
+    synchronized long nextIntervalNanos(long currentNanos, boolean changed) {
+        long intervalNanos = interval.toNanos();
+        if (changed || currentNanos == 0) {
+            return intervalNanos;
+        }
+        return Math.min(maxInterval.toNanos(), Math.max(intervalNanos, (long) (currentNanos * backoffMultiplier)));
+    }
+}
@@ -0,0 +1,20 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+/**
+ * Receives the progress of a transfer, i.e. of an upload via a {@link ProgressRequestBody} or
+ * of a streaming download. The listener gets called on the thread transferring the data, once
+ * per chunk, so it should only hand the numbers over. A {@link ServiceInvocation} coalesces them
+ * via the {@link FXDispatcher} so that its properties get updated at most once per pulse.
+ */
+@FunctionalInterface
+public interface ProgressListener {
+
+    /**
+     * @param bytes         the number of bytes transferred so far
+     * @param contentLength the total number of bytes or -1 if unknown
+     */
+    void progress(long bytes, long contentLength);
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.io.IOException;
+import java.util.Objects;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
+import okio.Sink;
+
+/**
+ * A request body that reports the number of bytes written to the network, e.g. for showing the
+ * progress of an upload. A {@link ServiceInvocation} automatically receives the progress when the
+ * body of its request is a progress request body. Bodies used as parts of a multipart request
+ * need to be registered with {@link ServiceInvocation#withUploadProgress(ProgressRequestBody)}.
+ * <h3>Example:</h3>
+ * <pre>
+ *         &#64;POST("photos")
+ *         Call&lt;Photo&gt; upload(&#64;Body RequestBody photo);
+ *
+ *         RequestBody body = new ProgressRequestBody(RequestBody.create(MediaType.get("image/jpeg"), file));
+ *
+ *         ServiceInvocation.createForCall("Upload photo ...", () -> myService.upload(body))
+ *              .onSuccess(photo -> photoView.setPhoto(photo)).execute();
+ *     </pre>
+ * The invocation will then update its "work done", "total work" and "throughput" properties while
+ * the photo gets uploaded. Cancelling the invocation aborts the upload.
+ */
+public final class ProgressRequestBody extends RequestBody {
+
+    private static final long CHUNK_SIZE = 64 * 1024;
+
+    private final RequestBody delegate;
+
+    private volatile ProgressListener listener;
+
+    /**
+     * Constructs a new body.
+     *
+     * @param delegate the body to be sent
+     */
+    public ProgressRequestBody(RequestBody delegate) {
+        this.delegate = Objects.requireNonNull(delegate, "request body can not be null");
+    }
+
+    /**
+     * Sets the listener receiving the progress. Replaces the previous listener.
+     *
+     * @param listener the listener or null
+     */
+    public void setListener(ProgressListener listener) {
+        this.listener = listener;
+    }
+
+    public ProgressListener getListener() {
+        return listener;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return delegate.contentType();
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        return delegate.contentLength();
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        ProgressListener currentListener = listener;
+
+        if (currentListener == null) {
+            delegate.writeTo(sink);
+            return;
+        }
+
+        long contentLength = contentLength();
+        currentListener.progress(0, contentLength);
+
+        BufferedSink countingSink = Okio.buffer(new CountingSink(sink, contentLength, currentListener));
+        delegate.writeTo(countingSink);
+        countingSink.flush();
+    }
+
+    private static final class CountingSink extends ForwardingSink {
+
+        private final long contentLength;
+
+        private final ProgressListener listener;
+
+        private long bytesWritten;
+
+        private CountingSink(Sink delegate, long contentLength, ProgressListener listener) {
+            super(delegate);
+            this.contentLength = contentLength;
+            this.listener = listener;
+        }
+
+        /*
+         * Bodies created from a byte array or a file hand over all of their bytes at once, hence
+         * the bytes get written in chunks so that the progress can be reported along the way.
+         */
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            long remaining = byteCount;
+            while (remaining > 0) {
+                long chunk = Math.min(remaining, CHUNK_SIZE);
+                super.write(source, chunk);
+                remaining -= chunk;
+                bytesWritten += chunk;
+                listener.progress(bytesWritten, contentLength);
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket limiting the rate at which the service invocations sharing it call the
+ * backend, e.g. to stay within the quota of a backend that answers with
+ * {@link HttpStatusCode#TOO_MANY_REQUESTS} when a client sends too many requests. The bucket
+ * holds at most "burst" tokens and gets refilled with "rate" tokens per second. Every invocation
+ * takes one token, when the bucket is empty the invocation has to wait for the next token. The
+ * waiting does not block a thread, the invocation simply gets handed to its executor later. The
+ * tokens are reserved in the order in which the invocations get executed.
+ * <h3>Example:</h3>
+ * <pre>
+ *         RateLimiter limiter = RateLimiter.forKey("api.example.com", 5, 10);
+ *
+ *         ServiceInvocation.createForCall("Load data ...", () -> myService.loadData())
+ *              .withRateLimiter(limiter)
+ *              .onSuccess(data -> listView.getItems().setAll(data)).execute();
+ *     </pre>
+ *
+ * @see ServiceInvocation#withRateLimiter(RateLimiter)
+ */
+public final class RateLimiter {
+
+    private static final Map<String, RateLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+    private final double tokensPerNano;
+
+    private final double permitsPerSecond;
+
+    private final int burst;
+
+    // bucket, guarded by "this"
+
+    private double tokens;
+
+    private long refilledAt = System.nanoTime();
+
+    private long granted;
+
+    private long delayed;
+
+    /**
+     * Constructs a new limiter with a full bucket.
+     *
+     * @param permitsPerSecond the number of calls per second, e.g. 0.5 for one call every two seconds
+     * @param burst            the maximum number of calls that can be made without waiting
+     */
+    public RateLimiter(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("permits per second must be greater than 0 but was " + permitsPerSecond);
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("burst must be at least 1 but was " + burst);
+        }
+        this.permitsPerSecond = permitsPerSecond;
+        this.tokensPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.tokens = burst;
+    }
+
+    /**
+     * Returns the shared limiter for the given key, e.g. the name of a service invocation or the
+     * host name of a backend. The limiter will be created with the given rate and burst when it
+     * gets requested for the first time, afterwards these arguments are ignored.
+     *
+     * @param key              the key
+     * @param permitsPerSecond the number of calls per second
+     * @param burst            the maximum number of calls that can be made without waiting
+     * @return the limiter
+     */
+    public static RateLimiter forKey(String key, double permitsPerSecond, int burst) {
+        return LIMITERS.computeIfAbsent(key, k -> new RateLimiter(permitsPerSecond, burst));
+    }
+
+    /**
+     * Takes a token from the bucket. When the bucket is empty the token will be borrowed from the
+     * future and the caller has to wait until it becomes available.
+     *
+     * @return the time to wait in nanoseconds, 0 if the call may be made right away
+     */
+    synchronized long reserve() {
+        refill();
+
+        tokens -= 1;
+        if (tokens >= 0) {
+            granted++;
+            return 0;
+        }
+
+        delayed++;
+        return (long) Math.ceil(-tokens / tokensPerNano);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilledAt) * tokensPerNano);
+        refilledAt = now;
+    }
+
+    public double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * Returns the number of tokens currently in the bucket. A negative value means that
+     * invocations are waiting for tokens.
+     *
+     * @return the available tokens
+     */
+    public synchronized double getAvailableTokens() {
+        refill();
+        return tokens;
+    }
+
+    /**
+     * Returns the number of invocations that could call the backend right away.
+     *
+     * @return the number of immediate calls
+     */
+    public synchronized long getGrantedCount() {
+        return granted;
+    }
+
+    /**
+     * Returns the number of invocations that had to wait for a token.
+     *
+     * @return the number of delayed calls
+     */
+    public synchronized long getDelayedCount() {
+        return delayed;
+    }
+}
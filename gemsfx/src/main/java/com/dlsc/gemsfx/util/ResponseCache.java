@@ -0,0 +1,216 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import retrofit2.Response;
+
+/**
+ * A size-bounded, in-memory cache for the successful responses of {@link ServiceInvocation}s.
+ * Responses are stored under the key of the invocation (see {@link ServiceInvocation#withKey(String)})
+ * together with their time-to-live and the "ETag" sent by the backend. When the cache is full the
+ * least recently used entry will be evicted.
+ * <p>
+ * An expired entry will be revalidated with the backend. If the invocation was created with a
+ * {@link ServiceInvocation.ConditionalCallSupplier} the stored ETag will be sent to the backend,
+ * which can then answer with {@link HttpStatusCode#NOT_MODIFIED} instead of sending the body
+ * again.
+ * </p>
+ *
+ * @see ServiceInvocation#withCache(ResponseCache, Duration)
+ */
+public final class ResponseCache {
+
+    private static final ResponseCache DEFAULT = new ResponseCache(500);
+
+    private final int maxEntries;
+
+    private final Map<String, Entry> entries;
+
+    private final LongAdder hitCount = new LongAdder();
+
+    private final LongAdder missCount = new LongAdder();
+
+    private final LongAdder revalidationCount = new LongAdder();
+
+    /**
+     * Constructs a new cache.
+     *
+     * @param maxEntries the maximum number of cached responses
+     */
+    public ResponseCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("max entries must be at least 1 but was " + maxEntries);
+        }
+
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ResponseCache.Entry> eldest) {
+                return size() > ResponseCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns a shared cache with room for 500 responses.
+     *
+     * @return the default cache
+     */
+    public static ResponseCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the cache entry for the given key.
+     *
+     * @param key the key
+     * @return the entry or null
+     */
+    synchronized Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            missCount.increment();
+        } else if (entry.isFresh()) {
+            hitCount.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Updates the cache with a response received from the backend. Successful responses will be
+     * stored, a "not modified" response extends the lifetime of the existing entry.
+     *
+     * @param key      the key
+     * @param response the response received from the backend
+     * @param ttl      the time-to-live of the entry
+     * @param <T>      the type of the body
+     * @return the response that should be handed to the handlers, i.e. the cached one in case of "not modified"
+     */
+    @SuppressWarnings("unchecked")
+    synchronized <T> Response<T> update(String key, Response<T> response, Duration ttl) {
+        if (response.isSuccessful()) {
+            entries.put(key, new Entry(response, response.headers().get("ETag"), ttl));
+            return response;
+        }
+
+        Entry entry = entries.get(key);
+
+        if (entry != null && response.code() == HttpStatusCode.NOT_MODIFIED.getStatusCode()) {
+            revalidationCount.increment();
+            entry.expiresAt = System.nanoTime() + ttl.toNanos();
+            return (Response<T>) entry.response;
+        }
+
+        return response;
+    }
+
+    /**
+     * Removes the entry with the given key.
+     *
+     * @param key the key
+     */
+    public synchronized void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Returns the number of cached responses.
+     *
+     * @return the number of entries
+     */
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of lookups that found a fresh entry.
+     *
+     * @return the number of hits
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * Returns the number of lookups that did not find any entry.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * Returns the number of expired entries that were confirmed by the backend
+     * with {@link HttpStatusCode#NOT_MODIFIED}.
+     *
+     * @return the number of revalidations
+     */
+    public long getRevalidationCount() {
+        return revalidationCount.sum();
+    }
+
+    /**
+     * A cached response.
+     */
+    static final class Entry {
+
+        private final Response<?> response;
+
+        private final String eTag;
+
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private volatile long expiresAt;
+
+        private Entry(Response<?> response, String eTag, Duration ttl) {
+            this.response = response;
+            this.eTag = eTag;
+            this.expiresAt = System.nanoTime() + ttl.toNanos();
+        }
+
+        @SuppressWarnings("unchecked")
+        <T> Response<T> getResponse() {
+            return (Response<T>) response;
+        }
+
+        String getETag() {
+            return eTag;
+        }
+
+        boolean isFresh() {
+            return System.nanoTime() - expiresAt < 0;
+        }
+
+        /**
+         * Marks the entry as being refreshed in the background.
+         *
+         * @return false if a refresh is already running
+         */
+        boolean startRefresh() {
+            return refreshing.compareAndSet(false, true);
+        }
+
+        void endRefresh() {
+            refreshing.set(false);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+/**
+ * A budget limiting the number of retries performed by all service invocations sharing it.
+ * Every initial attempt deposits a fraction of a retry ("ratio") into the budget, every retry
+ * withdraws a full retry. A budget with a ratio of 0.2 therefore allows roughly one retry for
+ * every five requests, no matter how many attempts the individual {@link RetryPolicy} allows.
+ * In addition to that the budget starts with a small reserve so that retries are possible even
+ * when the application has only made a few requests so far.
+ *
+ * @see RetryPolicy#withBudget(RetryBudget)
+ */
+public final class RetryBudget {
+
+    private final double ratio;
+
+    private final double maxBalance;
+
+    private double balance;
+
+    private long granted;
+
+    private long rejected;
+
+    /**
+     * Constructs a new budget.
+     *
+     * @param ratio   the number of retries earned by each initial attempt, e.g. 0.2
+     * @param reserve the number of retries available up front, also the minimum capacity of the budget
+     */
+    public RetryBudget(double ratio, int reserve) {
+        if (ratio < 0) {
+            throw new IllegalArgumentException("ratio can not be negative but was " + ratio);
+        }
+        if (reserve < 0) {
+            throw new IllegalArgumentException("reserve can not be negative but was " + reserve);
+        }
+        this.ratio = ratio;
+        this.balance = reserve;
+        this.maxBalance = Math.max(reserve, 100 * ratio);
+    }
+
+    /**
+     * Records an initial attempt.
+     */
+    synchronized void deposit() {
+        balance = Math.min(maxBalance, balance + ratio);
+    }
+
+    /**
+     * Tries to withdraw a retry from the budget.
+     *
+     * @return true if the retry may be performed
+     */
+    synchronized boolean tryWithdraw() {
+        if (balance >= 1) {
+            balance -= 1;
+            granted++;
+            return true;
+        }
+        rejected++;
+        return false;
+    }
+
+    public double getRatio() {
+        return ratio;
+    }
+
+    /**
+     * Returns the number of retries currently available.
+     *
+     * @return the available retries
+     */
+    public synchronized double getBalance() {
+        return balance;
+    }
+
+    /**
+     * Returns the number of retries granted by this budget so far.
+     *
+     * @return the granted retries
+     */
+    public synchronized long getGrantedCount() {
+        return granted;
+    }
+
+    /**
+     * Returns the number of retries that were refused because the budget was exhausted.
+     *
+     * @return the rejected retries
+     */
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+}
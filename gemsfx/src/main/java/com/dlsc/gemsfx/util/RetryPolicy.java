@@ -0,0 +1,304 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import retrofit2.Response;
+
+/**
+ * Describes if and when a failed {@link ServiceInvocation} will be retried. Policies are
+ * immutable, all "with" methods return a modified copy. A policy can therefore be shared by
+ * many service invocations.
+ * <p>
+ * By default a policy retries up to three attempts in total when the backend responds with
+ * {@link HttpStatusCode#SERVICE_UNAVAILABLE}, {@link HttpStatusCode#TOO_MANY_REQUESTS} or
+ * {@link HttpStatusCode#GATEWAY_TIMEOUT}, or when the connection failed with an I/O exception.
+ * The waiting time between two attempts grows exponentially and is randomized ("jitter") so
+ * that many clients do not retry at the very same moment. A "Retry-After" header sent by the
+ * backend takes precedence over the computed backoff.
+ * </p>
+ * <h3>Example:</h3>
+ * <pre>
+ *         ServiceInvocation.createForCall("Load data ...", () -> myService.loadData())
+ *              .withRetryPolicy(RetryPolicy.create().withMaxAttempts(5).withBudget(budget))
+ *              .onSuccess(data -> listView.getItems().setAll(data)).execute();
+ *     </pre>
+ *
+ * @see ServiceInvocation#withRetryPolicy(RetryPolicy)
+ */
+public final class RetryPolicy {
+
+    private static final Set<HttpStatusCode> DEFAULT_STATUS_CODES = Collections.unmodifiableSet(EnumSet.of(
+            HttpStatusCode.SERVICE_UNAVAILABLE,
+            HttpStatusCode.TOO_MANY_REQUESTS,
+            HttpStatusCode.GATEWAY_TIMEOUT));
+
+    private int maxAttempts = 3;
+
+    private Duration initialBackoff = Duration.ofMillis(500);
+
+    private Duration maxBackoff = Duration.ofSeconds(30);
+
+    private double multiplier = 2;
+
+    private double jitter = 0.5;
+
+    private boolean retryAfterEnabled = true;
+
+    private boolean retryOnIOException = true;
+
+    private Set<HttpStatusCode> statusCodes = DEFAULT_STATUS_CODES;
+
+    private RetryBudget budget;
+
+    private RetryPolicy() {
+    }
+
+    private RetryPolicy(RetryPolicy other) {
+        maxAttempts = other.maxAttempts;
+        initialBackoff = other.initialBackoff;
+        maxBackoff = other.maxBackoff;
+        multiplier = other.multiplier;
+        jitter = other.jitter;
+        retryAfterEnabled = other.retryAfterEnabled;
+        retryOnIOException = other.retryOnIOException;
+        statusCodes = other.statusCodes;
+        budget = other.budget;
+    }
+
+    /**
+     * Creates a new retry policy with default settings.
+     *
+     * @return a retry policy
+     */
+    public static RetryPolicy create() {
+        return new RetryPolicy();
+    }
+
+    /**
+     * Returns a copy of this policy with the given maximum number of attempts, including the
+     * initial attempt.
+     *
+     * @param maxAttempts the maximum number of attempts, at least 1
+     * @return a modified copy of the policy
+     */
+    public RetryPolicy withMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("max attempts must be at least 1 but was " + maxAttempts);
+        }
+        RetryPolicy policy = new RetryPolicy(this);
+        policy.maxAttempts = maxAttempts;
+        return policy;
+    }
+
+    /**
+     * Returns a copy of this policy with the given backoff settings. The backoff before the
+     * n-th retry is "initial * multiplier ^ (n - 1)", limited by the given maximum.
+     *
+     * @param initial    the backoff before the first retry
+     * @param max        the maximum backoff, also the longest "Retry-After" value that will be accepted
+     * @param multiplier the factor by which the backoff grows with each retry, at least 1
+     * @return a modified copy of the policy
+     */
+    public RetryPolicy withBackoff(Duration initial, Duration max, double multiplier) {
+        Objects.requireNonNull(initial, "initial backoff can not be null");
+        Objects.requireNonNull(max, "max backoff can not be null");
+        if (initial.isNegative() || max.compareTo(initial) < 0) {
+            throw new IllegalArgumentException("backoff must satisfy 0 <= initial <= max but was " + initial + " / " + max);
+        }
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("multiplier must be at least 1 but was " + multiplier);
+        }
+        RetryPolicy policy = new RetryPolicy(this);
+        policy.initialBackoff = initial;
+        policy.maxBackoff = max;
+        policy.multiplier = multiplier;
+        return policy;
+    }
+
+    /**
+     * Returns a copy of this policy with the given jitter. A jitter of 0.5 means that the actual
+     * backoff will be a random value between 50% and 150% of the computed backoff.
+     *
+     * @param jitter the jitter between 0 (no randomization) and 1
+     * @return a modified copy of the policy
+     */
+    public RetryPolicy withJitter(double jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1 but was " + jitter);
+        }
+        RetryPolicy policy = new RetryPolicy(this);
+        policy.jitter = jitter;
+        return policy;
+    }
+
+    /**
+     * Returns a copy of this policy that does / does not honour the "Retry-After" header.
+     *
+     * @param enabled true if the header should be used
+     * @return a modified copy of the policy
+     */
+    public RetryPolicy withRetryAfter(boolean enabled) {
+        RetryPolicy policy = new RetryPolicy(this);
+        policy.retryAfterEnabled = enabled;
+        return policy;
+    }
+
+    /**
+     * Returns a copy of this policy that does / does not retry after I/O exceptions, e.g. when
+     * the connection could not be established or got reset.
+     *
+     * @param enabled true if I/O exceptions should be retried
+     * @return a modified copy of the policy
+     */
+    public RetryPolicy withRetryOnIOException(boolean enabled) {
+        RetryPolicy policy = new RetryPolicy(this);
+        policy.retryOnIOException = enabled;
+        return policy;
+    }
+
+    /**
+     * Returns a copy of this policy that retries when the backend responds with one of the
+     * given status codes.
+     *
+     * @param codes the retryable status codes
+     * @return a modified copy of the policy
+     */
+    public RetryPolicy withStatusCodes(HttpStatusCode... codes) {
+        EnumSet<HttpStatusCode> set = EnumSet.noneOf(HttpStatusCode.class);
+        Collections.addAll(set, codes);
+        RetryPolicy policy = new RetryPolicy(this);
+        policy.statusCodes = Collections.unmodifiableSet(set);
+        return policy;
+    }
+
+    /**
+     * Returns a copy of this policy that draws its retries from the given budget. The same
+     * budget is usually shared by all invocations of an application (or of a backend) in order
+     * to keep retries from multiplying the load when a backend is struggling.
+     *
+     * @param budget the retry budget or null for an unlimited number of retries
+     * @return a modified copy of the policy
+     */
+    public RetryPolicy withBudget(RetryBudget budget) {
+        RetryPolicy policy = new RetryPolicy(this);
+        policy.budget = budget;
+        return policy;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public Duration getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    public Duration getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    public boolean isRetryAfterEnabled() {
+        return retryAfterEnabled;
+    }
+
+    public boolean isRetryOnIOException() {
+        return retryOnIOException;
+    }
+
+    public Set<HttpStatusCode> getStatusCodes() {
+        return statusCodes;
+    }
+
+    public RetryBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * Determines if the given response is worth another attempt.
+     *
+     * @param response the unsuccessful response
+     * @return true if the status code of the response is retryable
+     */
+    boolean isRetryable(Response<?> response) {
+        return statusCodes.contains(HttpStatusCode.fromStatusCode(response.code()));
+    }
+
+    /**
+     * Determines if the given exception is worth another attempt.
+     *
+     * @param ex the exception thrown by the service call
+     * @return true if the exception is retryable
+     */
+    boolean isRetryable(Exception ex) {
+        return retryOnIOException && ex instanceof IOException && !(ex instanceof InterruptedIOException);
+    }
+
+    /**
+     * Computes the time to wait before the given retry.
+     *
+     * @param retry    the number of the retry, starting with 1
+     * @param response the response of the previous attempt, may be null
+     * @return the backoff or null if the backend asked for a longer pause than the maximum backoff
+     */
+    Duration getBackoff(int retry, Response<?> response) {
+        if (retryAfterEnabled && response != null) {
+            Duration retryAfter = parseRetryAfter(response.headers().get("Retry-After"));
+            if (retryAfter != null) {
+                return retryAfter.compareTo(maxBackoff) <= 0 ? retryAfter : null;
+            }
+        }
+
+        double millis = Math.min(maxBackoff.toMillis(), initialBackoff.toMillis() * Math.pow(multiplier, retry - 1));
+
+        if (jitter > 0) {
+            millis *= 1 - jitter + ThreadLocalRandom.current().nextDouble() * 2 * jitter;
+        }
+
+        return Duration.ofMillis(Math.round(millis));
+    }
+
+    /*
+     * The header contains either the number of seconds to wait or an HTTP date.
+     */
+    static Duration parseRetryAfter(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+
+        value = value.trim();
+
+        try {
+            return Duration.ofSeconds(Math.max(0, Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            // not seconds, try date
+        }
+
+        try {
+            Duration duration = Duration.between(ZonedDateTime.now(), ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME));
+            return duration.isNegative() ? Duration.ZERO : duration;
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,599 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import okhttp3.Cache;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+import retrofit2.Retrofit;
+
+/**
+ * A factory for the HTTP clients used by the Retrofit services behind {@link ServiceInvocation}s.
+ * All clients created by a factory share a single connection pool, dispatcher and response
+ * cache, so an application talking to several backends does not end up with one pool (and one
+ * set of idle connections and threads) per service interface.
+ * <p>
+ * The size of the connection pool is derived from the {@link ServiceInvocationScheduler} (if
+ * any): the pool keeps as many idle connections as the scheduler runs invocations at the same
+ * time, so a burst of invocations does not have to open new connections after the previous
+ * burst. The factory does not limit the number of concurrent calls itself. Service invocations
+ * execute their calls synchronously, which the dispatcher of OkHttp does not limit (its limits
+ * only apply to asynchronous calls), so the limits in total and per service are enforced by the
+ * scheduler. As usual with OkHttp, HTTP/2 gets negotiated for TLS connections if the server
+ * supports it. Responses are transparently requested and decompressed with gzip, compressing request bodies
+ * has to be enabled via {@link #withRequestCompression(boolean)} because not every server
+ * accepts compressed requests.
+ * </p>
+ * <p>
+ * The factory has to be configured before the first client gets created. The utilization of the
+ * connection pool, the dispatcher and the cache can be read via the getters or, after calling
+ * {@link #setJmxEnabled(boolean)}, via JMX with the object name
+ * "com.dlsc.gemsfx:type=ServiceClientFactory,name=...".
+ * </p>
+ * <h3>Example:</h3>
+ * <pre>
+ *         ServiceClientFactory.getDefault()
+ *              .withScheduler(scheduler)
+ *              .withCache(cacheDirectory, 50 * 1024 * 1024);
+ *
+ *         MyService myService = ServiceClientFactory.getDefault().newRetrofitBuilder("https://api.example.com/")
+ *              .addConverterFactory(GsonConverterFactory.create())
+ *              .build()
+ *              .create(MyService.class);
+ *     </pre>
+ *
+ * @see ServiceInvocation#setDefaultScheduler(ServiceInvocationScheduler)
+ */
+public final class ServiceClientFactory {
+
+    private static final Logger LOG = Logger.getLogger(ServiceClientFactory.class.getName());
+
+    private static final ServiceClientFactory DEFAULT = new ServiceClientFactory("default");
+
+    private static final int DEFAULT_MAX_IDLE_CONNECTIONS = 16;
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final String name;
+
+    private ServiceInvocationScheduler scheduler;
+
+    private int maxIdleConnections = -1;
+
+    private Duration keepAlive = Duration.ofMinutes(5);
+
+    private Path cacheDirectory;
+
+    private long maxCacheSize;
+
+    private boolean requestCompression;
+
+    // created lazily by getClient(), guarded by "this"
+
+    private OkHttpClient client;
+
+    private volatile ConnectionPool connectionPool;
+
+    private volatile Dispatcher dispatcher;
+
+    private volatile Cache cache;
+
+    private volatile boolean jmxEnabled;
+
+    /**
+     * Constructs a new factory. Most applications will use the shared factory returned by
+     * {@link #getDefault()}.
+     *
+     * @param name the name of the factory, used for the threads and for JMX
+     */
+    public ServiceClientFactory(String name) {
+        this.name = Objects.requireNonNull(name, "name can not be null");
+    }
+
+    /**
+     * Returns the shared factory.
+     *
+     * @return the default factory
+     */
+    public static ServiceClientFactory getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the name of the factory.
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sets the scheduler from which the size of the connection pool gets derived. If no scheduler
+     * has been set, the default scheduler of the service invocations will be used, and if there
+     * is none either, a pool with 16 idle connections. The scheduler limits the number of
+     * concurrent invocations, the factory does not add limits of its own.
+     *
+     * @param scheduler the scheduler
+     * @return the factory
+     * @see ServiceInvocation#setDefaultScheduler(ServiceInvocationScheduler)
+     */
+    public synchronized ServiceClientFactory withScheduler(ServiceInvocationScheduler scheduler) {
+        checkNotCreated();
+        this.scheduler = scheduler;
+        return this;
+    }
+
+    /**
+     * Sets the size of the connection pool. By default the pool keeps as many idle connections
+     * as the scheduler runs invocations at the same time, or 16 connections without a scheduler.
+     *
+     * @param maxIdleConnections the maximum number of idle connections
+     * @param keepAlive          the time after which an idle connection gets closed
+     * @return the factory
+     */
+    public synchronized ServiceClientFactory withConnectionPool(int maxIdleConnections, Duration keepAlive) {
+        if (maxIdleConnections < 0) {
+            throw new IllegalArgumentException("maximum number of idle connections can not be negative");
+        }
+        checkNotCreated();
+        this.maxIdleConnections = maxIdleConnections;
+        this.keepAlive = Objects.requireNonNull(keepAlive, "keep alive can not be null");
+        return this;
+    }
+
+    /**
+     * Enables the HTTP response cache of OkHttp, which honours the caching headers sent by the
+     * backend. The cache is stored on the disk, the least recently used responses get evicted
+     * once the cache exceeds the given size. Not to be confused with the in-memory cache of a
+     * single invocation, see {@link ServiceInvocation#withCache(ResponseCache)}.
+     *
+     * @param directory the directory used by the cache, must not be shared with another cache
+     * @param maxSize   the maximum size of the cache in bytes
+     * @return the factory
+     */
+    public synchronized ServiceClientFactory withCache(Path directory, long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maximum cache size must be positive");
+        }
+        checkNotCreated();
+        this.cacheDirectory = Objects.requireNonNull(directory, "cache directory can not be null");
+        this.maxCacheSize = maxSize;
+        return this;
+    }
+
+    /**
+     * Determines whether request bodies will be compressed with gzip (and sent with the header
+     * "Content-Encoding: gzip"). Disabled by default as servers have to support this explicitly.
+     * Responses are always requested with gzip, independent of this setting.
+     *
+     * @param requestCompression true if request bodies should be compressed
+     * @return the factory
+     */
+    public synchronized ServiceClientFactory withRequestCompression(boolean requestCompression) {
+        checkNotCreated();
+        this.requestCompression = requestCompression;
+        return this;
+    }
+
+    private void checkNotCreated() {
+        if (client != null) {
+            throw new IllegalStateException("service client factory " + name + " has already created its client");
+        }
+    }
+
+    /**
+     * Returns the shared client, creating it on the first call. Clients with different
+     * settings (timeouts, interceptors, ...) that still share the connection pool, the
+     * dispatcher and the cache can be created via {@link #newClientBuilder()}.
+     *
+     * @return the shared client
+     */
+    public synchronized OkHttpClient getClient() {
+        if (client == null) {
+            client = createClient();
+        }
+        return client;
+    }
+
+    /**
+     * Returns a builder for a client that shares the connection pool, the dispatcher and the
+     * cache of this factory.
+     *
+     * @return a new client builder
+     */
+    public OkHttpClient.Builder newClientBuilder() {
+        return getClient().newBuilder();
+    }
+
+    /**
+     * Returns a Retrofit builder for the given base URL that uses the shared client. Converter
+     * and call adapter factories still have to be added.
+     *
+     * @param baseUrl the base URL of the service
+     * @return a new Retrofit builder
+     */
+    public Retrofit.Builder newRetrofitBuilder(String baseUrl) {
+        return new Retrofit.Builder().baseUrl(baseUrl).client(getClient());
+    }
+
+    private OkHttpClient createClient() {
+        // the scheduler limits the concurrent calls, the limits of the dispatcher only apply to enqueue()
+        ServiceInvocationScheduler limits = scheduler != null ? scheduler : ServiceInvocation.getDefaultScheduler();
+
+        int idleConnections = maxIdleConnections >= 0 ? maxIdleConnections : limits != null ? limits.getMaxConcurrent() : DEFAULT_MAX_IDLE_CONNECTIONS;
+        connectionPool = new ConnectionPool(idleConnections, keepAlive.toMillis(), TimeUnit.MILLISECONDS);
+
+        // the same settings as the default executor of OkHttp, but with daemon threads
+        ExecutorService executorService = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread thread = new Thread(r);
+            thread.setName("Service Client " + name + " " + THREAD_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        dispatcher = new Dispatcher(executorService);
+
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .connectionPool(connectionPool)
+                .dispatcher(dispatcher);
+
+        if (cacheDirectory != null) {
+            cache = new Cache(cacheDirectory.toFile(), maxCacheSize);
+            builder.cache(cache);
+        }
+
+        // adds the idempotency key to calls of invocations using an offline queue, a no-op otherwise
+        builder.addInterceptor(OfflineQueue.idempotencyInterceptor());
+
+        if (requestCompression) {
+            builder.addInterceptor(new GzipRequestInterceptor());
+        }
+
+        LOG.fine("created service client " + name + ", idle connections = " + idleConnections);
+
+        return builder.build();
+    }
+
+    /**
+     * Closes all idle connections, stops the threads of the dispatcher and closes the cache. Calls
+     * that are still running will complete.
+     */
+    public synchronized void shutdown() {
+        if (client == null) {
+            return;
+        }
+
+        connectionPool.evictAll();
+        dispatcher.executorService().shutdown();
+
+        if (cache != null) {
+            try {
+                cache.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "unable to close the cache of service client " + name, e);
+            }
+        }
+    }
+
+    // metrics
+
+    /**
+     * Returns the number of open connections in the pool, active and idle.
+     *
+     * @return the number of connections
+     */
+    public int getConnectionCount() {
+        ConnectionPool pool = connectionPool;
+        return pool != null ? pool.connectionCount() : 0;
+    }
+
+    /**
+     * Returns the number of idle connections in the pool.
+     *
+     * @return the number of idle connections
+     */
+    public int getIdleConnectionCount() {
+        ConnectionPool pool = connectionPool;
+        return pool != null ? pool.idleConnectionCount() : 0;
+    }
+
+    /**
+     * Returns the number of connections currently carrying at least one call. With HTTP/2 a
+     * single connection can carry many calls at the same time.
+     *
+     * @return the number of active connections
+     */
+    public int getActiveConnectionCount() {
+        ConnectionPool pool = connectionPool;
+        return pool != null ? Math.max(0, pool.connectionCount() - pool.idleConnectionCount()) : 0;
+    }
+
+    /**
+     * Returns the ratio of active connections to all pooled connections, a value between 0 and 1.
+     * A value that stays close to 1 indicates that calls have to wait for new connections.
+     *
+     * @return the utilization of the connection pool
+     */
+    public double getPoolUtilization() {
+        ConnectionPool pool = connectionPool;
+        if (pool == null) {
+            return 0;
+        }
+        int total = pool.connectionCount();
+        return total == 0 ? 0 : (total - pool.idleConnectionCount()) / (double) total;
+    }
+
+    /**
+     * Returns the number of calls currently running, including the calls executed synchronously
+     * by service invocations.
+     *
+     * @return the number of running calls
+     */
+    public int getRunningCallsCount() {
+        Dispatcher current = dispatcher;
+        return current != null ? current.runningCallsCount() : 0;
+    }
+
+    /**
+     * Returns the number of asynchronous calls waiting for the dispatcher limits.
+     *
+     * @return the number of queued calls
+     */
+    public int getQueuedCallsCount() {
+        Dispatcher current = dispatcher;
+        return current != null ? current.queuedCallsCount() : 0;
+    }
+
+    /**
+     * Returns the number of requests that went through the cache.
+     *
+     * @return the number of requests or 0 if there is no cache
+     */
+    public int getCacheRequestCount() {
+        Cache current = cache;
+        return current != null ? current.requestCount() : 0;
+    }
+
+    /**
+     * Returns the number of requests answered by the cache.
+     *
+     * @return the number of cache hits or 0 if there is no cache
+     */
+    public int getCacheHitCount() {
+        Cache current = cache;
+        return current != null ? current.hitCount() : 0;
+    }
+
+    /**
+     * Returns the number of requests that had to be sent to the backend.
+     *
+     * @return the number of network requests or 0 if there is no cache
+     */
+    public int getCacheNetworkCount() {
+        Cache current = cache;
+        return current != null ? current.networkCount() : 0;
+    }
+
+    /**
+     * Returns the ratio of requests answered by the cache (including conditional requests that
+     * the backend confirmed with "304 Not Modified") to all requests.
+     *
+     * @return the hit ratio of the cache or 0 if there is no cache
+     */
+    public double getCacheHitRatio() {
+        Cache current = cache;
+        if (current == null) {
+            return 0;
+        }
+        int requests = current.requestCount();
+        return requests == 0 ? 0 : current.hitCount() / (double) requests;
+    }
+
+    /**
+     * Returns the number of bytes currently stored in the cache.
+     *
+     * @return the size of the cache, 0 if there is no cache or -1 if the size is unknown
+     */
+    public long getCacheSize() {
+        Cache current = cache;
+        if (current == null) {
+            return 0;
+        }
+        try {
+            return current.size();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Registers / unregisters the metrics of this factory as an MXBean with the platform MBean
+     * server.
+     *
+     * @param enabled true if the metrics should be available via JMX
+     */
+    public synchronized void setJmxEnabled(boolean enabled) {
+        if (jmxEnabled == enabled) {
+            return;
+        }
+
+        jmxEnabled = enabled;
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = ObjectName.getInstance("com.dlsc.gemsfx:type=ServiceClientFactory,name=" + ObjectName.quote(name));
+            if (enabled && !server.isRegistered(objectName)) {
+                server.registerMBean(new StandardMBean(new Metrics(), ServiceClientFactoryMXBean.class, true), objectName);
+            } else if (!enabled && server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            LOG.log(Level.WARNING, "unable to " + (enabled ? "register" : "unregister") + " service client metrics via JMX: " + name, e);
+        }
+    }
+
+    public boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    /**
+     * The management interface of the metrics of a factory.
+     */
+    public interface ServiceClientFactoryMXBean {
+
+        String getName();
+
+        int getConnectionCount();
+
+        int getIdleConnectionCount();
+
+        int getActiveConnectionCount();
+
+        double getPoolUtilization();
+
+        int getRunningCallsCount();
+
+        int getQueuedCallsCount();
+
+        int getCacheRequestCount();
+
+        int getCacheHitCount();
+
+        int getCacheNetworkCount();
+
+        double getCacheHitRatio();
+
+        long getCacheSize();
+    }
+
+    private final class Metrics implements ServiceClientFactoryMXBean {
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public int getConnectionCount() {
+            return ServiceClientFactory.this.getConnectionCount();
+        }
+
+        @Override
+        public int getIdleConnectionCount() {
+            return ServiceClientFactory.this.getIdleConnectionCount();
+        }
+
+        @Override
+        public int getActiveConnectionCount() {
+            return ServiceClientFactory.this.getActiveConnectionCount();
+        }
+
+        @Override
+        public double getPoolUtilization() {
+            return ServiceClientFactory.this.getPoolUtilization();
+        }
+
+        @Override
+        public int getRunningCallsCount() {
+            return ServiceClientFactory.this.getRunningCallsCount();
+        }
+
+        @Override
+        public int getQueuedCallsCount() {
+            return ServiceClientFactory.this.getQueuedCallsCount();
+        }
+
+        @Override
+        public int getCacheRequestCount() {
+            return ServiceClientFactory.this.getCacheRequestCount();
+        }
+
+        @Override
+        public int getCacheHitCount() {
+            return ServiceClientFactory.this.getCacheHitCount();
+        }
+
+        @Override
+        public int getCacheNetworkCount() {
+            return ServiceClientFactory.this.getCacheNetworkCount();
+        }
+
+        @Override
+        public double getCacheHitRatio() {
+            return ServiceClientFactory.this.getCacheHitRatio();
+        }
+
+        @Override
+        public long getCacheSize() {
+            return ServiceClientFactory.this.getCacheSize();
+        }
+    }
+
+    /*
+     * Compresses the request bodies with gzip, unless a body is already encoded.
+     */
+    private static final class GzipRequestInterceptor implements Interceptor {
+
+        @Override
+        public okhttp3.Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            RequestBody body = request.body();
+
+            if (body == null || request.header("Content-Encoding") != null) {
+                return chain.proceed(request);
+            }
+
+            Request compressed = request.newBuilder()
+                    .header("Content-Encoding", "gzip")
+                    .method(request.method(), new RequestBody() {
+                        @Override
+                        public MediaType contentType() {
+                            return body.contentType();
+                        }
+
+                        @Override
+                        public long contentLength() {
+                            return -1;
+                        }
+
+                        @Override
+                        public void writeTo(BufferedSink sink) throws IOException {
+                            try (BufferedSink gzipSink = Okio.buffer(new GzipSink(sink))) {
+                                body.writeTo(gzipSink);
+                            }
+                        }
+                    })
+                    .build();
+
+            return chain.proceed(compressed);
+        }
+    }
+}
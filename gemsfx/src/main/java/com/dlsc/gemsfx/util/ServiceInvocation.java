@@ -4,21 +4,45 @@
 package com.dlsc.gemsfx.util;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javafx.application.Platform;
 import javafx.beans.property.ReadOnlyBooleanProperty;
 import javafx.beans.property.ReadOnlyBooleanWrapper;
 import javafx.beans.property.ReadOnlyDoubleProperty;
@@ -28,8 +52,21 @@ import javafx.beans.property.ReadOnlyObjectWrapper;
 import javafx.beans.property.ReadOnlyStringProperty;
 import javafx.beans.property.ReadOnlyStringWrapper;
 import javafx.concurrent.Worker;
+import javafx.stage.Stage;
+import javafx.stage.Window;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import retrofit2.Call;
 import retrofit2.Response;
 
+import com.dlsc.gemsfx.util.ServiceInvocationMetrics.InvocationMetrics;
+import com.dlsc.gemsfx.util.ServiceInvocationMetrics.Outcome;
+import com.dlsc.gemsfx.util.ServiceInvocationMetrics.Phase;
+
 /**
  * A utility class used to invoke backend services via Retrofit on a separate thread and to
  * handle the response on the UI thread. This class makes it extremely easy to do this and
@@ -62,6 +99,11 @@ import retrofit2.Response;
  * where service invocations are being executed (e.g. Window.execute(si) or Workbench.execute(si))
  * and wants to set "default" handlers in that location. At the same time each specific occurrence
  * of a service invocation might require its own / more specific handlers.
+ * <p>
+ * All updates of the worker properties and all handler invocations are passed to the UI thread
+ * via the default {@link FXDispatcher}, which batches them into as few "run later" calls as
+ * possible.
+ * </p>
  *
  * @param <T> the type of the result object wrapped inside the retrofit response
  */
@@ -77,8 +119,32 @@ public final class ServiceInvocation<T> implements Worker<T> {
         return thread;
     });
 
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r);
+        thread.setName("Service Invocation Timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final ThreadLocal<Deadline> CURRENT_DEADLINE = new ThreadLocal<>();
+
+    private static final FXDispatcher DISPATCHER = FXDispatcher.getDefault();
+
+    private static final int DEFAULT_MAX_ERROR_BODY_SIZE = 64 * 1024;
+
+    private static final Map<String, ServiceInvocation<?>> LATEST_INVOCATIONS = new ConcurrentHashMap<>();
+
+    private static volatile ExecutorStrategy defaultExecutorStrategy = ExecutorStrategy.PLATFORM_THREADS;
+
+    private static volatile ServiceInvocationScheduler defaultScheduler;
+
+    private static volatile SimulationProfile simulationProfile;
+
     private final String name;
     private final ServiceSupplier<T> service;
+    private final ConditionalCallSupplier<T> callSupplier;
+
+    private String key;
 
     private Consumer<String> onStart;
     private Consumer<T> onSuccess;
@@ -94,16 +160,121 @@ public final class ServiceInvocation<T> implements Worker<T> {
     private BiConsumer<String, Response> onFailureDetailedDefault;
     private BiConsumer<String, Exception> onExceptionDefault;
 
+    private BiConsumer<String, ErrorPreview> onFailureDetailedPreview;
+
+    private BiConsumer<String, ServiceInvocationTimeoutException> onTimeout;
+
+    private Consumer<String> onQueued;
+
     private Map<HttpStatusCode, BiConsumer<String, String>> onStatusCode;
     private Map<HttpStatusCode, BiConsumer<String, String>> onStatusCodeDefault;
 
     private boolean simulatingFailure;
 
+    private int maxErrorBodySize = DEFAULT_MAX_ERROR_BODY_SIZE;
+
     private long delay;
 
-    private ServiceInvocation(String name, ServiceSupplier<T> service) {
+    private boolean asyncCallbacks;
+
+    private ExecutorStrategy executorStrategy;
+
+    private boolean latestWins;
+
+    private Priority priority = Priority.INTERACTIVE;
+
+    private ServiceInvocationScheduler scheduler;
+
+    private RetryPolicy retryPolicy;
+
+    private CircuitBreaker circuitBreaker;
+
+    private HedgePolicy hedgePolicy;
+
+    private RateLimiter rateLimiter;
+
+    private OfflineQueue offlineQueue;
+
+    // assigned before the first attempt when using an offline queue, read by hedged attempts
+    private volatile OfflineQueue.IdempotencyKey idempotencyKey;
+
+    // the call the idempotency key was taken from, executed by the first attempt
+    private final AtomicReference<Call<T>> preparedCall = new AtomicReference<>();
+
+    private volatile boolean queued;
+
+    // true if the request got queued because the backend could not be reached
+    private volatile boolean queuedAfterFailure;
+
+    // set when used as a publisher, see toPublisher()
+    private volatile boolean detached;
+
+    private boolean deduplication;
+
+    private ResponseCache cache;
+
+    private Duration cacheTimeToLive;
+
+    private boolean staleWhileRevalidate;
+
+    private volatile String requestETag;
+
+    private Executor executor;
+
+    private InvocationMetrics metrics;
+
+    private Duration timeout;
+
+    private Deadline deadline;
+
+    private volatile Deadline effectiveDeadline;
+
+    private ScheduledFuture<?> timeoutFuture;
+
+    private long executedAt;
+
+    private Consumer<Response<T>> responseListener;
+
+    private final List<ProgressRequestBody> uploads = new ArrayList<>();
+
+    private volatile long transferStartedAt;
+
+    // cancellation
+
+    private final AtomicBoolean outcomeDecided = new AtomicBoolean();
+
+    private final Object cancelLock = new Object();
+
+    private volatile boolean cancelled;
+
+    private volatile boolean timedOut;
+
+    // set when either cancelled or timed out
+    private volatile boolean aborted;
+
+    private Thread runner;
+
+    private volatile Call<T> currentCall;
+
+    // the submission waiting for a token of the rate limiter or for the next poll, guarded by "cancelLock"
+    private ScheduledFuture<?> delayedSubmissionFuture;
+
+    private Runnable delayedSubmission;
+
+    // polling
+
+    private String pollETag;
+
+    private T lastPolledBody;
+
+    private boolean polledBefore;
+
+    private long pollIntervalNanos;
+
+    private ServiceInvocation(String name, ServiceSupplier<T> service, ConditionalCallSupplier<T> callSupplier) {
         this.name = Objects.requireNonNull(name, "service invocation name can not be null");
-        this.service = Objects.requireNonNull(service, "service can not be null");
+        this.service = service;
+        this.callSupplier = callSupplier;
 
         title.set(name);
     }
@@ -117,7 +288,172 @@ public final class ServiceInvocation<T> implements Worker<T> {
      * @return a service invocation
      */
     public static <T> ServiceInvocation<T> create(String name, ServiceSupplier<T> supplier) {
-        return new ServiceInvocation(name, supplier);
+        return new ServiceInvocation<>(name, Objects.requireNonNull(supplier, "service can not be null"), null);
+    }
+
+    /**
+     * Creates a new service invocation instance based on a supplier that returns the Retrofit
+     * call instead of the response. The service invocation will execute the call itself, which
+     * allows it to abort the call when the invocation gets cancelled (see {@link #cancel()}).
+     * The factory method has its own name, as the zero-argument lambdas and method references
+     * returning a call would otherwise be ambiguous with {@link #create(String, ServiceSupplier)}.
+     * <pre>
+     *         ServiceInvocation.createForCall("Load data ...", () -> myService.loadData())
+     *              .onSuccess(data -> listView.getItems().setAll(data)).execute();
+     *     </pre>
+     *
+     * @param name     the name of this invocation
+     * @param supplier the supplier returning the call for invocation
+     * @param <T>      the type of the response object
+     * @return a service invocation
+     */
+    public static <T> ServiceInvocation<T> createForCall(String name, CallSupplier<T> supplier) {
+        Objects.requireNonNull(supplier, "call supplier can not be null");
+        return new ServiceInvocation<>(name, null, eTag -> supplier.get());
+    }
+
+    /**
+     * Creates a new service invocation instance based on a supplier that returns a conditional
+     * Retrofit call. The supplier receives the "ETag" of the response stored in the cache of the
+     * invocation (see {@link #withCache(ResponseCache, Duration)}) or null. The ETag is meant to be
+     * sent to the backend in the "If-None-Match" header, which allows the backend to respond with
+     * {@link HttpStatusCode#NOT_MODIFIED} instead of sending the same data again. Retrofit omits
+     * headers with null values, so the supplier can simply pass the ETag on:
+     * <pre>
+     *         &#64;GET("countries")
+     *         Call&lt;List&lt;Country&gt;&gt; loadCountries(&#64;Header("If-None-Match") String eTag);
+     *
+     *         ServiceInvocation.createForConditionalCall("Load countries ...", eTag -> myService.loadCountries(eTag))
+     *              .withCache(ResponseCache.getDefault(), Duration.ofMinutes(10))
+     *              .onSuccess(countries -> comboBox.getItems().setAll(countries)).execute();
+     *     </pre>
+     *
+     * @param name     the name of this invocation
+     * @param supplier the supplier returning the conditional call for invocation
+     * @param <T>      the type of the response object
+     * @return a service invocation
+     */
+    public static <T> ServiceInvocation<T> createForConditionalCall(String name, ConditionalCallSupplier<T> supplier) {
+        return new ServiceInvocation<>(name, null, Objects.requireNonNull(supplier, "call supplier can not be null"));
+    }
+
+    /**
+     * Creates a new service invocation that streams the body of the response into the given
+     * consumer instead of loading it into memory. While the body is being transferred the "work
+     * done" property holds the number of bytes received so far and the "total work" property the
+     * length of the body (or -1 if the backend did not send a "Content-Length" header). The result
+     * of the invocation is the number of bytes received. The Retrofit method has to be annotated
+     * with "@Streaming":
+     * <pre>
+     *         &#64;Streaming
+     *         &#64;GET("export")
+     *         Call&lt;ResponseBody&gt; export();
+     *
+     *         ServiceInvocation.createDownload("Export ...", () -> myService.export(), chunk -> parser.feed(chunk))
+     *              .onSuccess(bytes -> parser.finish()).execute();
+     *     </pre>
+     * Please note that the consumer gets invoked on a background thread and that it receives the
+     * body from the beginning again if the call gets retried.
+     *
+     * @param name     the name of this invocation
+     * @param supplier the supplier returning the call for invocation
+     * @param consumer the consumer receiving the chunks of the body
+     * @return a service invocation
+     */
+    public static ServiceInvocation<Long> createDownload(String name, CallSupplier<ResponseBody> supplier, ChunkConsumer consumer) {
+        Objects.requireNonNull(supplier, "call supplier can not be null");
+        Objects.requireNonNull(consumer, "chunk consumer can not be null");
+
+        StreamingCall.Sink<Long> sink = new StreamingCall.Sink<>() {
+            @Override
+            public void write(ByteBuffer chunk) throws IOException {
+                consumer.accept(chunk);
+            }
+
+            @Override
+            public Long finish(long bytes) {
+                return bytes;
+            }
+
+            @Override
+            public void abort() {
+            }
+        };
+
+        return new ServiceInvocation<>(name, null, eTag -> new StreamingCall<>(supplier.get(), () -> sink));
+    }
+
+    /**
+     * Creates a new service invocation that streams the body of the response into the given file
+     * instead of loading it into memory. The body will first be written to a temporary file in
+     * the same directory, which replaces the target file once the body has been received
+     * completely. See {@link #createDownload(String, CallSupplier, ChunkConsumer)} for details
+     * on the progress reporting. The result of the invocation is the target file.
+     *
+     * @param name     the name of this invocation
+     * @param supplier the supplier returning the call for invocation
+     * @param target   the file the body will be written to
+     * @return a service invocation
+     */
+    public static ServiceInvocation<Path> createDownload(String name, CallSupplier<ResponseBody> supplier, Path target) {
+        Objects.requireNonNull(supplier, "call supplier can not be null");
+        Objects.requireNonNull(target, "target can not be null");
+
+        return new ServiceInvocation<>(name, null, eTag -> new StreamingCall<>(supplier.get(), () -> new FileSink(target)));
+    }
+
+    /*
+     * Writes a body to a temporary file and moves it to the target once complete.
+     */
+    private static final class FileSink implements StreamingCall.Sink<Path> {
+
+        private final Path target;
+
+        private Path part;
+
+        private FileChannel channel;
+
+        private FileSink(Path target) {
+            this.target = target;
+        }
+
+        @Override
+        public void write(ByteBuffer chunk) throws IOException {
+            if (channel == null) {
+                open();
+            }
+            while (chunk.hasRemaining()) {
+                channel.write(chunk);
+            }
+        }
+
+        private void open() throws IOException {
+            Path directory = target.toAbsolutePath().getParent();
+            part = Files.createTempFile(directory, target.getFileName().toString(), ".part");
+            channel = FileChannel.open(part, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        @Override
+        public Path finish(long bytes) throws IOException {
+            if (channel == null) {
+                open();
+            }
+            channel.force(false);
+            channel.close();
+            return Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        @Override
+        public void abort() {
+            try {
+                if (channel != null) {
+                    channel.close();
+                    Files.deleteIfExists(part);
+                }
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "unable to delete incomplete download: " + part, e);
+            }
+        }
     }
 
     private BiConsumer<String, String> getOnFailure() {
@@ -147,12 +483,80 @@ public final class ServiceInvocation<T> implements Worker<T> {
     }
 
     /**
-     * Executes the service invocation with the default executor.
+     * Sets the strategy used by all service invocations that have not been configured with their
+     * own strategy via {@link #withExecutorStrategy(ExecutorStrategy)}.
+     *
+     * @param strategy the default executor strategy
+     */
+    public static void setDefaultExecutorStrategy(ExecutorStrategy strategy) {
+        defaultExecutorStrategy = Objects.requireNonNull(strategy, "executor strategy can not be null");
+    }
+
+    /**
+     * Returns the strategy used by all service invocations that have not been configured with their
+     * own strategy. The initial value is {@link ExecutorStrategy#PLATFORM_THREADS}.
+     *
+     * @return the default executor strategy
+     */
+    public static ExecutorStrategy getDefaultExecutorStrategy() {
+        return defaultExecutorStrategy;
+    }
+
+    /**
+     * Sets the scheduler used by all service invocations that have not been configured with their
+     * own scheduler via {@link #withScheduler(ServiceInvocationScheduler)}. The initial value is null,
+     * which means that invocations will be executed right away, without any concurrency limits.
+     *
+     * @param scheduler the default scheduler or null
+     */
+    public static void setDefaultScheduler(ServiceInvocationScheduler scheduler) {
+        defaultScheduler = scheduler;
+    }
+
+    /**
+     * Returns the scheduler used by all service invocations that have not been configured with
+     * their own scheduler.
+     *
+     * @return the default scheduler or null
+     */
+    public static ServiceInvocationScheduler getDefaultScheduler() {
+        return defaultScheduler;
+    }
+
+    /**
+     * Activates a profile simulating latencies, failures and timeouts for all calls of the
+     * backend. Meant for load testing and for development only.
+     *
+     * @param profile the profile or null to disable the simulation
+     */
+    public static void setSimulationProfile(SimulationProfile profile) {
+        if (profile != null) {
+            LOG.warning("activating simulation profile for service invocations");
+        }
+        simulationProfile = profile;
+    }
+
+    /**
+     * Returns the active simulation profile.
+     *
+     * @return the profile or null
+     */
+    public static SimulationProfile getSimulationProfile() {
+        return simulationProfile;
+    }
+
+    /**
+     * Executes the service invocation. If a {@link ServiceInvocationScheduler} has been configured
+     * the invocation will be submitted to it, otherwise the invocation will be executed right away
+     * with the executor of the configured {@link ExecutorStrategy}.
      *
      * @return a completable future object usable for chaining
+     * @see #withScheduler(ServiceInvocationScheduler)
+     * @see #withExecutorStrategy(ExecutorStrategy)
+     * @see #setDefaultExecutorStrategy(ExecutorStrategy)
      */
     public CompletableFuture<Void> execute() {
-        return execute(EXECUTOR);
+        return execute(resolveExecutor());
     }
 
     /**
@@ -163,161 +567,1664 @@ public final class ServiceInvocation<T> implements Worker<T> {
     public CompletableFuture<Void> execute(Executor executor) {
         Objects.requireNonNull(executor, "executor can not be null");
 
+        this.executor = executor;
+        this.metrics = ServiceInvocationMetrics.getDefault().forKey(getKey());
+        this.executedAt = System.nanoTime();
+
+        ServiceInvocationEvents.Scheduled scheduledEvent = new ServiceInvocationEvents.Scheduled();
+        if (scheduledEvent.shouldCommit()) {
+            scheduledEvent.name = name;
+            scheduledEvent.key = getKey();
+            scheduledEvent.priority = priority.name();
+            scheduledEvent.commit();
+        }
+
         CompletableFuture<Void> result = new CompletableFuture<>();
 
         state.set(State.RUNNING);
         totalWork.set(1);
         running.set(true);
         progress.set(0);
+        throughput.set(0);
 
-        executor.execute(() -> {
+        for (ProgressRequestBody upload : uploads) {
+            upload.setListener(this::sent);
+        }
+
+        Deadline effective = resolveDeadline();
+        effectiveDeadline = effective;
+
+        CircuitBreaker breaker = circuitBreaker;
 
-            if (onStart != null) {
-                Platform.runLater(() -> onStart.accept(getName()));
+        if (breaker != null && !breaker.tryAcquirePermission()) {
+            reject(result, new CircuitBreakerOpenException(breaker));
+            return result;
+        }
+
+        if (latestWins) {
+            ServiceInvocation<?> previous = LATEST_INVOCATIONS.put(getKey(), this);
+            if (previous != null && previous != this) {
+                LOG.fine("cancelling previous service invocation with key: " + getKey());
+                previous.cancel();
             }
+        }
+
+        if (effective != null) {
+            timeoutFuture = TIMER.schedule(() -> timeout(result), Math.max(0, effective.getRemainingNanos()), TimeUnit.NANOSECONDS);
+        }
+
+        long rateLimitWait = rateLimiter != null ? rateLimiter.reserve() : 0;
+
+        if (rateLimitWait > 0) {
+            waitForRateLimit(rateLimitWait, () -> submit(result, breaker));
+        } else {
+            submit(result, breaker);
+        }
+
+        return result;
+    }
 
+    private Deadline resolveDeadline() {
+        Deadline effective = deadline != null ? deadline : CURRENT_DEADLINE.get();
+        if (timeout != null) {
+            effective = Deadline.after(timeout).earliest(effective);
+        }
+        return effective;
+    }
+
+    /*
+     * Returns the executor that execute() would use.
+     */
+    Executor resolveExecutor() {
+        ServiceInvocationScheduler scheduler = getScheduler();
+        return scheduler != null ? scheduler.executorFor(getKey(), priority) : getExecutorStrategy().getExecutor();
+    }
+
+    /**
+     * Returns a publisher emitting the body of the response of this invocation, for use in
+     * reactive pipelines. The backend gets called on the executor of this invocation once the
+     * subscriber requests an item. A successful response with a body results in a single item
+     * followed by the completion, an unsuccessful response in a {@link retrofit2.HttpException}.
+     * Cancelling the subscription cancels the invocation.
+     * <p>
+     * The publisher does not use the UI thread at all: the handlers of the invocation are not
+     * called and its worker properties are not updated. Subscribers that need to run on the UI
+     * thread can be wrapped with {@link FXSubscriber#of(Flow.Subscriber)}. The invocation can
+     * only be executed once, hence the publisher only accepts a single subscriber.
+     * </p>
+     *
+     * @return the publisher
+     * @see PagingPublisher
+     */
+    public Flow.Publisher<T> toPublisher() {
+        return new InvocationPublisher<>(this);
+    }
+
+    /*
+     * Hands a detached execution (see executeDetached()) to the given executor once the rate
+     * limiter has a token for it, so that the wait does not occupy a thread of the executor. A
+     * cancellation submits the execution right away so that it can complete.
+     */
+    void submitDetached(Executor executor, Runnable execution, Consumer<RejectedExecutionException> rejected) {
+        detached = true;
 
-            LOG.fine("executing service invocation with name: " + getName());
+        Runnable submission = () -> {
             try {
+                executor.execute(ServiceInvocationScheduler.onRejected(execution, rejected));
+            } catch (RejectedExecutionException e) {
+                rejected.accept(e);
+            }
+        };
 
-                if (delay > 0) {
-                    delay();
-                }
+        long rateLimitWait = rateLimiter != null ? rateLimiter.reserve() : 0;
+
+        if (rateLimitWait > 0) {
+            waitForRateLimit(rateLimitWait, submission);
+        } else {
+            submission.run();
+        }
+    }
+
+    /**
+     * Performs the service call on the current thread without touching the UI thread. Used by
+     * the publishers, which take care of the result themselves. The token of the rate limiter
+     * has to be taken by {@link #submitDetached(Executor, Runnable, Consumer)} beforehand.
+     *
+     * @return the response or null if the request has been appended to the offline queue
+     * @throws Exception if the call failed, was cancelled or timed out
+     */
+    Response<T> executeDetached() throws Exception {
+        detached = true;
+        metrics = ServiceInvocationMetrics.getDefault().forKey(getKey());
+        executedAt = System.nanoTime();
 
-                Instant startTime = Instant.now();
+        Deadline effective = resolveDeadline();
+        effectiveDeadline = effective;
 
-                Platform.runLater(() -> message.set("Calling service"));
+        CircuitBreaker breaker = circuitBreaker;
 
-                Response<T> response = service.get();
+        if (breaker != null && !breaker.tryAcquirePermission()) {
+            record(Outcome.REJECTED);
+            throw new CircuitBreakerOpenException(breaker);
+        }
 
-                if (LOG.isLoggable(Level.FINE)) {
-                    Duration duration = Duration.between(startTime, Instant.now());
-                    LOG.fine("server side call duration: " + duration.toMillis() + "ms");
+        ScheduledFuture<?> detachedTimeout = null;
+        if (effective != null) {
+            detachedTimeout = TIMER.schedule(() -> {
+                if (outcomeDecided.compareAndSet(false, true)) {
+                    timedOut = true;
+                    abort();
                 }
+            }, Math.max(0, effective.getRemainingNanos()), TimeUnit.NANOSECONDS);
+        }
 
-                if (response.isSuccessful() && !isSimulatingFailure()) {
-                    success(response);
+        long startTime = System.nanoTime();
+        boolean recorded = false;
+
+        try {
+            Response<T> response = call();
+
+            if (breaker != null) {
+                if (response != null) {
+                    breaker.record(HttpStatusCode.Family.familyOf(response.code()) == HttpStatusCode.Family.SERVER_ERROR, System.nanoTime() - startTime);
                 } else {
-                    failure(response);
+                    releaseQueued(breaker, startTime);
                 }
+                recorded = true;
+            }
 
-                result.complete(null);
+            record(response == null ? Outcome.QUEUED : response.isSuccessful() ? Outcome.SUCCESS : Outcome.FAILURE);
+            return response;
+        } catch (Exception e) {
+            if (timedOut) {
+                record(Outcome.TIMEOUT);
+                e = new ServiceInvocationTimeoutException(name, effective);
+            } else {
+                record(cancelled ? Outcome.CANCELLED : Outcome.EXCEPTION);
+            }
+            if (breaker != null && !recorded) {
+                if (cancelled) {
+                    breaker.release();
+                } else {
+                    breaker.record(true, System.nanoTime() - startTime);
+                }
+            }
+            throw e;
+        } finally {
+            if (detachedTimeout != null) {
+                detachedTimeout.cancel(false);
+            }
+            record(Phase.TOTAL, System.nanoTime() - executedAt);
+        }
+    }
 
-            } catch (Exception t) {
-                exception(result, t);
-            } finally {
-                doFinally();
+    /*
+     * Hands the invocation to the executor once the rate limiter has a token for it. A
+     * cancellation or a timeout submits the invocation right away so that it can complete.
+     */
+    private void waitForRateLimit(long waitNanos, Runnable submission) {
+        LOG.fine("rate limit reached, delaying service invocation " + getName() + " by " + TimeUnit.NANOSECONDS.toMillis(waitNanos) + "ms");
+
+        if (!detached) {
+            message.set("Waiting " + formatNanos(waitNanos) + " (rate limit)");
+        }
+
+        ServiceInvocationEvents.RateLimit rateLimitEvent = new ServiceInvocationEvents.RateLimit();
+        if (rateLimitEvent.shouldCommit()) {
+            rateLimitEvent.name = name;
+            rateLimitEvent.wait = waitNanos;
+            rateLimitEvent.commit();
+        }
+
+        submitDelayed(submission, waitNanos);
+    }
+
+    /*
+     * Runs the given submission after the delay. A cancellation or a timeout runs the submission
+     * right away (see abort()).
+     */
+    private void submitDelayed(Runnable submission, long delayNanos) {
+        synchronized (cancelLock) {
+            if (!aborted) {
+                delayedSubmission = submission;
+                delayedSubmissionFuture = TIMER.schedule(submission, delayNanos, TimeUnit.NANOSECONDS);
+                return;
             }
-        });
+        }
 
-        return result;
+        submission.run();
     }
 
-    private void delay() throws InterruptedException {
-        LOG.finer("delaying service call, millis = " + delay);
-        Thread.sleep(delay);
+    private static String formatNanos(long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        if (millis < 1000) {
+            return millis + " ms";
+        }
+        return String.format("%.1f s", millis / 1000d);
     }
 
-    private void success(Response<T> response) throws ExecutionException, InterruptedException {
-        Platform.runLater(() -> {
-            message.set("Call was successful");
-            state.set(State.SUCCEEDED);
-        });
+    private void submit(CompletableFuture<Void> result, CircuitBreaker breaker) {
+        try {
+            executor.execute(ServiceInvocationScheduler.onRejected(() -> run(result, breaker), e -> rejected(result, breaker, e)));
+        } catch (RejectedExecutionException e) {
+            rejected(result, breaker, e);
+        }
+    }
 
-        if (onSuccess != null) {
-            LOG.finer("invoking onSuccess handler");
-            runAndWait(() -> onSuccess.accept(response.body()));
-        } else if (onSuccessDetailed != null) {
-            LOG.finer("invoking onSuccessDetailed handler");
-            runAndWait(() -> onSuccessDetailed.accept(response));
+    private void rejected(CompletableFuture<Void> result, CircuitBreaker breaker, RejectedExecutionException e) {
+        if (timeoutFuture != null) {
+            timeoutFuture.cancel(false);
+        }
+        if (breaker != null) {
+            breaker.release();
         }
+        if (latestWins) {
+            LATEST_INVOCATIONS.remove(getKey(), this);
+        }
+        reject(result, e);
     }
 
-    private void failure(Response<T> response) throws IOException, ExecutionException, InterruptedException {
-        Platform.runLater(() -> {
-            message.set("Call was not successful");
-            state.set(State.FAILED);
-        });
+    /**
+     * Polls the backend with the given interval until the invocation gets cancelled, see
+     * {@link #poll(PollingPolicy)}.
+     *
+     * @param interval the interval used as long as the responses keep changing
+     * @return a completable future object that completes when the polling has been cancelled
+     */
+    public CompletableFuture<Void> poll(Duration interval) {
+        return poll(new PollingPolicy(interval));
+    }
 
-        String errorMessage = simulatingFailure ? "Simulated failure" : (response.errorBody() != null ? response.errorBody().string() : "");
+    /**
+     * Polls the backend until the invocation gets cancelled. The success handler only gets called
+     * when the body of the response differs from the previous one (as determined by its equals()
+     * method). If the invocation was created with a {@link ConditionalCallSupplier} the "ETag" of
+     * the last response will be passed to the supplier, so that the backend can answer with
+     * {@link HttpStatusCode#NOT_MODIFIED} and without a body when nothing has changed. The
+     * interval adapts to the responses and to the state of the application's windows as defined
+     * by the given policy. Failure and exception handlers are called for every failed poll, the
+     * polling continues afterwards. The finally handler gets called once the polling has been
+     * cancelled.
+     * <p>
+     * While polling the invocation stays in the {@link Worker.State#RUNNING} state, its message
+     * shows the time until the next poll. The delay, the retry policy, the cache, the circuit
+     * breaker, the rate limiter and the timeout of the invocation are not used when polling.
+     * </p>
+     *
+     * @param policy the policy defining the interval
+     * @return a completable future object that completes when the polling has been cancelled
+     */
+    public CompletableFuture<Void> poll(PollingPolicy policy) {
+        Objects.requireNonNull(policy, "polling policy can not be null");
 
-        LOG.log(Level.SEVERE, "service call was not successful: " + errorMessage);
+        this.executor = resolveExecutor();
+        this.metrics = ServiceInvocationMetrics.getDefault().forKey(getKey());
+        this.executedAt = System.nanoTime();
 
-        if (onStatusCode != null || onStatusCodeDefault != null) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
 
-            BiConsumer<String, String> statusCodeConsumer = getOnStatusCode(HttpStatusCode.fromStatusCode(response.code()));
+        state.set(State.RUNNING);
+        running.set(true);
+        progress.set(-1);
 
-            if (statusCodeConsumer != null) {
+        submitPoll(result, policy);
 
-                LOG.finer("invoking onStatusCode handler for status code " + response.code());
-                Platform.runLater(() -> statusCodeConsumer.accept(name, errorMessage));
+        return result;
+    }
+
+    private void submitPoll(CompletableFuture<Void> result, PollingPolicy policy) {
+        try {
+            executor.execute(ServiceInvocationScheduler.onRejected(() -> pollOnce(result, policy), e -> pollRejected(result, policy)));
+        } catch (RejectedExecutionException e) {
+            pollRejected(result, policy);
+        }
+    }
+
+    private void pollRejected(CompletableFuture<Void> result, PollingPolicy policy) {
+        LOG.warning("poll of service invocation " + getName() + " was rejected, polling again later");
+        DISPATCHER.dispatch(() -> scheduleNextPoll(result, policy, false));
+    }
+
+    /*
+     * Performs a single poll on a background thread. Runs one last time after the invocation
+     * has been cancelled to complete the polling.
+     */
+    private void pollOnce(CompletableFuture<Void> result, PollingPolicy policy) {
+        synchronized (cancelLock) {
+            runner = Thread.currentThread();
+        }
+
+        boolean changed = false;
+
+        try {
+            if (aborted) {
+                throw new CancellationException();
+            }
+
+            requestETag = pollETag;
+
+            Response<T> response = invokeService("Polling");
+
+            if (response.code() == HttpStatusCode.NOT_MODIFIED.getStatusCode()) {
+                record(Outcome.SUCCESS);
+                if (response.errorBody() != null) {
+                    response.errorBody().close();
+                }
+            } else if (response.isSuccessful()) {
+                record(Outcome.SUCCESS);
+
+                T body = response.body();
+                String eTag = response.headers().get("ETag");
+
+                changed = !polledBefore || !Objects.equals(body, lastPolledBody);
+
+                pollETag = eTag;
+                lastPolledBody = body;
+                polledBefore = true;
+
+                if (changed) {
+                    notifySuccess(response);
+                }
+            } else {
+                record(Outcome.FAILURE);
+                notifyFailure(response);
+            }
+        } catch (Exception e) {
+            if (!aborted) {
+                record(Outcome.EXCEPTION);
+                LOG.log(Level.SEVERE, "error when trying to poll the service: " + getName(), e);
+
+                DISPATCHER.dispatch(() -> exception.set(e));
+
+                BiConsumer<String, Exception> onExceptionHandler = getOnException();
+
+                if (onExceptionHandler != null) {
+                    try {
+                        callback("onException", () -> onExceptionHandler.accept(name, e));
+                    } catch (Exception ex) {
+                        LOG.log(Level.SEVERE, "error when trying to propagate error message from service invocation: " + getName(), ex);
+                    }
+                }
+            }
+        } finally {
+            synchronized (cancelLock) {
+                runner = null;
+                currentCall = null;
+            }
+        }
+
+        if (aborted) {
+            // clear a possible interrupt caused by cancel() so that the finally handler can run
+            Thread.interrupted();
+
+            LOG.fine("polling was cancelled: " + getName());
+            record(Outcome.CANCELLED);
+            completeResult(() -> result.cancel(false));
+            doFinally();
+            record(Phase.TOTAL, System.nanoTime() - executedAt);
+            return;
+        }
+
+        boolean pollChanged = changed;
+        DISPATCHER.dispatch(() -> scheduleNextPoll(result, policy, pollChanged));
+    }
+
+    /*
+     * Determines the interval until the next poll. Runs on the UI thread so that the state of
+     * the windows can be checked.
+     */
+    private void scheduleNextPoll(CompletableFuture<Void> result, PollingPolicy policy, boolean changed) {
+        pollIntervalNanos = policy.nextIntervalNanos(pollIntervalNanos, changed);
+
+        double multiplier = 1;
+        if (isApplicationHidden()) {
+            multiplier = policy.getHiddenMultiplier();
+        } else if (!isApplicationFocused()) {
+            multiplier = policy.getUnfocusedMultiplier();
+        }
+
+        long delayNanos = (long) (pollIntervalNanos * multiplier);
+
+        message.set("Next poll in " + formatNanos(delayNanos));
+
+        submitDelayed(() -> submitPoll(result, policy), delayNanos);
+    }
+
+    private static boolean isApplicationHidden() {
+        for (Window window : Window.getWindows()) {
+            if (window.isShowing() && !(window instanceof Stage && ((Stage) window).isIconified())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isApplicationFocused() {
+        for (Window window : Window.getWindows()) {
+            if (window.isFocused()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void run(CompletableFuture<Void> result, CircuitBreaker breaker) {
+        long queueWait = System.nanoTime() - executedAt;
+        record(Phase.QUEUE_WAIT, queueWait);
+
+        ServiceInvocationEvents.Started startedEvent = new ServiceInvocationEvents.Started();
+        if (startedEvent.shouldCommit()) {
+            startedEvent.name = name;
+            startedEvent.queueWait = queueWait;
+            startedEvent.commit();
+        }
+
+        if (onStart != null) {
+            DISPATCHER.dispatch(() -> onStart.accept(getName()));
+        }
+
+        LOG.fine("executing service invocation with name: " + getName());
+
+        long startTime = System.nanoTime();
+        boolean recorded = false;
+
+        try {
+
+            Response<T> response = call();
+
+            if (queued) {
+                if (breaker != null) {
+                    releaseQueued(breaker, startTime);
+                    recorded = true;
+                }
+                record(Outcome.QUEUED);
+                queued();
+                completeResult(() -> result.complete(null));
+                return;
+            }
+
+            if (responseListener != null) {
+                responseListener.accept(response);
+            }
+
+            if (breaker != null) {
+                breaker.record(HttpStatusCode.Family.familyOf(response.code()) == HttpStatusCode.Family.SERVER_ERROR, System.nanoTime() - startTime);
+                recorded = true;
+            }
+
+            if (response.isSuccessful() && !isSimulatingFailure()) {
+                record(Outcome.SUCCESS);
+                success(response);
+            } else {
+                record(Outcome.FAILURE);
+                failure(response);
+            }
+
+            completeResult(() -> result.complete(null));
+
+        } catch (Exception t) {
+            if (timedOut) {
+                // the handlers have already been called by the timer
+                if (breaker != null && !recorded) {
+                    breaker.record(true, System.nanoTime() - startTime);
+                }
+                record(Outcome.TIMEOUT);
+            } else if (cancelled) {
+                LOG.fine("service invocation was cancelled: " + getName());
+                record(Outcome.CANCELLED);
+                if (breaker != null) {
+                    breaker.release();
+                }
+                completeResult(() -> result.cancel(false));
+            } else {
+                if (breaker != null && !recorded) {
+                    breaker.record(true, System.nanoTime() - startTime);
+                }
+                record(Outcome.EXCEPTION);
+                exception(result, t);
+            }
+        } finally {
+            if (timeoutFuture != null) {
+                timeoutFuture.cancel(false);
+            }
+            if (latestWins) {
+                LATEST_INVOCATIONS.remove(getKey(), this);
+            }
+            ServiceInvocationEvents.Finally finallyEvent = new ServiceInvocationEvents.Finally();
+            finallyEvent.begin();
+
+            if (!timedOut) {
+                doFinally();
+            }
+
+            long totalTime = System.nanoTime() - executedAt;
+            record(Phase.TOTAL, totalTime);
+
+            if (finallyEvent.shouldCommit()) {
+                finallyEvent.name = name;
+                finallyEvent.totalTime = totalTime;
+                finallyEvent.commit();
+            }
+        }
+    }
+
+    /*
+     * Fails the invocation without using a background thread, e.g. when a circuit breaker is open.
+     * The handlers are queued on the UI thread as this method might have been called on it.
+     */
+    private void reject(CompletableFuture<Void> result, Exception ex) {
+        LOG.warning("service invocation " + getName() + " was rejected: " + ex.getMessage());
+
+        outcomeDecided.set(true);
+
+        record(Outcome.REJECTED);
+
+        DISPATCHER.dispatch(() -> {
+            state.set(State.FAILED);
+            exception.set(ex);
+            message.set("Service invocation was rejected");
+            running.set(false);
+            progress.set(1);
+        });
+
+        BiConsumer<String, Exception> onExceptionHandler = getOnException();
+
+        if (onExceptionHandler != null) {
+            DISPATCHER.dispatch(() -> onExceptionHandler.accept(name, ex));
+        }
+
+        DISPATCHER.dispatch(() -> result.completeExceptionally(ex));
+
+        if (onFinally != null) {
+            DISPATCHER.dispatch(onFinally);
+        }
+    }
+
+    /*
+     * Performs the delay and the actual service call. The thread and the Retrofit call are
+     * registered while this method is running so that cancel() can interrupt / abort them.
+     * Once the call has returned the worker and cancel() compete for deciding the outcome of
+     * the invocation. If cancel() wins then a cancellation exception will be thrown.
+     */
+    private Response<T> call() throws Exception {
+        synchronized (cancelLock) {
+            runner = Thread.currentThread();
+        }
+
+        try {
+            if (aborted) {
+                throw new CancellationException();
+            }
+
+            ResponseCache.Entry cached = null;
+
+            if (cache != null) {
+                cached = cache.get(getKey());
+
+                if (cached != null && (cached.isFresh() || staleWhileRevalidate)) {
+                    if (!cached.isFresh()) {
+                        revalidate(cached);
+                    }
+                    LOG.fine("using cached response for service invocation: " + getName());
+                    updateWorker(() -> message.set("Using cached response"));
+                    return cached.getResponse();
+                }
+            }
+
+            if (delay > 0) {
+                delay();
+            }
+
+            requestETag = cached != null ? cached.getETag() : null;
+
+            Response<T> response = offlineQueue != null ? invokeServiceOrEnqueue() : invokeServiceOnce();
+
+            return cache != null ? cache.update(getKey(), response, cacheTimeToLive) : response;
+        } finally {
+            synchronized (cancelLock) {
+                runner = null;
+                currentCall = null;
+            }
+
+            if (!outcomeDecided.compareAndSet(false, true)) {
+                // clear a possible interrupt caused by cancel() so that the finally handler can run
+                Thread.interrupted();
+                throw new CancellationException();
+            }
+        }
+    }
+
+    /*
+     * Refreshes a stale cache entry in the background, without updating the worker state.
+     */
+    private void revalidate(ResponseCache.Entry entry) {
+        if (!entry.startRefresh()) {
+            return;
+        }
+
+        ResponseCache cache = this.cache;
+        Duration timeToLive = cacheTimeToLive;
+        String key = getKey();
+
+        LOG.fine("revalidating cached response for service invocation: " + getName());
+
+        executor.execute(() -> {
+            try {
+                Response<T> response = callSupplier != null ? callSupplier.get(entry.getETag()).execute() : service.get();
+                cache.update(key, response, timeToLive);
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "error when trying to revalidate cached response of service invocation: " + getName(), e);
+            } finally {
+                entry.endRefresh();
+            }
+        });
+    }
+
+    /*
+     * Invokes the service, shares the response with identical invocations if deduplication is on.
+     */
+    private Response<T> invokeServiceOnce() throws Exception {
+        if (deduplication) {
+            return SingleFlight.getDefault().execute(getKey(), () -> {
+                if (aborted) {
+                    throw new CancellationException();
+                }
+                try {
+                    return invokeServiceWithPolicy();
+                } catch (Exception e) {
+                    // lets one of the followers perform the call instead
+                    if (aborted) {
+                        throw new CancellationException();
+                    }
+                    throw e;
+                }
+            }, this::share);
+        }
+
+        return invokeServiceWithPolicy();
+    }
+
+    /*
+     * Invokes the service unless the offline queue already holds requests, in which case the
+     * request gets appended to the queue to preserve the order. Requests failing with an I/O
+     * error (after all retries) are appended to the queue as well. The idempotency key gets
+     * assigned up front, so the live attempts and the queued request carry the same key. The
+     * call gets built once, its request is used for the key and for the journal.
+     */
+    private Response<T> invokeServiceOrEnqueue() throws Exception {
+        OfflineQueue queue = offlineQueue;
+
+        Call<T> call = callSupplier.get(requestETag);
+        Request request = call.request();
+        idempotencyKey = queue.assignKey(request);
+
+        if (!queue.isEmpty()) {
+            return enqueue(queue, request, false);
+        }
+
+        preparedCall.set(call);
+
+        try {
+            return invokeServiceOnce();
+        } catch (IOException e) {
+            if (aborted) {
+                throw e;
+            }
+            LOG.warning("backend of service invocation " + getName() + " is unreachable, queueing request: " + e.getMessage());
+            return enqueue(queue, request, true);
+        } finally {
+            preparedCall.set(null);
+        }
+    }
+
+    private Response<T> enqueue(OfflineQueue queue, Request request, boolean afterFailure) throws Exception {
+        queue.enqueue(name, idempotencyKey.applyTo(request));
+        queuedAfterFailure = afterFailure;
+        queued = true;
+        return null;
+    }
+
+    /*
+     * Gives back the permission of the circuit breaker for a queued request. The I/O error that
+     * made the request go to the queue counts as a failed call, a request that got queued behind
+     * other requests has not reached the backend at all.
+     */
+    private void releaseQueued(CircuitBreaker breaker, long startTime) {
+        if (queuedAfterFailure) {
+            breaker.record(true, System.nanoTime() - startTime);
+        } else {
+            breaker.release();
+        }
+    }
+
+    private void queued() throws ExecutionException, InterruptedException {
+        DISPATCHER.dispatch(() -> {
+            message.set("Queued for later delivery");
+            state.set(State.SUCCEEDED);
+        });
+
+        if (onQueued != null) {
+            LOG.finer("invoking onQueued handler");
+            callback("onQueued", () -> onQueued.accept(name));
+        }
+    }
+
+    /*
+     * Successful responses carry the already converted body and can be shared as they are. The
+     * error body of an unsuccessful response can only be read once, so every caller gets a clone
+     * of the buffered error body. Only the bytes needed for the error preview get buffered, plus
+     * one to detect the truncation. The clones share the segments of the buffer, the bytes do not
+     * get copied.
+     */
+    private Supplier<Response<T>> share(Response<T> response) {
+        ResponseBody errorBody = response.errorBody();
+
+        if (response.isSuccessful() || errorBody == null) {
+            return () -> response;
+        }
+
+        Buffer shared = new Buffer();
+        try (ResponseBody body = errorBody) {
+            BufferedSource source = body.source();
+            source.request(maxErrorBodySize + 1L);
+            Buffer buffer = source.buffer();
+            buffer.copyTo(shared, 0, Math.min(buffer.size(), maxErrorBodySize + 1L));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        MediaType contentType = errorBody.contentType();
+        return () -> {
+            Buffer copy = shared.clone();
+            return Response.error(ResponseBody.create(contentType, copy.size(), copy), response.raw());
+        };
+    }
+
+    private Response<T> invokeServiceWithPolicy() throws Exception {
+        if (retryPolicy == null) {
+            return invokeService("Calling service");
+        }
+
+        return invokeServiceWithRetries(retryPolicy);
+    }
+
+    private Response<T> invokeService(String callingMessage) throws Exception {
+        updateWorker(() -> message.set(callingMessage));
+
+        HedgePolicy hedge = hedgePolicy;
+
+        if (hedge != null) {
+            return invokeServiceHedged(hedge);
+        }
+
+        return callService(false, call -> {
+            currentCall = call;
+            if (aborted) {
+                call.cancel();
+            }
+        }, nanos -> record(Phase.NETWORK, nanos));
+    }
+
+    /*
+     * Performs a single call of the backend. The consumer receives the Retrofit call before it
+     * gets executed so that it can be registered for cancellation, the latency consumer receives
+     * the duration of the call, also when it failed.
+     */
+    private Response<T> callService(boolean hedged, Consumer<Call<T>> callRegistration, LongConsumer latency) throws Exception {
+        Instant startTime = Instant.now();
+        long startNanos = System.nanoTime();
+
+        ServiceInvocationEvents.ServiceCall callEvent = new ServiceInvocationEvents.ServiceCall();
+        callEvent.begin();
+
+        Response<T> response = null;
+
+        try {
+            SimulationProfile profile = simulationProfile;
+            if (profile != null) {
+                response = profile.behaviorFor(name).simulate();
+            }
+
+            if (response != null) {
+                LOG.fine("simulated failure of service invocation " + getName() + ", status code = " + response.code());
+            } else if (callSupplier != null) {
+                Call<T> call = preparedCall.getAndSet(null);
+                if (call == null) {
+                    call = callSupplier.get(requestETag);
+                }
+                if (call instanceof StreamingCall) {
+                    ((StreamingCall<T>) call).setProgressListener(this::received);
+                }
+                RequestBody body = call.request().body();
+                if (body instanceof ProgressRequestBody) {
+                    ((ProgressRequestBody) body).setListener(this::sent);
+                }
+                callRegistration.accept(call);
+                OfflineQueue.IdempotencyKey previousKey = OfflineQueue.bindKey(idempotencyKey);
+                try {
+                    response = call.execute();
+                } finally {
+                    OfflineQueue.bindKey(previousKey);
+                }
+            } else {
+                response = service.get();
+            }
+        } finally {
+            latency.accept(System.nanoTime() - startNanos);
+
+            if (callEvent.shouldCommit()) {
+                callEvent.name = name;
+                callEvent.statusCode = response != null ? response.code() : 0;
+                callEvent.hedged = hedged;
+                callEvent.commit();
+            }
+        }
+
+        if (metrics != null) {
+            metrics.recordStatusCode(response.code());
+        }
+
+        if (LOG.isLoggable(Level.FINE)) {
+            Duration duration = Duration.between(startTime, Instant.now());
+            LOG.fine("server side call duration: " + duration.toMillis() + "ms");
+        }
+
+        return response;
+    }
+
+    private void sent(long bytes, long contentLength) {
+        transferred("Sent", bytes, contentLength);
+    }
+
+    private void received(long bytes, long contentLength) {
+        transferred("Received", bytes, contentLength);
+    }
+
+    /*
+     * Publishes the progress of an upload or a streaming download, at most once per pulse. Every
+     * transfer starts with zero bytes, which also restarts the measurement of the throughput.
+     */
+    private void transferred(String verb, long bytes, long contentLength) {
+        if (detached) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        if (bytes == 0) {
+            transferStartedAt = now;
+        }
+
+        long elapsed = now - transferStartedAt;
+        double rate = elapsed > 0 ? bytes * 1_000_000_000d / elapsed : 0;
+
+        DISPATCHER.update(workDone, () -> {
+            workDone.set(bytes);
+            totalWork.set(contentLength);
+            progress.set(contentLength > 0 ? (double) bytes / contentLength : -1);
+            throughput.set(rate);
+
+            String text = contentLength > 0 ? verb + " " + formatBytes(bytes) + " of " + formatBytes(contentLength) : verb + " " + formatBytes(bytes);
+            message.set(rate > 0 ? text + " (" + formatBytes((long) rate) + "/s)" : text);
+        });
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024d);
+        }
+        return String.format("%.1f MB", bytes / (1024d * 1024d));
+    }
+
+    /*
+     * Performs the call on the thread of the invocation and, if it has not responded in time, a
+     * second identical call. The first response wins and cancels the other call, an exception is
+     * only passed on when both calls have failed. The second call is an additional load on the
+     * backend, it goes through the scheduler like any other invocation, so it counts against the
+     * limits of the service. Only the latency of the winning call gets recorded, the losing call
+     * has either been cancelled or its response was no longer of interest.
+     */
+    private Response<T> invokeServiceHedged(HedgePolicy hedge) throws Exception {
+        long hedgeDelay = hedge.getDelayNanos(metrics != null ? metrics.getHistogram(Phase.NETWORK) : null);
+
+        hedge.recordCall();
+
+        CompletableFuture<Response<T>> winner = new CompletableFuture<>();
+        List<Call<T>> calls = new CopyOnWriteArrayList<>();
+        AtomicInteger pending = new AtomicInteger(1);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+
+        // the outcome gets decided and recorded before the thread of the invocation sees it
+        AtomicBoolean decided = new AtomicBoolean();
+
+        // the hedged call did not run, fails the invocation if the first call has failed already
+        Runnable skipped = () -> {
+            if (pending.decrementAndGet() == 0 && decided.compareAndSet(false, true)) {
+                winner.completeExceptionally(failure.get());
+            }
+        };
+
+        Function<Boolean, Runnable> attempt = hedged -> () -> {
+            if (hedged && (aborted || winner.isDone())) {
+                // waited for a free slot in the scheduler for too long
+                skipped.run();
+                return;
+            }
+
+            AtomicLong latency = new AtomicLong();
+            AtomicReference<Call<T>> ownCall = new AtomicReference<>();
+
+            try {
+                Response<T> response = callService(hedged, call -> {
+                    ownCall.set(call);
+                    calls.add(call);
+                    if (!hedged) {
+                        currentCall = call;
+                    }
+                    if (aborted || winner.isDone()) {
+                        call.cancel();
+                    }
+                }, latency::set);
+
+                if (decided.compareAndSet(false, true)) {
+                    record(Phase.NETWORK, latency.get());
+                    if (hedged) {
+                        LOG.fine("hedged call of service invocation " + getName() + " won");
+                        hedge.recordHedgeWin();
+                    }
+                    winner.complete(response);
+
+                    // lets the thread of the invocation return if it still waits for the first call
+                    calls.stream().filter(call -> call != ownCall.get()).forEach(Call::cancel);
+                } else if (response.errorBody() != null) {
+                    response.errorBody().close();
+                }
+            } catch (Exception e) {
+                failure.set(e);
+                if (pending.decrementAndGet() == 0 && decided.compareAndSet(false, true)) {
+                    record(Phase.NETWORK, latency.get());
+                    winner.completeExceptionally(e);
+                }
+            }
+        };
+
+        ScheduledFuture<?> hedgeTimer = TIMER.schedule(() -> {
+            if (winner.isDone() || aborted || !hedge.tryAcquireHedge()) {
+                return;
+            }
+
+            LOG.fine("no response after " + TimeUnit.NANOSECONDS.toMillis(hedgeDelay) + "ms, hedging service invocation " + getName());
+            pending.incrementAndGet();
+            Consumer<RejectedExecutionException> rejected = ex -> {
+                LOG.fine("hedged call of service invocation " + getName() + " was rejected: " + ex.getMessage());
+                skipped.run();
+            };
+            try {
+                resolveExecutor().execute(ServiceInvocationScheduler.onRejected(attempt.apply(true), rejected));
+            } catch (RejectedExecutionException ex) {
+                rejected.accept(ex);
+            }
+        }, hedgeDelay, TimeUnit.NANOSECONDS);
+
+        try {
+            attempt.apply(false).run();
+
+            if (aborted) {
+                calls.forEach(Call::cancel);
+            }
+
+            return winner.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
             }
+            throw e;
+        } finally {
+            hedgeTimer.cancel(false);
+
+            // aborts the losing call, the response of the winning call has already been read
+            calls.forEach(Call::cancel);
+        }
+    }
+
+    private Response<T> invokeServiceWithRetries(RetryPolicy policy) throws Exception {
+        RetryBudget budget = policy.getBudget();
+        if (budget != null) {
+            budget.deposit();
         }
 
-        BiConsumer<String, String> onFailureHandler = getOnFailure();
+        int maxAttempts = policy.getMaxAttempts();
+
+        for (int attempt = 1; ; attempt++) {
+            int currentAttempt = attempt;
+
+            updateWorker(() -> {
+                totalWork.set(maxAttempts);
+                workDone.set(currentAttempt);
+            });
+
+            Response<T> response = null;
+            Exception error = null;
+
+            try {
+                response = invokeService(attempt == 1 ? "Calling service" : "Calling service (attempt " + attempt + " of " + maxAttempts + ")");
+                if (response.isSuccessful() || !policy.isRetryable(response)) {
+                    return response;
+                }
+            } catch (Exception e) {
+                if (aborted || !policy.isRetryable(e)) {
+                    throw e;
+                }
+                error = e;
+            }
+
+            Duration backoff = attempt < maxAttempts ? policy.getBackoff(attempt, response) : null;
+
+            Deadline deadline = effectiveDeadline;
+
+            if (backoff == null || (deadline != null && deadline.getRemainingNanos() <= backoff.toNanos())
+                    || (budget != null && !budget.tryWithdraw())) {
+                LOG.fine("giving up on service invocation " + getName() + " after " + attempt + " attempt(s)");
+                if (error != null) {
+                    throw error;
+                }
+                return response;
+            }
+
+            if (response != null && response.errorBody() != null) {
+                response.errorBody().close();
+            }
+
+            LOG.fine("attempt " + attempt + " of service invocation " + getName() + " failed, retrying in " + backoff.toMillis() + "ms");
+
+            updateWorker(() -> message.set("Attempt " + currentAttempt + " of " + maxAttempts + " failed, retrying in " + backoff.toMillis() + "ms"));
+
+            Thread.sleep(backoff.toMillis());
+        }
+    }
+
+    /*
+     * Publishes an update of the worker properties on the UI thread, unless the invocation is
+     * being used as a publisher, which must not touch the UI thread.
+     */
+    private void updateWorker(Runnable update) {
+        if (!detached) {
+            DISPATCHER.dispatch(update);
+        }
+    }
+
+    private void delay() throws InterruptedException {
+        LOG.finer("delaying service call, millis = " + delay);
+        long startNanos = System.nanoTime();
+        ServiceInvocationEvents.Delay delayEvent = new ServiceInvocationEvents.Delay();
+        delayEvent.begin();
+        try {
+            Thread.sleep(delay);
+        } finally {
+            record(Phase.DELAY, System.nanoTime() - startNanos);
+
+            if (delayEvent.shouldCommit()) {
+                delayEvent.name = name;
+                delayEvent.commit();
+            }
+        }
+    }
+
+    private void success(Response<T> response) throws ExecutionException, InterruptedException {
+        DISPATCHER.dispatch(() -> {
+            message.set("Call was successful");
+            state.set(State.SUCCEEDED);
+        });
+
+        notifySuccess(response);
+    }
+
+    private void notifySuccess(Response<T> response) throws ExecutionException, InterruptedException {
+        if (onSuccess != null) {
+            LOG.finer("invoking onSuccess handler");
+            callback("onSuccess", () -> onSuccess.accept(response.body()));
+        } else if (onSuccessDetailed != null) {
+            LOG.finer("invoking onSuccessDetailed handler");
+            callback("onSuccessDetailed", () -> onSuccessDetailed.accept(response));
+        }
+    }
+
+    private void failure(Response<T> response) throws IOException, ExecutionException, InterruptedException {
+        DISPATCHER.dispatch(() -> {
+            message.set("Call was not successful");
+            state.set(State.FAILED);
+        });
+
+        notifyFailure(response);
+    }
+
+    private void notifyFailure(Response<T> response) throws IOException, ExecutionException, InterruptedException {
+        LOG.severe("service call was not successful: " + getName() + ", status code = " + response.code());
+
+        BiConsumer<String, String> statusCodeConsumer = null;
+        if (onStatusCode != null || onStatusCodeDefault != null) {
+            statusCodeConsumer = getOnStatusCode(HttpStatusCode.fromStatusCode(response.code()));
+        }
+
+        // only one handler gets invoked, the preview handler of the invocation wins over the
+        // default handlers but not over its "on failure" handler
+        BiConsumer<String, ErrorPreview> onFailureDetailedPreviewHandler = onFailure == null ? onFailureDetailedPreview : null;
+        BiConsumer<String, String> onFailureHandler = onFailureDetailedPreviewHandler == null ? getOnFailure() : null;
+        BiConsumer<String, Response> onFailureDetailedHandler = onFailureDetailedPreviewHandler == null && onFailureHandler == null ? getOnFailureDetailed() : null;
+
+        // the error body only gets decoded if a handler asks for it
+        ErrorPreview preview = null;
+        if (!simulatingFailure && (statusCodeConsumer != null || onFailureHandler != null || onFailureDetailedPreviewHandler != null)) {
+            preview = ErrorPreview.of(response, maxErrorBodySize);
+        }
+
+        String errorMessage = simulatingFailure ? "Simulated failure" : preview != null ? (preview.isTruncated() ? preview.getText() + "..." : preview.getText()) : "";
+
+        if (statusCodeConsumer != null) {
+            LOG.finer("invoking onStatusCode handler for status code " + response.code());
+            BiConsumer<String, String> consumer = statusCodeConsumer;
+            DISPATCHER.dispatch(() -> consumer.accept(name, errorMessage));
+        }
 
         if (onFailureHandler != null) {
-            runAndWait(() -> {
+            BiConsumer<String, String> handler = onFailureHandler;
+            callback("onFailure", () -> {
                 LOG.finer("invoking onFailure handler");
-                onFailureHandler.accept(name, errorMessage);
+                handler.accept(name, errorMessage);
             });
-        } else {
+        } else if (onFailureDetailedPreviewHandler != null) {
+            ErrorPreview errorPreview = preview;
+            BiConsumer<String, ErrorPreview> handler = onFailureDetailedPreviewHandler;
+            callback("onFailureDetailedPreview", () -> {
+                LOG.finer("invoking onFailureDetailedPreview handler");
+                handler.accept(name, errorPreview);
+            });
+        } else if (onFailureDetailedHandler != null) {
+            LOG.finer("invoking onFailureDetailed handler");
+            BiConsumer<String, Response> handler = onFailureDetailedHandler;
+            callback("onFailureDetailed", () -> handler.accept(name, response));
+        }
+    }
+
+    private void exception(CompletableFuture<Void> result, Exception t) {
+        LOG.log(Level.SEVERE, "error when trying to invoke the service: " + getName(), t);
+
+        DISPATCHER.dispatch(() -> {
+            state.set(State.FAILED);
+            exception.set(t);
+            message.set("Server-side error");
+        });
+
+        BiConsumer<String, Exception> onExceptionHandler = getOnException();
+
+        if (onExceptionHandler != null) {
+            try {
+                LOG.finer("invoking onException handler");
+                callback("onException", () -> onExceptionHandler.accept(name, t));
+            } catch (Exception e) {
+                LOG.log(Level.SEVERE, "error when trying to propagate error message from service invocation: " + getName(), e);
+            }
+        }
+
+        completeResult(() -> result.completeExceptionally(t));
+    }
+
+    /*
+     * Fails the invocation when its deadline has expired. Called on the timer thread, so the
+     * handlers are only queued on the UI thread. The background thread might still be blocked
+     * by a service that can not be interrupted, it will skip all handlers once it returns.
+     */
+    private void timedOut(CompletableFuture<Void> result) {
+        LOG.warning("service invocation timed out: " + getName());
+
+        ServiceInvocationTimeoutException ex = new ServiceInvocationTimeoutException(getName(), effectiveDeadline);
+
+        DISPATCHER.dispatch(() -> {
+            state.set(State.FAILED);
+            exception.set(ex);
+            message.set("Service invocation timed out");
+        });
+
+        BiConsumer<String, ServiceInvocationTimeoutException> onTimeoutHandler = onTimeout;
+        BiConsumer<String, Exception> onExceptionHandler = getOnException();
+
+        if (onTimeoutHandler != null) {
+            DISPATCHER.dispatch(instrument("onTimeout", () -> onTimeoutHandler.accept(name, ex)));
+        } else if (onExceptionHandler != null) {
+            DISPATCHER.dispatch(instrument("onException", () -> onExceptionHandler.accept(name, ex)));
+        }
+
+        DISPATCHER.dispatch(() -> {
+            result.completeExceptionally(ex);
+            running.set(false);
+            progress.set(1);
+        });
+
+        if (onFinally != null) {
+            DISPATCHER.dispatch(instrument("onFinally", onFinally));
+        }
+    }
+
+    private void doFinally() {
+        DISPATCHER.dispatch(() -> {
+            running.set(false);
+            progress.set(1);
+        });
+
+        if (onFinally != null) {
+            try {
+                LOG.finer("invoking onFinally handler");
+                callback("onFinally", onFinally);
+            } catch (Exception e) {
+                LOG.log(Level.SEVERE, "error when trying to execute ‘on finally' of service invocation: " + getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Returns the name of the service invocation.
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sets the key of the service invocation. Invocations with the same key are considered to
+     * be requesting the same data, e.g. when used in combination with {@link #withLatestWins(boolean)}.
+     * If no key is set then the name of the invocation will be used.
+     *
+     * @param key the key of the invocation
+     * @return the service invocation
+     */
+    public ServiceInvocation<T> withKey(String key) {
+        this.key = key;
+        return this;
+    }
+
+    /**
+     * Returns the key of the service invocation, either the one set via {@link #withKey(String)}
+     * or the name of the invocation.
+     *
+     * @return the key
+     */
+    public String getKey() {
+        return key != null ? key : name;
+    }
+
+    /**
+     * Enables or disables the "latest wins" mode. When enabled, executing this invocation will
+     * automatically cancel a still running invocation with the same key that was also executed in
+     * this mode. This is useful for searches or views where only the result of the most recent
+     * request is of interest.
+     *
+     * @param latestWins enables / disables "latest wins"
+     * @return the service invocation
+     * @see #withKey(String)
+     * @see #cancel()
+     */
+    public ServiceInvocation<T> withLatestWins(boolean latestWins) {
+        this.latestWins = latestWins;
+        return this;
+    }
+
+    /**
+     * Returns true if executing this invocation cancels a running invocation with the same key.
+     *
+     * @return true if "latest wins" is enabled
+     */
+    public boolean isLatestWins() {
+        return latestWins;
+    }
+
+    /**
+     * Sets the policy used for retrying the service call when it fails with a transient error,
+     * e.g. when the backend is temporarily unavailable. While retrying, the "work done" property
+     * of the invocation holds the number of the current attempt and the "total work" property the
+     * maximum number of attempts. The message property informs about upcoming retries.
+     *
+     * @param retryPolicy the retry policy or null if the call should not be retried
+     * @return the service invocation
+     */
+    public ServiceInvocation<T> withRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * Returns the policy used for retrying failed service calls.
+     *
+     * @return the retry policy or null
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Protects the service invocation with the given circuit breaker. When the breaker is open the
+     * invocation fails immediately with a {@link CircuitBreakerOpenException}, which will be passed
+     * to the exception handler. No thread and no connection will be used in this case.
+     *
+     * @param circuitBreaker the breaker or null
+     * @return the service invocation
+     * @see CircuitBreaker#forKey(String)
+     */
+    public ServiceInvocation<T> withCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+        return this;
+    }
+
+    /**
+     * Protects the service invocation with the shared circuit breaker for the key of this invocation
+     * (see {@link #withKey(String)}). Must be called after the key has been set.
+     *
+     * @return the service invocation
+     * @see #withCircuitBreaker(CircuitBreaker)
+     */
+    public ServiceInvocation<T> withCircuitBreaker() {
+        return withCircuitBreaker(CircuitBreaker.forKey(getKey()));
+    }
+
+    /**
+     * Returns the circuit breaker protecting this invocation.
+     *
+     * @return the breaker or null
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Limits the rate at which this invocation and all other invocations sharing the given
+     * limiter call the backend. When no token is available the invocation waits before it
+     * gets handed to its executor, no thread is being blocked while waiting. The message of the
+     * invocation shows the waiting time. The wait counts against the timeout of the invocation.
+     * Retries and hedged calls are not limited, they are governed by their own policies.
+     *
+     * @param rateLimiter the limiter or null
+     * @return the service invocation
+     * @see RateLimiter#forKey(String, double, int)
+     */
+    public ServiceInvocation<T> withRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+    /**
+     * Protects the request of this invocation against a missing connection to the backend. When
+     * the call fails with an I/O error (after all retries) the request gets appended to the given
+     * queue and will be delivered once the backend is reachable again. When the queue is not
+     * empty the request gets appended right away so that the requests arrive in order. In both
+     * cases the invocation succeeds without a response, the "on queued" handler gets called
+     * instead of the success handler. Only invocations created with a {@link CallSupplier} or
+     * {@link ConditionalCallSupplier} can be queued, as the request is taken from the Retrofit call.
+     * The idempotency key of the request gets assigned before the first call, the calls carry it
+     * if the client uses the {@link OfflineQueue#idempotencyInterceptor() idempotency interceptor}.
+     *
+     * @param offlineQueue the queue or null
+     * @return the service invocation
+     * @see #onQueued(Consumer)
+     */
+    public ServiceInvocation<T> withOfflineQueue(OfflineQueue offlineQueue) {
+        if (offlineQueue != null && callSupplier == null) {
+            throw new IllegalStateException("an offline queue requires an invocation created with a call supplier: " + name);
+        }
+        this.offlineQueue = offlineQueue;
+        this.idempotencyKey = null;
+        return this;
+    }
+
+    /**
+     * Returns the offline queue used by this invocation.
+     *
+     * @return the queue or null
+     */
+    public OfflineQueue getOfflineQueue() {
+        return offlineQueue;
+    }
+
+    /**
+     * Returns true if the request has been appended to the offline queue instead of being
+     * delivered, see {@link #withOfflineQueue(OfflineQueue)}.
+     *
+     * @return true if the request has been queued
+     */
+    public boolean isQueued() {
+        return queued;
+    }
+
+    /**
+     * Returns the rate limiter used by this invocation.
+     *
+     * @return the limiter or null
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Enables hedging of the service call: if the backend has not responded after the delay of
+     * the given policy a second, identical call will be started and the first response wins.
+     * Hedging must only be used for idempotent calls. The second call goes through the scheduler
+     * of this invocation (see {@link #withScheduler(ServiceInvocationScheduler)}) and counts
+     * against its limits. When combined with a retry policy every attempt gets hedged. Hedging
+     * requires an invocation created with a {@link CallSupplier}, as the losing call has to be
+     * cancelled.
+     *
+     * @param hedgePolicy the policy or null to disable hedging
+     * @return the service invocation
+     */
+    public ServiceInvocation<T> withHedging(HedgePolicy hedgePolicy) {
+        if (hedgePolicy != null && callSupplier == null) {
+            throw new IllegalStateException("hedging requires an invocation created with a call supplier: " + name);
+        }
+        this.hedgePolicy = hedgePolicy;
+        return this;
+    }
+
+    /**
+     * Returns the policy used for hedging the service call.
+     *
+     * @return the hedge policy or null
+     */
+    public HedgePolicy getHedging() {
+        return hedgePolicy;
+    }
+
+    /**
+     * Registers a request body whose upload progress will be published by this invocation, e.g.
+     * a part of a multipart request. Bodies passed directly as the body of the request (e.g.
+     * via "@Body") do not need to be registered. While the body is being sent the "work done"
+     * property holds the number of bytes written so far, the "total work" property the length of
+     * the body and the "throughput" property the transfer rate.
+     *
+     * @param body the body to track
+     * @return the service invocation
+     */
+    public ServiceInvocation<T> withUploadProgress(ProgressRequestBody body) {
+        uploads.add(Objects.requireNonNull(body, "request body can not be null"));
+        return this;
+    }
+
+    /**
+     * Enables or disables the deduplication of identical requests. When enabled, an invocation
+     * that gets executed while another deduplicating invocation with the same key is still waiting
+     * for its response will not call the backend itself but share the response of the other
+     * invocation. Each invocation still calls its own handlers. The error body of an unsuccessful
+     * response gets shared up to the maximum error body size of the invocation that called the
+     * backend (see {@link #withMaxErrorBodySize(int)}), longer error bodies get truncated.
+     * Statistics about the deduplication are available via {@link SingleFlight#getDefault()}.
+     *
+     * @param deduplication enables / disables the deduplication
+     * @return the service invocation
+     * @see #withKey(String)
+     */
+    public ServiceInvocation<T> withDeduplication(boolean deduplication) {
+        this.deduplication = deduplication;
+        return this;
+    }
+
+    /**
+     * Returns true if identical concurrent requests share a single backend call.
+     *
+     * @return true if deduplication is enabled
+     */
+    public boolean isDeduplication() {
+        return deduplication;
+    }
+
+    /**
+     * Enables caching of successful responses. As long as the cached response is fresh it will be
+     * handed to the success handler without calling the backend. Once it has expired it needs to
+     * be revalidated with the backend, either before calling the handlers or in the background
+     * (see {@link #withStaleWhileRevalidate(boolean)}). Responses are cached under the key of the
+     * invocation, see {@link #withKey(String)}.
+     *
+     * @param cache      the cache or null to disable caching
+     * @param timeToLive the time for which a response will be considered fresh
+     * @return the service invocation
+     * @see #createForConditionalCall(String, ConditionalCallSupplier)
+     */
+    public ServiceInvocation<T> withCache(ResponseCache cache, Duration timeToLive) {
+        if (cache != null) {
+            Objects.requireNonNull(timeToLive, "time to live can not be null");
+        }
+        this.cache = cache;
+        this.cacheTimeToLive = timeToLive;
+        return this;
+    }
+
+    /**
+     * Returns the cache used by this invocation.
+     *
+     * @return the cache or null
+     */
+    public ResponseCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Enables or disables "stale while revalidate". When enabled, an expired cached response will
+     * still be handed to the success handler immediately while the cache entry gets refreshed in
+     * the background. Only has an effect when a cache has been set.
+     *
+     * @param staleWhileRevalidate enables / disables "stale while revalidate"
+     * @return the service invocation
+     */
+    public ServiceInvocation<T> withStaleWhileRevalidate(boolean staleWhileRevalidate) {
+        this.staleWhileRevalidate = staleWhileRevalidate;
+        return this;
+    }
 
-            BiConsumer<String, Response> onFailureDetailedHandler = getOnFailureDetailed();
+    /**
+     * Returns true if expired cached responses will be used while they are being refreshed.
+     *
+     * @return true if "stale while revalidate" is enabled
+     */
+    public boolean isStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
 
-            if (onFailureDetailedHandler != null) {
-                LOG.finer("invoking onFailureDetailed handler");
-                runAndWait(() -> onFailureDetailed.accept(name, response));
-            }
+    /**
+     * Sets the maximum time the invocation may take, starting when it gets executed and including
+     * the time spent waiting for a thread, the delay, all retries and the calls of the backend.
+     * When the time is up the call will be aborted, the worker state changes to {@link State#FAILED}
+     * with a {@link ServiceInvocationTimeoutException} and the "on timeout" handler will be invoked.
+     * If the invocation also has a deadline (see {@link #withDeadline(Deadline)}) the earlier of
+     * both applies.
+     *
+     * @param timeout the timeout or null
+     * @return the service invocation
+     * @see #onTimeout(BiConsumer)
+     */
+    public ServiceInvocation<T> withTimeout(Duration timeout) {
+        if (timeout != null && (timeout.isNegative() || timeout.isZero())) {
+            throw new IllegalArgumentException("timeout must be positive but was " + timeout);
         }
+        this.timeout = timeout;
+        return this;
     }
 
-    private void exception(CompletableFuture<Void> result, Exception t) {
-        LOG.log(Level.SEVERE, "error when trying to invoke the service: " + getName(), t);
-
-        Platform.runLater(() -> {
-            state.set(State.FAILED);
-            exception.set(t);
-            message.set("Server-side error");
-        });
+    /**
+     * Returns the maximum time the invocation may take.
+     *
+     * @return the timeout or null
+     */
+    public Duration getTimeout() {
+        return timeout;
+    }
 
-        BiConsumer<String, Exception> onExceptionHandler = getOnException();
+    /**
+     * Sets the deadline by which the invocation has to be completed, e.g. the deadline of another
+     * invocation that this one is part of. If no deadline is set, then an invocation that gets
+     * executed from within a handler of another invocation inherits the deadline of that invocation
+     * (see {@link Deadline#current()}).
+     *
+     * @param deadline the deadline or null
+     * @return the service invocation
+     * @see #withTimeout(Duration)
+     */
+    public ServiceInvocation<T> withDeadline(Deadline deadline) {
+        this.deadline = deadline;
+        return this;
+    }
 
-        if (onExceptionHandler != null) {
-            try {
-                LOG.finer("invoking onException handler");
-                runAndWait(() -> onExceptionHandler.accept(name, t));
-            } catch (Exception e) {
-                LOG.log(Level.SEVERE, "error when trying to propagate error message from service invocation: " + getName(), e);
-            }
-        }
+    /**
+     * Returns the deadline of the invocation. Once the invocation has been executed this is the
+     * deadline actually in effect, i.e. the earliest of the configured, inherited and timeout based
+     * deadlines.
+     *
+     * @return the deadline or null
+     */
+    public Deadline getDeadline() {
+        return effectiveDeadline != null ? effectiveDeadline : deadline;
+    }
 
-        result.completeExceptionally(t);
+    /**
+     * Sets the priority of the invocation. The priority is used by the scheduler of the invocation
+     * to decide which waiting invocation to start next. The default is {@link Priority#INTERACTIVE}.
+     *
+     * @param priority the priority
+     * @return the service invocation
+     * @see #withScheduler(ServiceInvocationScheduler)
+     */
+    public ServiceInvocation<T> withPriority(Priority priority) {
+        this.priority = Objects.requireNonNull(priority, "priority can not be null");
+        return this;
     }
 
-    private void doFinally() {
-        Platform.runLater(() -> {
-            running.set(false);
-            progress.set(1);
-        });
+    /**
+     * Returns the priority of the invocation.
+     *
+     * @return the priority
+     */
+    public Priority getPriority() {
+        return priority;
+    }
 
-        if (onFinally != null) {
-            try {
-                LOG.finer("invoking onFinally handler");
-                runAndWait(onFinally);
-            } catch (Exception e) {
-                LOG.log(Level.SEVERE, "error when trying to execute ‘on finally' of service invocation: " + getName(), e);
-            }
-        }
+    /**
+     * Sets the scheduler used for running this invocation when calling {@link #execute()}. If no
+     * scheduler is set then the default scheduler will be used (see {@link #setDefaultScheduler(ServiceInvocationScheduler)}).
+     *
+     * @param scheduler the scheduler
+     * @return the service invocation
+     */
+    public ServiceInvocation<T> withScheduler(ServiceInvocationScheduler scheduler) {
+        this.scheduler = scheduler;
+        return this;
     }
 
     /**
-     * Returns the name of the service invocation.
+     * Returns the scheduler that will be used for running this invocation, either the one set
+     * via {@link #withScheduler(ServiceInvocationScheduler)} or the default scheduler.
      *
-     * @return the name
+     * @return the effective scheduler or null
      */
-    public String getName() {
-        return name;
+    public ServiceInvocationScheduler getScheduler() {
+        return scheduler != null ? scheduler : defaultScheduler;
     }
 
     /**
@@ -335,6 +2242,59 @@ public final class ServiceInvocation<T> implements Worker<T> {
         return this;
     }
 
+    /**
+     * Sets the strategy used for running this invocation when calling {@link #execute()}. If no
+     * strategy is set then the default strategy will be used (see {@link #setDefaultExecutorStrategy(ExecutorStrategy)}).
+     *
+     * @param strategy the executor strategy
+     * @return the service invocation
+     */
+    public ServiceInvocation<T> withExecutorStrategy(ExecutorStrategy strategy) {
+        this.executorStrategy = strategy;
+        return this;
+    }
+
+    /**
+     * Returns the strategy that will be used for running this invocation, either the one set
+     * via {@link #withExecutorStrategy(ExecutorStrategy)} or the default strategy.
+     *
+     * @return the effective executor strategy
+     */
+    public ExecutorStrategy getExecutorStrategy() {
+        return executorStrategy != null ? executorStrategy : defaultExecutorStrategy;
+    }
+
+    /**
+     * Enables or disables the asynchronous callback mode. By default the background thread that
+     * executed the service waits until the success, failure, exception, and finally handlers
+     * have been executed on the UI thread. In asynchronous mode the handlers only get queued for
+     * execution on the UI thread and the background thread is released as soon as the response
+     * has arrived. The handlers will still be called in the same order (success / failure before
+     * finally) and the future returned by {@link #execute()} will still be completed after the
+     * success / failure handler has been called.
+     * <p>
+     * Please note that in asynchronous mode an exception thrown by the success or failure handler
+     * will only be logged and not be passed on to the exception handler.
+     * </p>
+     *
+     * @param async enables / disables the asynchronous callback mode
+     * @return the service invocation
+     */
+    public ServiceInvocation<T> withAsyncCallbacks(boolean async) {
+        this.asyncCallbacks = async;
+        return this;
+    }
+
+    /**
+     * Returns true if the handlers will be called without blocking the background thread
+     * (see {@link #withAsyncCallbacks(boolean)}).
+     *
+     * @return true if the asynchronous callback mode is enabled
+     */
+    public boolean isAsyncCallbacks() {
+        return asyncCallbacks;
+    }
+
     /**
      * An easy way to explicitly make the service invocation fail in order to test the handling of
      * failures by the application.
@@ -347,6 +2307,32 @@ public final class ServiceInvocation<T> implements Worker<T> {
         return this;
     }
 
+    /**
+     * Sets the maximum number of bytes of an error body that will be decoded for the failure and
+     * status code handlers. Longer error bodies get truncated, the error message then ends with
+     * "...". The error body only gets decoded when one of these handlers has been set. The
+     * default is 64 KB.
+     *
+     * @param bytes the maximum number of bytes
+     * @return the service invocation
+     */
+    public ServiceInvocation<T> withMaxErrorBodySize(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("max error body size can not be negative but was " + bytes);
+        }
+        this.maxErrorBodySize = bytes;
+        return this;
+    }
+
+    /**
+     * Returns the maximum number of bytes of an error body that will be decoded.
+     *
+     * @return the maximum number of bytes
+     */
+    public int getMaxErrorBodySize() {
+        return maxErrorBodySize;
+    }
+
     /**
      * Returns true if the service invocation will intentionally fail (see also {@link #withSimulatingFailure(boolean)}).
      *
@@ -367,6 +2353,19 @@ public final class ServiceInvocation<T> implements Worker<T> {
         return this;
     }
 
+    /**
+     * A consumer that will be invoked instead of the success handler when the request has been
+     * appended to the offline queue (see {@link #withOfflineQueue(OfflineQueue)}). The consumer
+     * receives the name of the invocation.
+     *
+     * @param onQueued the "on queued" handler.
+     * @return the service invocation
+     */
+    public ServiceInvocation<T> onQueued(Consumer<String> onQueued) {
+        this.onQueued = onQueued;
+        return this;
+    }
+
     /**
      * A consumer that will be invoked when the backend service invocation was successful.
      * The consumer will receive the expected result object.
@@ -439,6 +2438,22 @@ public final class ServiceInvocation<T> implements Worker<T> {
         return this;
     }
 
+    /**
+     * A variant of {@link #onFailureDetailed(BiConsumer)} that will be invoked when the backend
+     * service invocation was not successful. The consumer will receive the name of the service
+     * invocation and a preview of the error body with at most the number of bytes set via
+     * {@link #withMaxErrorBodySize(int)}, plus the status code and the headers of the response.
+     * Takes precedence over the "on failure detailed" handler and over the default handlers, but
+     * will not be invoked when an "on failure" handler has been set.
+     *
+     * @param onFailureDetailedPreview the "on failure detailed preview" handler.
+     * @return the service invocation
+     */
+    public ServiceInvocation<T> onFailureDetailedPreview(BiConsumer<String, ErrorPreview> onFailureDetailedPreview) {
+        this.onFailureDetailedPreview = onFailureDetailedPreview;
+        return this;
+    }
+
     /**
      * A consumer that will be invoked when the backend returns the given HTTP status code. The consumer
      * receives the name of the service invocation and the status message.
@@ -498,6 +2513,21 @@ public final class ServiceInvocation<T> implements Worker<T> {
         return this;
     }
 
+    /**
+     * A consumer that will be invoked when the service invocation did not complete before its
+     * deadline. The consumer will receive the name of the service invocation and the timeout
+     * exception. If no "on timeout" handler has been set then the exception handler will be
+     * invoked instead.
+     *
+     * @param onTimeout the consumer
+     * @return the service invocation
+     * @see #withTimeout(Duration)
+     */
+    public ServiceInvocation<T> onTimeout(BiConsumer<String, ServiceInvocationTimeoutException> onTimeout) {
+        this.onTimeout = onTimeout;
+        return this;
+    }
+
     /**
      * A runnable that will be invoked after the service invocation has completed. No matter if
      * an exception occurred or not.
@@ -510,9 +2540,94 @@ public final class ServiceInvocation<T> implements Worker<T> {
         return this;
     }
 
+    /*
+     * In blocking mode the calling worker thread waits until the handler has been executed, in
+     * asynchronous mode it simply queues the handler. The dispatcher executes runnables in
+     * submission order, so in both modes the handlers are called in the same order.
+     */
+    private void callback(String handlerName, Runnable runnable) throws ExecutionException, InterruptedException {
+        Runnable handler = instrument(handlerName, runnable);
+
+        ServiceInvocationEvents.CallbackDispatch dispatchEvent = new ServiceInvocationEvents.CallbackDispatch();
+        dispatchEvent.begin();
+
+        try {
+            if (asyncCallbacks) {
+                DISPATCHER.dispatch(handler);
+            } else {
+                runAndWait(handler);
+            }
+        } finally {
+            if (dispatchEvent.shouldCommit()) {
+                dispatchEvent.name = name;
+                dispatchEvent.handler = handlerName;
+                dispatchEvent.async = asyncCallbacks;
+                dispatchEvent.commit();
+            }
+        }
+    }
+
+    /*
+     * Wraps a handler so that the time it holds the UI thread gets recorded and so that invocations
+     * executed by the handler inherit the deadline of this invocation.
+     */
+    private Runnable instrument(String handlerName, Runnable runnable) {
+        return () -> {
+            long startNanos = System.nanoTime();
+            ServiceInvocationEvents.Callback callbackEvent = new ServiceInvocationEvents.Callback();
+            callbackEvent.begin();
+            Deadline previousDeadline = CURRENT_DEADLINE.get();
+            CURRENT_DEADLINE.set(effectiveDeadline);
+            try {
+                runnable.run();
+            } finally {
+                CURRENT_DEADLINE.set(previousDeadline);
+                record(Phase.CALLBACK, System.nanoTime() - startNanos);
+
+                if (callbackEvent.shouldCommit()) {
+                    callbackEvent.name = name;
+                    callbackEvent.handler = handlerName;
+                    callbackEvent.commit();
+                }
+            }
+        };
+    }
+
+    /*
+     * Registers a listener that receives the response on the background thread before any
+     * handler gets called, used by the invocation group.
+     */
+    void setResponseListener(Consumer<Response<T>> responseListener) {
+        this.responseListener = responseListener;
+    }
+
+    static Deadline currentDeadline() {
+        return CURRENT_DEADLINE.get();
+    }
+
+    private void record(Phase phase, long nanos) {
+        if (metrics != null) {
+            metrics.record(phase, nanos);
+        }
+    }
+
+    private void record(Outcome outcome) {
+        if (metrics != null) {
+            metrics.record(outcome);
+        }
+    }
+
+    private void completeResult(Runnable completion) {
+        if (asyncCallbacks) {
+            DISPATCHER.dispatch(completion);
+        } else {
+            completion.run();
+        }
+    }
+
     private void runAndWait(Runnable runnable) throws ExecutionException, InterruptedException {
         CompletableFuture<Void> result = new CompletableFuture<>();
-        Platform.runLater(() -> {
+        DISPATCHER.dispatch(() -> {
             try {
                 runnable.run();
                 result.complete(null);
@@ -618,6 +2733,31 @@ public final class ServiceInvocation<T> implements Worker<T> {
         return progress.getReadOnlyProperty();
     }
 
+    // throughput
+
+    private final ReadOnlyDoubleWrapper throughput = new ReadOnlyDoubleWrapper(this, "throughput");
+
+    /**
+     * Returns the transfer rate of the current upload or streaming download in bytes per second,
+     * see {@link ProgressRequestBody} and {@link #createDownload(String, CallSupplier, Path)}.
+     *
+     * @return the bytes per second
+     */
+    public double getThroughput() {
+        return throughput.get();
+    }
+
+    /**
+     * Returns a read-only property for observing the transfer rate of the current upload or
+     * streaming download in bytes per second. The rate gets updated at most once per pulse, its
+     * measurement restarts with every transfer, e.g. when the call gets retried.
+     *
+     * @return the throughput property
+     */
+    public ReadOnlyDoubleProperty throughputProperty() {
+        return throughput.getReadOnlyProperty();
+    }
+
     // running
 
     private final ReadOnlyBooleanWrapper running = new ReadOnlyBooleanWrapper(this, "running");
@@ -662,9 +2802,149 @@ public final class ServiceInvocation<T> implements Worker<T> {
 
     // cancel
 
+    /**
+     * Cancels the service invocation. A pending delay will be interrupted and, if the invocation
+     * was created with a {@link CallSupplier}, the underlying Retrofit call will be aborted. The
+     * worker state changes to {@link State#CANCELLED}. Neither the success nor the failure or
+     * exception handlers will be invoked, only the "on finally" handler. The future returned by
+     * {@link #execute()} will be cancelled, too.
+     *
+     * @return true if the invocation was cancelled, false if the invocation had already completed
+     */
     @Override
     public boolean cancel() {
-        throw new UnsupportedOperationException();
+        if (!outcomeDecided.compareAndSet(false, true)) {
+            return false;
+        }
+
+        cancelled = true;
+
+        LOG.fine("cancelling service invocation: " + getName());
+
+        abort();
+
+        updateWorker(() -> {
+            state.set(State.CANCELLED);
+            message.set("Cancelled");
+        });
+
+        return true;
+    }
+
+    /*
+     * Called by the timer when the deadline has expired.
+     */
+    private void timeout(CompletableFuture<Void> result) {
+        if (!outcomeDecided.compareAndSet(false, true)) {
+            return;
+        }
+
+        timedOut = true;
+
+        abort();
+
+        timedOut(result);
+    }
+
+    private void abort() {
+        aborted = true;
+
+        Runnable submission = null;
+
+        synchronized (cancelLock) {
+            if (runner != null) {
+                runner.interrupt();
+            }
+            if (currentCall != null) {
+                currentCall.cancel();
+            }
+            if (delayedSubmissionFuture != null && delayedSubmissionFuture.cancel(false)) {
+                submission = delayedSubmission;
+            }
+        }
+
+        if (submission != null) {
+            submission.run();
+        }
+    }
+
+    /**
+     * Returns true if the service invocation has been cancelled.
+     *
+     * @return true if cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns true if the service invocation did not complete before its deadline.
+     *
+     * @return true if timed out
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * The priorities of service invocations, used by the {@link ServiceInvocationScheduler}.
+     */
+    public enum Priority {
+
+        /**
+         * The user is waiting for the result of the invocation.
+         */
+        INTERACTIVE,
+
+        /**
+         * The invocation is not directly triggered by the user, e.g. when prefetching data.
+         */
+        BACKGROUND
+    }
+
+    /**
+     * The strategies available for running service invocations in the background.
+     */
+    public enum ExecutorStrategy {
+
+        /**
+         * Runs the invocations on a shared, unbounded pool of daemon threads with minimum priority.
+         * This is the default strategy.
+         */
+        PLATFORM_THREADS,
+
+        /**
+         * Runs each invocation on its own virtual thread. Blocking on the network or on the UI
+         * thread does not tie up an operating system thread, which makes this strategy a good fit
+         * for applications firing hundreds of invocations at once. Requires Java 21 or newer at
+         * runtime, on older runtimes the invocations will run on platform threads instead.
+         */
+        VIRTUAL_THREADS;
+
+        Executor getExecutor() {
+            if (this == VIRTUAL_THREADS && VirtualThreadExecutor.EXECUTOR != null) {
+                return VirtualThreadExecutor.EXECUTOR;
+            }
+            return EXECUTOR;
+        }
+    }
+
+    /*
+     * Lazily looked up via reflection so that the library can still be used on runtimes
+     * that do not support virtual threads.
+     */
+    private static final class VirtualThreadExecutor {
+
+        private static final Executor EXECUTOR = create();
+
+        private static Executor create() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOG.warning("virtual threads are not supported by this runtime, using platform threads instead");
+                return null;
+            }
+        }
     }
 
     /**
@@ -678,4 +2958,45 @@ public final class ServiceInvocation<T> implements Worker<T> {
 
         Response<T> get() throws Exception;
     }
+
+    /**
+     * A functional supplier interface used for providing a retrofit call, which
+     * will then be executed by the service invocation. Contrary to the {@link ServiceSupplier}
+     * this gives the invocation the chance to abort the call when it gets cancelled.
+     *
+     * @param <T> the result type
+     * @see ServiceInvocation#createForCall(String, CallSupplier)
+     */
+    @FunctionalInterface
+    public interface CallSupplier<T> {
+
+        Call<T> get() throws Exception;
+    }
+
+    /**
+     * A consumer receiving the body of a streaming download chunk by chunk, on a background
+     * thread. The buffer is only valid during the invocation of the consumer, it gets reused for
+     * the next chunk.
+     *
+     * @see ServiceInvocation#createDownload(String, CallSupplier, ChunkConsumer)
+     */
+    @FunctionalInterface
+    public interface ChunkConsumer {
+
+        void accept(ByteBuffer chunk) throws IOException;
+    }
+
+    /**
+     * A functional supplier interface used for providing a conditional retrofit call. The
+     * supplier receives the "ETag" of the cached response (or null) so that it can be sent to
+     * the backend in the "If-None-Match" header.
+     *
+     * @param <T> the result type
+     * @see ServiceInvocation#createForConditionalCall(String, ConditionalCallSupplier)
+     */
+    @FunctionalInterface
+    public interface ConditionalCallSupplier<T> {
+
+        Call<T> get(String eTag) throws Exception;
+    }
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The Java Flight Recorder events emitted by {@link ServiceInvocation}. All events carry the name
+ * of the invocation, the thread is recorded by JFR itself. The events are emitted with the usual
+ * pattern of creating the event, calling begin() and finally checking shouldCommit() before
+ * populating and committing the event. As long as no recording is running (or the events are
+ * disabled in the recording settings) the JIT compiler removes the event objects entirely, so
+ * the events cost next to nothing.
+ * <p>
+ * A recording for analysing UI jank could be started like this:
+ * <pre>
+ *         java -XX:StartFlightRecording:filename=app.jfr,settings=profile ...
+ *     </pre>
+ * The events can be found in the "GemsFX / Service Invocation" category of JDK Mission Control.
+ * </p>
+ */
+final class ServiceInvocationEvents {
+
+    private static final String CATEGORY = "GemsFX";
+
+    private static final String SUB_CATEGORY = "Service Invocation";
+
+    private ServiceInvocationEvents() {
+    }
+
+    @Name("com.dlsc.gemsfx.ServiceInvocationScheduled")
+    @Label("Scheduled")
+    @Description("A service invocation was handed to its executor or scheduler")
+    @Category({CATEGORY, SUB_CATEGORY})
+    static final class Scheduled extends Event {
+
+        @Label("Name")
+        String name;
+
+        @Label("Key")
+        String key;
+
+        @Label("Priority")
+        String priority;
+    }
+
+    @Name("com.dlsc.gemsfx.ServiceInvocationStarted")
+    @Label("Started")
+    @Description("A service invocation started running on a background thread")
+    @Category({CATEGORY, SUB_CATEGORY})
+    @StackTrace(false)
+    static final class Started extends Event {
+
+        @Label("Name")
+        String name;
+
+        @Label("Queue Wait")
+        @Timespan(Timespan.NANOSECONDS)
+        long queueWait;
+    }
+
+    @Name("com.dlsc.gemsfx.ServiceInvocationRateLimit")
+    @Label("Rate Limit")
+    @Description("A service invocation has to wait for a token of its rate limiter")
+    @Category({CATEGORY, SUB_CATEGORY})
+    static final class RateLimit extends Event {
+
+        @Label("Name")
+        String name;
+
+        @Label("Wait")
+        @Timespan(Timespan.NANOSECONDS)
+        long wait;
+    }
+
+    @Name("com.dlsc.gemsfx.ServiceInvocationDelay")
+    @Label("Delay")
+    @Description("The artificial delay of a service invocation")
+    @Category({CATEGORY, SUB_CATEGORY})
+    @StackTrace(false)
+    static final class Delay extends Event {
+
+        @Label("Name")
+        String name;
+    }
+
+    @Name("com.dlsc.gemsfx.ServiceInvocationCall")
+    @Label("Service Call")
+    @Description("A single call of the backend, one event per attempt")
+    @Category({CATEGORY, SUB_CATEGORY})
+    @StackTrace(false)
+    static final class ServiceCall extends Event {
+
+        @Label("Name")
+        String name;
+
+        @Label("Status Code")
+        @Description("The HTTP status code or 0 if the call failed with an exception")
+        int statusCode;
+
+        @Label("Hedged")
+        @Description("True if the call was started because the first call did not respond in time")
+        boolean hedged;
+    }
+
+    @Name("com.dlsc.gemsfx.ServiceInvocationCallbackDispatch")
+    @Label("Callback Dispatch")
+    @Description("The time the background thread spent handing a handler to the UI thread, including waiting for its completion unless asynchronous callbacks are enabled")
+    @Category({CATEGORY, SUB_CATEGORY})
+    @StackTrace(false)
+    static final class CallbackDispatch extends Event {
+
+        @Label("Name")
+        String name;
+
+        @Label("Handler")
+        String handler;
+
+        @Label("Asynchronous")
+        boolean async;
+    }
+
+    @Name("com.dlsc.gemsfx.ServiceInvocationCallback")
+    @Label("Callback")
+    @Description("The time a handler of a service invocation held the UI thread")
+    @Category({CATEGORY, SUB_CATEGORY})
+    @StackTrace(false)
+    static final class Callback extends Event {
+
+        @Label("Name")
+        String name;
+
+        @Label("Handler")
+        String handler;
+    }
+
+    @Name("com.dlsc.gemsfx.ServiceInvocationFinally")
+    @Label("Finally")
+    @Description("The completion of a service invocation, including the finally handler")
+    @Category({CATEGORY, SUB_CATEGORY})
+    @StackTrace(false)
+    static final class Finally extends Event {
+
+        @Label("Name")
+        String name;
+
+        @Label("Total Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long totalTime;
+    }
+}
@@ -0,0 +1,650 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A registry collecting timing and outcome metrics of {@link ServiceInvocation}s, grouped by
+ * the key of the invocations (see {@link ServiceInvocation#withKey(String)}), which identifies
+ * the service being called. For every key the registry maintains one {@link LatencyHistogram}
+ * per {@link Phase} and counters for the {@link Outcome outcomes} and the
+ * {@link HttpStatusCode.Family status code families} of the responses.
+ * <p>
+ * The number of keys is limited (see {@link #setMaxKeys(int)}), so that invocations with
+ * generated names like "Load order 4711" can not make the registry grow without bounds. Once
+ * the limit has been reached the invocations with new keys are recorded under {@link #OTHER_KEY}.
+ * Such invocations should be given a common key instead.
+ * </p>
+ * <p>
+ * The metrics can be read via {@link #getSnapshots()} or, after calling {@link #setJmxEnabled(boolean)},
+ * via JMX. Every key will then be registered as an MXBean with the object name
+ * "com.dlsc.gemsfx:type=ServiceInvocation,name=..." so that monitoring tools can alert on
+ * regressions of, for example, the 99th percentile of the total time.
+ * </p>
+ */
+public final class ServiceInvocationMetrics {
+
+    private static final Logger LOG = Logger.getLogger(ServiceInvocationMetrics.class.getName());
+
+    private static final ServiceInvocationMetrics DEFAULT = new ServiceInvocationMetrics();
+
+    /**
+     * The key used for recording the invocations once the maximum number of keys has been reached.
+     */
+    public static final String OTHER_KEY = "(other)";
+
+    /**
+     * The phases of a service invocation for which latencies are being recorded.
+     */
+    public enum Phase {
+
+        /**
+         * The time between calling execute() and the start of the invocation on a background thread.
+         */
+        QUEUE_WAIT,
+
+        /**
+         * The artificial delay, see {@link ServiceInvocation#withDelay(long)}.
+         */
+        DELAY,
+
+        /**
+         * The time spent waiting for the backend, recorded once per attempt.
+         */
+        NETWORK,
+
+        /**
+         * The time a handler occupied the UI thread, recorded once per handler.
+         */
+        CALLBACK,
+
+        /**
+         * The time between calling execute() and the completion of the invocation.
+         */
+        TOTAL
+    }
+
+    /**
+     * The possible outcomes of a service invocation.
+     */
+    public enum Outcome {
+
+        /**
+         * The backend returned a successful response.
+         */
+        SUCCESS,
+
+        /**
+         * The backend returned an unsuccessful response.
+         */
+        FAILURE,
+
+        /**
+         * The service call failed with an exception.
+         */
+        EXCEPTION,
+
+        /**
+         * The invocation was rejected without calling the backend, e.g. by an open circuit breaker.
+         */
+        REJECTED,
+
+        /**
+         * The invocation did not complete before its deadline.
+         */
+        TIMEOUT,
+
+        /**
+         * The request was appended to an {@link OfflineQueue} for later delivery.
+         */
+        QUEUED,
+
+        /**
+         * The invocation was cancelled.
+         */
+        CANCELLED
+    }
+
+    private final Map<String, InvocationMetrics> metrics = new ConcurrentHashMap<>();
+
+    private volatile boolean enabled = true;
+
+    private volatile boolean jmxEnabled;
+
+    private volatile int maxKeys = 500;
+
+    /**
+     * Constructs a new registry. Most applications will use the shared registry returned by
+     * {@link #getDefault()}, which is the one used by all service invocations.
+     */
+    public ServiceInvocationMetrics() {
+    }
+
+    /**
+     * Returns the shared registry.
+     *
+     * @return the default registry
+     */
+    public static ServiceInvocationMetrics getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Enables or disables the recording of metrics. Enabled by default.
+     *
+     * @param enabled true if metrics should be recorded
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets the maximum number of keys for which metrics are recorded separately. Invocations
+     * with other keys are recorded under {@link #OTHER_KEY}. The default is 500.
+     *
+     * @param maxKeys the maximum number of keys
+     */
+    public void setMaxKeys(int maxKeys) {
+        if (maxKeys < 1) {
+            throw new IllegalArgumentException("max keys must be positive but was " + maxKeys);
+        }
+        this.maxKeys = maxKeys;
+    }
+
+    public int getMaxKeys() {
+        return maxKeys;
+    }
+
+    /**
+     * Returns the metrics for the given invocation key, creating them if needed.
+     *
+     * @param key the invocation key
+     * @return the metrics or null if recording is disabled
+     */
+    InvocationMetrics forKey(String key) {
+        if (!enabled) {
+            return null;
+        }
+
+        InvocationMetrics invocationMetrics = metrics.get(key);
+        if (invocationMetrics != null) {
+            return invocationMetrics;
+        }
+
+        if (metrics.size() >= maxKeys) {
+            if (!metrics.containsKey(OTHER_KEY)) {
+                LOG.warning("more than " + maxKeys + " service invocation keys, recording further keys as " + OTHER_KEY);
+            }
+            key = OTHER_KEY;
+        }
+
+        return metrics.computeIfAbsent(key, this::create);
+    }
+
+    private InvocationMetrics create(String key) {
+        InvocationMetrics invocationMetrics = new InvocationMetrics(key);
+        if (jmxEnabled) {
+            register(invocationMetrics);
+        }
+        return invocationMetrics;
+    }
+
+    /**
+     * Returns the metrics recorded for the given invocation key.
+     *
+     * @param key the invocation key
+     * @return the metrics or null if no invocation with this key has been recorded yet
+     */
+    public InvocationMetrics getMetrics(String key) {
+        return metrics.get(key);
+    }
+
+    /**
+     * Returns the keys of all recorded invocations.
+     *
+     * @return the invocation keys
+     */
+    public Set<String> getKeys() {
+        return Collections.unmodifiableSet(metrics.keySet());
+    }
+
+    /**
+     * Returns a snapshot of the metrics of the given invocation key.
+     *
+     * @param key the invocation key
+     * @return the snapshot or null if no invocation with this key has been recorded yet
+     */
+    public Snapshot getSnapshot(String key) {
+        InvocationMetrics invocationMetrics = metrics.get(key);
+        return invocationMetrics != null ? invocationMetrics.snapshot() : null;
+    }
+
+    /**
+     * Returns snapshots of the metrics of all recorded invocation keys, sorted by key.
+     *
+     * @return the snapshots
+     */
+    public Map<String, Snapshot> getSnapshots() {
+        Map<String, Snapshot> snapshots = new TreeMap<>();
+        metrics.forEach((key, invocationMetrics) -> snapshots.put(key, invocationMetrics.snapshot()));
+        return snapshots;
+    }
+
+    /**
+     * Discards all recorded metrics and keys.
+     */
+    public synchronized void reset() {
+        metrics.values().forEach(invocationMetrics -> {
+            invocationMetrics.reset();
+            if (jmxEnabled) {
+                unregister(invocationMetrics);
+            }
+        });
+        metrics.clear();
+    }
+
+    /**
+     * Registers / unregisters the metrics of every invocation key as an MXBean with the platform
+     * MBean server.
+     *
+     * @param enabled true if the metrics should be available via JMX
+     */
+    public synchronized void setJmxEnabled(boolean enabled) {
+        if (jmxEnabled == enabled) {
+            return;
+        }
+
+        jmxEnabled = enabled;
+
+        for (InvocationMetrics invocationMetrics : metrics.values()) {
+            if (enabled) {
+                register(invocationMetrics);
+            } else {
+                unregister(invocationMetrics);
+            }
+        }
+    }
+
+    public boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    private static void register(InvocationMetrics invocationMetrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = invocationMetrics.getObjectName();
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(invocationMetrics, objectName);
+            }
+        } catch (JMException e) {
+            LOG.log(Level.WARNING, "unable to register service invocation metrics via JMX: " + invocationMetrics.getKey(), e);
+        }
+    }
+
+    private static void unregister(InvocationMetrics invocationMetrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = invocationMetrics.getObjectName();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            LOG.log(Level.WARNING, "unable to unregister service invocation metrics from JMX: " + invocationMetrics.getKey(), e);
+        }
+    }
+
+    /**
+     * The management interface of the metrics of a single invocation key. All times are in
+     * milliseconds.
+     */
+    public interface InvocationMetricsMXBean {
+
+        String getKey();
+
+        long getSuccessCount();
+
+        long getFailureCount();
+
+        long getExceptionCount();
+
+        long getRejectedCount();
+
+        long getCancelledCount();
+
+        long getClientErrorCount();
+
+        long getServerErrorCount();
+
+        double getQueueWaitP99();
+
+        double getNetworkP50();
+
+        double getNetworkP99();
+
+        double getCallbackP99();
+
+        double getTotalP50();
+
+        double getTotalP90();
+
+        double getTotalP99();
+
+        double getTotalMax();
+
+        void reset();
+    }
+
+    /**
+     * The metrics recorded for a single invocation key.
+     */
+    public static final class InvocationMetrics implements InvocationMetricsMXBean {
+
+        private static final Phase[] PHASES = Phase.values();
+
+        private static final Outcome[] OUTCOMES = Outcome.values();
+
+        private static final HttpStatusCode.Family[] FAMILIES = HttpStatusCode.Family.values();
+
+        private final String key;
+
+        private final LatencyHistogram[] histograms = new LatencyHistogram[PHASES.length];
+
+        private final LongAdder[] outcomes = new LongAdder[OUTCOMES.length];
+
+        private final LongAdder[] families = new LongAdder[FAMILIES.length];
+
+        private InvocationMetrics(String key) {
+            this.key = key;
+
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new LatencyHistogram();
+            }
+            for (int i = 0; i < outcomes.length; i++) {
+                outcomes[i] = new LongAdder();
+            }
+            for (int i = 0; i < families.length; i++) {
+                families[i] = new LongAdder();
+            }
+        }
+
+        void record(Phase phase, long nanos) {
+            histograms[phase.ordinal()].record(nanos);
+        }
+
+        void record(Outcome outcome) {
+            outcomes[outcome.ordinal()].increment();
+        }
+
+        void recordStatusCode(int code) {
+            families[HttpStatusCode.Family.familyOf(code).ordinal()].increment();
+        }
+
+        ObjectName getObjectName() throws JMException {
+            return new ObjectName("com.dlsc.gemsfx:type=ServiceInvocation,name=" + ObjectName.quote(key));
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Returns the histogram of the given phase.
+         *
+         * @param phase the phase
+         * @return the histogram
+         */
+        public LatencyHistogram getHistogram(Phase phase) {
+            return histograms[phase.ordinal()];
+        }
+
+        /**
+         * Returns the number of invocations with the given outcome.
+         *
+         * @param outcome the outcome
+         * @return the number of invocations
+         */
+        public long getCount(Outcome outcome) {
+            return outcomes[outcome.ordinal()].sum();
+        }
+
+        /**
+         * Returns the number of responses with a status code of the given family.
+         *
+         * @param family the status code family
+         * @return the number of responses
+         */
+        public long getCount(HttpStatusCode.Family family) {
+            return families[family.ordinal()].sum();
+        }
+
+        @Override
+        public long getSuccessCount() {
+            return getCount(Outcome.SUCCESS);
+        }
+
+        @Override
+        public long getFailureCount() {
+            return getCount(Outcome.FAILURE);
+        }
+
+        @Override
+        public long getExceptionCount() {
+            return getCount(Outcome.EXCEPTION);
+        }
+
+        @Override
+        public long getRejectedCount() {
+            return getCount(Outcome.REJECTED);
+        }
+
+        @Override
+        public long getCancelledCount() {
+            return getCount(Outcome.CANCELLED);
+        }
+
+        @Override
+        public long getClientErrorCount() {
+            return getCount(HttpStatusCode.Family.CLIENT_ERROR);
+        }
+
+        @Override
+        public long getServerErrorCount() {
+            return getCount(HttpStatusCode.Family.SERVER_ERROR);
+        }
+
+        @Override
+        public double getQueueWaitP99() {
+            return percentile(Phase.QUEUE_WAIT, 99);
+        }
+
+        @Override
+        public double getNetworkP50() {
+            return percentile(Phase.NETWORK, 50);
+        }
+
+        @Override
+        public double getNetworkP99() {
+            return percentile(Phase.NETWORK, 99);
+        }
+
+        @Override
+        public double getCallbackP99() {
+            return percentile(Phase.CALLBACK, 99);
+        }
+
+        @Override
+        public double getTotalP50() {
+            return percentile(Phase.TOTAL, 50);
+        }
+
+        @Override
+        public double getTotalP90() {
+            return percentile(Phase.TOTAL, 90);
+        }
+
+        @Override
+        public double getTotalP99() {
+            return percentile(Phase.TOTAL, 99);
+        }
+
+        @Override
+        public double getTotalMax() {
+            return getHistogram(Phase.TOTAL).getMax(TimeUnit.MILLISECONDS);
+        }
+
+        private double percentile(Phase phase, double percentile) {
+            return getHistogram(phase).getValueAtPercentile(percentile, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void reset() {
+            for (LatencyHistogram histogram : histograms) {
+                histogram.reset();
+            }
+            for (LongAdder outcome : outcomes) {
+                outcome.reset();
+            }
+            for (LongAdder family : families) {
+                family.reset();
+            }
+        }
+
+        Snapshot snapshot() {
+            Map<Phase, PhaseSnapshot> phases = new EnumMap<>(Phase.class);
+            for (Phase phase : PHASES) {
+                phases.put(phase, new PhaseSnapshot(getHistogram(phase)));
+            }
+
+            Map<Outcome, Long> outcomeCounts = new EnumMap<>(Outcome.class);
+            for (Outcome outcome : OUTCOMES) {
+                outcomeCounts.put(outcome, getCount(outcome));
+            }
+
+            Map<HttpStatusCode.Family, Long> familyCounts = new EnumMap<>(HttpStatusCode.Family.class);
+            for (HttpStatusCode.Family family : FAMILIES) {
+                familyCounts.put(family, getCount(family));
+            }
+
+            return new Snapshot(key, phases, outcomeCounts, familyCounts);
+        }
+    }
+
+    /**
+     * An immutable copy of the metrics of a single invocation key.
+     */
+    public static final class Snapshot {
+
+        private final String key;
+
+        private final Map<Phase, PhaseSnapshot> phases;
+
+        private final Map<Outcome, Long> outcomes;
+
+        private final Map<HttpStatusCode.Family, Long> families;
+
+        private Snapshot(String key, Map<Phase, PhaseSnapshot> phases, Map<Outcome, Long> outcomes, Map<HttpStatusCode.Family, Long> families) {
+            this.key = key;
+            this.phases = Collections.unmodifiableMap(phases);
+            this.outcomes = Collections.unmodifiableMap(outcomes);
+            this.families = Collections.unmodifiableMap(families);
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public PhaseSnapshot getPhase(Phase phase) {
+            return phases.get(phase);
+        }
+
+        public long getCount(Outcome outcome) {
+            return outcomes.get(outcome);
+        }
+
+        public long getCount(HttpStatusCode.Family family) {
+            return families.get(family);
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{key='" + key + "', outcomes=" + outcomes + ", families=" + families + ", phases=" + phases + "}";
+        }
+    }
+
+    /**
+     * An immutable summary of the latencies recorded for a phase. All times are in milliseconds.
+     */
+    public static final class PhaseSnapshot {
+
+        private final long count;
+
+        private final double mean;
+
+        private final double p50;
+
+        private final double p90;
+
+        private final double p99;
+
+        private final double max;
+
+        private PhaseSnapshot(LatencyHistogram histogram) {
+            count = histogram.getCount();
+            mean = histogram.getMean(TimeUnit.MILLISECONDS);
+            p50 = histogram.getValueAtPercentile(50, TimeUnit.MILLISECONDS);
+            p90 = histogram.getValueAtPercentile(90, TimeUnit.MILLISECONDS);
+            p99 = histogram.getValueAtPercentile(99, TimeUnit.MILLISECONDS);
+            max = histogram.getMax(TimeUnit.MILLISECONDS);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getP50() {
+            return p50;
+        }
+
+        public double getP90() {
+            return p90;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("{count=%d, mean=%.1f, p50=%.1f, p90=%.1f, p99=%.1f, max=%.1f}", count, mean, p50, p90, p99, max);
+        }
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.beans.property.ReadOnlyDoubleWrapper;
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
+
+import com.dlsc.gemsfx.util.ServiceInvocation.Priority;
+
+/**
+ * A scheduler limiting the number of service invocations running at the same time, in total
+ * and per service ("bulkhead"). Invocations that can not be started right away wait in a
+ * bounded queue. Invocations with priority {@link Priority#INTERACTIVE} will always be started
+ * before waiting invocations with priority {@link Priority#BACKGROUND}, so a burst of background
+ * prefetching can not delay the request the user is waiting for. When the queue is full the
+ * invocation fails immediately with a {@link RejectedExecutionException}. The same happens to a
+ * waiting invocation when the underlying executor rejects it once it is its turn.
+ * <p>
+ * Invocations are grouped into services by their key (see {@link ServiceInvocation#withKey(String)}).
+ * The queue depth, the number of active invocations and the waiting time are available as
+ * JavaFX properties, which are only updated on the UI thread.
+ * </p>
+ * <p>
+ * The scheduler is the only place where the number of concurrent HTTP calls gets limited. The
+ * invocations execute their calls synchronously, so the request limits of the OkHttp dispatcher
+ * do not apply to them. The {@link ServiceClientFactory} only derives the size of its connection
+ * pool from the scheduler.
+ * </p>
+ * <h3>Example:</h3>
+ * <pre>
+ *         ServiceInvocation.setDefaultScheduler(new ServiceInvocationScheduler(16, 4, 500));
+ *
+ *         ServiceInvocation.createForCall("Prefetch ...", () -> myService.loadData())
+ *              .withPriority(Priority.BACKGROUND)
+ *              .onSuccess(data -> cache.putAll(data)).execute();
+ *     </pre>
+ *
+ * @see ServiceInvocation#withScheduler(ServiceInvocationScheduler)
+ * @see ServiceInvocation#setDefaultScheduler(ServiceInvocationScheduler)
+ */
+public final class ServiceInvocationScheduler {
+
+    private static final Logger LOG = Logger.getLogger(ServiceInvocationScheduler.class.getName());
+
+    private final int maxConcurrent;
+
+    private final int maxConcurrentPerService;
+
+    private final int queueCapacity;
+
+    private final Executor executor;
+
+    // guarded by "this"
+
+    private final Deque<Task> interactiveQueue = new ArrayDeque<>();
+
+    private final Deque<Task> backgroundQueue = new ArrayDeque<>();
+
+    private final Map<String, Integer> activePerService = new HashMap<>();
+
+    private int active;
+
+    private long rejected;
+
+    private double averageWaitMillis;
+
+    /**
+     * Constructs a new scheduler that runs the invocations with the executor of the default
+     * {@link ServiceInvocation.ExecutorStrategy}.
+     *
+     * @param maxConcurrent           the maximum number of invocations running at the same time
+     * @param maxConcurrentPerService the maximum number of invocations per service running at the same time
+     * @param queueCapacity           the maximum number of waiting invocations
+     */
+    public ServiceInvocationScheduler(int maxConcurrent, int maxConcurrentPerService, int queueCapacity) {
+        this(maxConcurrent, maxConcurrentPerService, queueCapacity, null);
+    }
+
+    /**
+     * Constructs a new scheduler.
+     *
+     * @param maxConcurrent           the maximum number of invocations running at the same time
+     * @param maxConcurrentPerService the maximum number of invocations per service running at the same time
+     * @param queueCapacity           the maximum number of waiting invocations
+     * @param executor                the executor used for running the invocations or null for the executor of the default strategy
+     */
+    public ServiceInvocationScheduler(int maxConcurrent, int maxConcurrentPerService, int queueCapacity, Executor executor) {
+        if (maxConcurrent < 1 || maxConcurrentPerService < 1 || queueCapacity < 0) {
+            throw new IllegalArgumentException("limits must be positive and queue capacity must not be negative");
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.maxConcurrentPerService = Math.min(maxConcurrent, maxConcurrentPerService);
+        this.queueCapacity = queueCapacity;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns an executor that submits the runnables it receives to this scheduler.
+     *
+     * @param service  the key of the service
+     * @param priority the priority of the runnables
+     * @return an executor bound to the given service and priority
+     */
+    Executor executorFor(String service, Priority priority) {
+        Objects.requireNonNull(service, "service can not be null");
+        Objects.requireNonNull(priority, "priority can not be null");
+        return runnable -> submit(new Task(service, priority, runnable));
+    }
+
+    /**
+     * Wraps the given runnable so that the given handler gets called when the runnable was
+     * accepted by the executor of a scheduler but can never be run, because the underlying
+     * executor rejected it after it had been waiting in the queue. Runnables that are rejected
+     * right away cause a {@link RejectedExecutionException} to be thrown instead.
+     *
+     * @param runnable the runnable to submit
+     * @param handler  the handler called when the queued runnable was rejected
+     * @return the wrapped runnable
+     */
+    static Runnable onRejected(Runnable runnable, Consumer<RejectedExecutionException> handler) {
+        return new RejectableRunnable(runnable, handler);
+    }
+
+    private void submit(Task task) {
+        synchronized (this) {
+            if (!canStart(task.service)) {
+                if (interactiveQueue.size() + backgroundQueue.size() < queueCapacity) {
+                    (task.priority == Priority.INTERACTIVE ? interactiveQueue : backgroundQueue).add(task);
+                    publish();
+                    return;
+                }
+                rejected++;
+                throw new RejectedExecutionException("service invocation queue is full, capacity = " + queueCapacity);
+            }
+
+            reserve(task);
+            publish();
+        }
+
+        try {
+            start(task);
+        } catch (RejectedExecutionException e) {
+            LOG.log(Level.SEVERE, "executor rejected service invocation", e);
+            finished(task);
+            throw e;
+        }
+    }
+
+    private boolean canStart(String service) {
+        return active < maxConcurrent && activePerService.getOrDefault(service, 0) < maxConcurrentPerService;
+    }
+
+    private void reserve(Task task) {
+        active++;
+        activePerService.merge(task.service, 1, Integer::sum);
+
+        double waitMillis = (System.nanoTime() - task.enqueuedAt) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        averageWaitMillis = averageWaitMillis * 0.9 + waitMillis * 0.1;
+    }
+
+    /*
+     * Hands the task to the executor. Must not be called while holding the lock, executors
+     * may block or run the task right away.
+     */
+    private void start(Task task) {
+        Executor target = executor != null ? executor : ServiceInvocation.getDefaultExecutorStrategy().getExecutor();
+
+        target.execute(() -> {
+            try {
+                task.runnable.run();
+            } finally {
+                finished(task);
+            }
+        });
+    }
+
+    /*
+     * Releases the slot of the given task and starts the waiting tasks that fit into the free
+     * slots. Waiting tasks rejected by the executor are failed and release their slot again.
+     */
+    private void finished(Task task) {
+        Deque<Task> startable = release(task);
+
+        Task next;
+        while ((next = startable.poll()) != null) {
+            try {
+                start(next);
+            } catch (RejectedExecutionException e) {
+                LOG.log(Level.SEVERE, "executor rejected queued service invocation", e);
+                next.reject(e);
+                startable.addAll(release(next));
+            }
+        }
+    }
+
+    private synchronized Deque<Task> release(Task task) {
+        active--;
+        activePerService.computeIfPresent(task.service, (key, count) -> count > 1 ? count - 1 : null);
+
+        Deque<Task> startable = new ArrayDeque<>();
+
+        Task next;
+        while ((next = pollStartable(interactiveQueue)) != null || (next = pollStartable(backgroundQueue)) != null) {
+            reserve(next);
+            startable.add(next);
+        }
+
+        publish();
+
+        return startable;
+    }
+
+    private Task pollStartable(Deque<Task> queue) {
+        if (active >= maxConcurrent) {
+            return null;
+        }
+
+        Iterator<Task> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            Task task = iterator.next();
+            if (canStart(task.service)) {
+                iterator.remove();
+                return task;
+            }
+        }
+
+        return null;
+    }
+
+    private void publish() {
+        int depth = interactiveQueue.size() + backgroundQueue.size();
+        int activeCount = active;
+        double averageWait = averageWaitMillis;
+
+        FXDispatcher.getDefault().update(this, () -> {
+            queueDepth.set(depth);
+            this.activeCount.set(activeCount);
+            averageWaitTime.set(averageWait);
+        });
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public int getMaxConcurrentPerService() {
+        return maxConcurrentPerService;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Returns the number of invocations that were rejected because the queue was full.
+     *
+     * @return the number of rejected invocations
+     */
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+
+    // queue depth
+
+    private final ReadOnlyIntegerWrapper queueDepth = new ReadOnlyIntegerWrapper(this, "queueDepth");
+
+    /**
+     * Returns the number of waiting invocations as last published on the UI thread.
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * A read-only property for observing the number of waiting invocations.
+     *
+     * @return the queue depth property
+     */
+    public ReadOnlyIntegerProperty queueDepthProperty() {
+        return queueDepth.getReadOnlyProperty();
+    }
+
+    // active count
+
+    private final ReadOnlyIntegerWrapper activeCount = new ReadOnlyIntegerWrapper(this, "activeCount");
+
+    /**
+     * Returns the number of running invocations as last published on the UI thread.
+     *
+     * @return the number of running invocations
+     */
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    /**
+     * A read-only property for observing the number of running invocations.
+     *
+     * @return the active count property
+     */
+    public ReadOnlyIntegerProperty activeCountProperty() {
+        return activeCount.getReadOnlyProperty();
+    }
+
+    // average wait time
+
+    private final ReadOnlyDoubleWrapper averageWaitTime = new ReadOnlyDoubleWrapper(this, "averageWaitTime");
+
+    /**
+     * Returns the (exponentially weighted) average time in milliseconds invocations had to wait
+     * before they were started, as last published on the UI thread.
+     *
+     * @return the average waiting time in milliseconds
+     */
+    public double getAverageWaitTime() {
+        return averageWaitTime.get();
+    }
+
+    /**
+     * A read-only property for observing the average waiting time in milliseconds.
+     *
+     * @return the average wait time property
+     */
+    public ReadOnlyDoubleProperty averageWaitTimeProperty() {
+        return averageWaitTime.getReadOnlyProperty();
+    }
+
+    private static final class Task {
+
+        private final String service;
+
+        private final Priority priority;
+
+        private final Runnable runnable;
+
+        private final long enqueuedAt = System.nanoTime();
+
+        private Task(String service, Priority priority, Runnable runnable) {
+            this.service = service;
+            this.priority = priority;
+            this.runnable = runnable;
+        }
+
+        private void reject(RejectedExecutionException e) {
+            if (runnable instanceof RejectableRunnable) {
+                ((RejectableRunnable) runnable).handler.accept(e);
+            }
+        }
+    }
+
+    private static final class RejectableRunnable implements Runnable {
+
+        private final Runnable runnable;
+
+        private final Consumer<RejectedExecutionException> handler;
+
+        private RejectableRunnable(Runnable runnable, Consumer<RejectedExecutionException> handler) {
+            this.runnable = Objects.requireNonNull(runnable, "runnable can not be null");
+            this.handler = Objects.requireNonNull(handler, "handler can not be null");
+        }
+
+        @Override
+        public void run() {
+            runnable.run();
+        }
+    }
+}
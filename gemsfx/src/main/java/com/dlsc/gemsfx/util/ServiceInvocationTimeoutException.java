@@ -0,0 +1,32 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.time.Duration;
+
+/**
+ * The exception stored in the "exception" property of a {@link ServiceInvocation} when the
+ * invocation did not complete before its deadline.
+ *
+ * @see ServiceInvocation#withTimeout(Duration)
+ * @see ServiceInvocation#withDeadline(Deadline)
+ */
+public class ServiceInvocationTimeoutException extends RuntimeException {
+
+    private final transient Deadline deadline;
+
+    public ServiceInvocationTimeoutException(String name, Deadline deadline) {
+        super("service invocation " + name + " timed out");
+        this.deadline = deadline;
+    }
+
+    /**
+     * Returns the deadline that was missed.
+     *
+     * @return the deadline
+     */
+    public Deadline getDeadline() {
+        return deadline;
+    }
+}
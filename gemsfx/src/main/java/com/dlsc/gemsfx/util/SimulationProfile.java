@@ -0,0 +1,222 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import retrofit2.Response;
+
+/**
+ * A profile simulating the behavior of real backends in order to find bottlenecks in the UI,
+ * e.g. during load tests or while developing against a fast local backend. Once a profile has
+ * been activated via {@link ServiceInvocation#setSimulationProfile(SimulationProfile)} every
+ * call of the backend made by a service invocation gets delayed by a latency sampled from a
+ * log-normal distribution, and it may be replaced by a failure response or by a timeout.
+ * <p>
+ * The behavior can be configured per invocation name. A name ending with "*" matches all
+ * invocations whose name starts with the text before the "*", the longest match wins.
+ * Invocations without a matching name use the default behavior, which does not simulate
+ * anything unless it gets configured.
+ * </p>
+ * <h3>Example:</h3>
+ * <pre>
+ *         SimulationProfile profile = new SimulationProfile();
+ *         profile.getDefault().withLatency(Duration.ofMillis(80), Duration.ofMillis(900));
+ *         profile.forName("Search *")
+ *              .withLatency(Duration.ofMillis(200), Duration.ofSeconds(3))
+ *              .withFailures(0.05, HttpStatusCode.SERVICE_UNAVAILABLE)
+ *              .withTimeouts(0.01, Duration.ofSeconds(10));
+ *
+ *         ServiceInvocation.setSimulationProfile(profile);
+ *     </pre>
+ */
+public final class SimulationProfile {
+
+    private final Behavior defaultBehavior = new Behavior();
+
+    private final Map<String, Behavior> behaviors = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the behavior used for invocations without a behavior of their own.
+     *
+     * @return the default behavior
+     */
+    public Behavior getDefault() {
+        return defaultBehavior;
+    }
+
+    /**
+     * Returns the behavior for the given invocation name or name pattern ending with "*". The
+     * behavior will be created when it gets requested for the first time.
+     *
+     * @param name the invocation name or pattern
+     * @return the behavior
+     */
+    public Behavior forName(String name) {
+        Objects.requireNonNull(name, "name can not be null");
+        return behaviors.computeIfAbsent(name, n -> new Behavior());
+    }
+
+    /**
+     * Returns the behavior that applies to the invocation with the given name.
+     *
+     * @param name the name of the invocation
+     * @return the behavior, never null
+     */
+    Behavior behaviorFor(String name) {
+        Behavior behavior = behaviors.get(name);
+        if (behavior != null) {
+            return behavior;
+        }
+
+        int longestMatch = -1;
+        behavior = defaultBehavior;
+
+        for (Map.Entry<String, Behavior> entry : behaviors.entrySet()) {
+            String pattern = entry.getKey();
+            if (pattern.endsWith("*")) {
+                String prefix = pattern.substring(0, pattern.length() - 1);
+                if (prefix.length() > longestMatch && name.startsWith(prefix)) {
+                    longestMatch = prefix.length();
+                    behavior = entry.getValue();
+                }
+            }
+        }
+
+        return behavior;
+    }
+
+    /**
+     * The simulated behavior of a backend.
+     */
+    public static final class Behavior {
+
+        // the 99th percentile of the standard normal distribution
+        private static final double Z_99 = 2.3263478740408408;
+
+        private static final MediaType TEXT = MediaType.get("text/plain");
+
+        private volatile double mu = Double.NaN;
+
+        private volatile double sigma;
+
+        private volatile double failureRate;
+
+        private volatile HttpStatusCode failureStatusCode = HttpStatusCode.INTERNAL_SERVER_ERROR;
+
+        private volatile double timeoutRate;
+
+        private volatile long timeoutNanos = TimeUnit.SECONDS.toNanos(10);
+
+        private Behavior() {
+        }
+
+        /**
+         * Delays every call by a latency sampled from a log-normal distribution with the given
+         * median and 99th percentile, which is a good approximation of the latencies of real
+         * backends: most calls are fast, a few are very slow.
+         *
+         * @param p50 the median latency
+         * @param p99 the 99th percentile of the latency, not lower than the median
+         * @return the behavior
+         */
+        public Behavior withLatency(Duration p50, Duration p99) {
+            Objects.requireNonNull(p50, "p50 can not be null");
+            Objects.requireNonNull(p99, "p99 can not be null");
+            if (p50.isNegative() || p50.isZero() || p99.compareTo(p50) < 0) {
+                throw new IllegalArgumentException("latencies must satisfy 0 < p50 <= p99 but were " + p50 + " / " + p99);
+            }
+            sigma = (Math.log(p99.toNanos()) - Math.log(p50.toNanos())) / Z_99;
+            mu = Math.log(p50.toNanos());
+            return this;
+        }
+
+        /**
+         * Replaces the given ratio of the calls with a response carrying the given status code,
+         * without calling the backend.
+         *
+         * @param rate       the failure rate between 0 and 1
+         * @param statusCode the status code of the simulated failures
+         * @return the behavior
+         */
+        public Behavior withFailures(double rate, HttpStatusCode statusCode) {
+            checkRate(rate);
+            Objects.requireNonNull(statusCode, "status code can not be null");
+            if (statusCode.getStatusCode() < 400) {
+                throw new IllegalArgumentException("status code must be a client or server error but was " + statusCode);
+            }
+            failureStatusCode = statusCode;
+            failureRate = rate;
+            return this;
+        }
+
+        /**
+         * Replaces the given ratio of the calls with a call that does not respond and fails with
+         * a {@link SocketTimeoutException} after the given time, just like the read timeout of
+         * the HTTP client. A shorter timeout of the invocation itself takes precedence.
+         *
+         * @param rate  the timeout rate between 0 and 1
+         * @param after the time after which the simulated call times out
+         * @return the behavior
+         */
+        public Behavior withTimeouts(double rate, Duration after) {
+            checkRate(rate);
+            Objects.requireNonNull(after, "timeout can not be null");
+            timeoutNanos = after.toNanos();
+            timeoutRate = rate;
+            return this;
+        }
+
+        private static void checkRate(double rate) {
+            if (rate < 0 || rate > 1) {
+                throw new IllegalArgumentException("rate must be between 0 and 1 but was " + rate);
+            }
+        }
+
+        /**
+         * Removes all simulations from this behavior.
+         */
+        public void reset() {
+            mu = Double.NaN;
+            failureRate = 0;
+            timeoutRate = 0;
+        }
+
+        /**
+         * Applies the behavior to a single call. Sleeps for the sampled latency and either
+         * returns null, if the real call should be made, or a simulated failure response.
+         *
+         * @return the simulated response or null
+         * @throws InterruptedException   if the invocation got cancelled while sleeping
+         * @throws SocketTimeoutException if a timeout has been simulated
+         */
+        <T> Response<T> simulate() throws InterruptedException, SocketTimeoutException {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+
+            if (timeoutRate > 0 && random.nextDouble() < timeoutRate) {
+                TimeUnit.NANOSECONDS.sleep(timeoutNanos);
+                throw new SocketTimeoutException("Simulated timeout");
+            }
+
+            double m = mu;
+            if (!Double.isNaN(m)) {
+                TimeUnit.NANOSECONDS.sleep((long) Math.exp(m + sigma * random.nextGaussian()));
+            }
+
+            if (failureRate > 0 && random.nextDouble() < failureRate) {
+                return Response.error(failureStatusCode.getStatusCode(), ResponseBody.create(TEXT, "Simulated failure"));
+            }
+
+            return null;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Makes sure that concurrent calls for the same key are only executed once. The first caller
+ * ("leader") performs the call, all callers arriving while the call is still in flight
+ * ("followers") wait for it and receive the same result. Used by {@link ServiceInvocation} for
+ * deduplicating identical requests (see {@link ServiceInvocation#withDeduplication(boolean)}).
+ * <p>
+ * If the leader fails with a {@link CancellationException} then the followers do not receive
+ * the cancellation but one of them becomes the new leader and performs the call itself.
+ * </p>
+ */
+public final class SingleFlight {
+
+    private static final SingleFlight DEFAULT = new SingleFlight();
+
+    private final Map<String, CompletableFuture<Supplier<?>>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder callCount = new LongAdder();
+
+    private final LongAdder hitCount = new LongAdder();
+
+    /**
+     * Constructs a new instance. Most applications will use the shared instance returned
+     * by {@link #getDefault()}.
+     */
+    public SingleFlight() {
+    }
+
+    /**
+     * Returns the shared instance.
+     *
+     * @return the default instance
+     */
+    public static SingleFlight getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Executes the given call unless a call for the same key is already in flight, in which case
+     * the result of that call will be returned. As the result will be handed to several callers it
+     * first gets passed to the "share" function, which returns a supplier of per-caller copies of
+     * the result. Results that can safely be shared can simply be wrapped: {@code r -> () -> r}.
+     *
+     * @param key   the key identifying identical calls
+     * @param call  the call
+     * @param share the function turning a result into a supplier of shareable results
+     * @param <V>   the type of the result
+     * @return the result
+     * @throws Exception the exception thrown by the call
+     */
+    @SuppressWarnings("unchecked")
+    public <V> V execute(String key, Callable<V> call, Function<V, Supplier<V>> share) throws Exception {
+        Objects.requireNonNull(key, "key can not be null");
+
+        callCount.increment();
+
+        boolean follower = false;
+
+        while (true) {
+            CompletableFuture<Supplier<?>> future = new CompletableFuture<>();
+            CompletableFuture<Supplier<?>> existing = inFlight.putIfAbsent(key, future);
+
+            if (existing == null) {
+                try {
+                    Supplier<V> result = share.apply(call.call());
+                    future.complete(result);
+                    return result.get();
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    inFlight.remove(key, future);
+                }
+            }
+
+            if (!follower) {
+                follower = true;
+                hitCount.increment();
+            }
+
+            try {
+                return ((Supplier<V>) existing.get()).get();
+            } catch (CancellationException e) {
+                // the leader was cancelled, try again
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of calls that are currently in flight.
+     *
+     * @return the number of in flight calls
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Returns the number of times {@link #execute(String, Callable, Function)} has been called.
+     *
+     * @return the number of calls
+     */
+    public long getCallCount() {
+        return callCount.sum();
+    }
+
+    /**
+     * Returns the number of calls that were served by a call already in flight.
+     *
+     * @return the number of deduplicated calls
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * Returns the ratio of deduplicated calls to all calls.
+     *
+     * @return the hit rate between 0 and 1
+     */
+    public double getHitRate() {
+        long calls = getCallCount();
+        return calls == 0 ? 0 : (double) getHitCount() / calls;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * A call that wraps a call returning the raw response body and streams the body into a sink
+ * instead of materializing it. The result of the call is the result produced by the sink, e.g.
+ * the number of bytes or the file the body was written to. Used by
+ * {@link ServiceInvocation#createDownload(String, ServiceInvocation.CallSupplier, ServiceInvocation.ChunkConsumer)}.
+ * The wrapped call should be declared with Retrofit's "@Streaming" annotation, otherwise
+ * Retrofit buffers the body before handing it over.
+ *
+ * @param <T> the type of the result produced by the sink
+ */
+final class StreamingCall<T> implements Call<T> {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Receives the chunks of one transfer.
+     *
+     * @param <T> the type of the result
+     */
+    interface Sink<T> {
+
+        void write(ByteBuffer chunk) throws IOException;
+
+        /**
+         * Completes the transfer.
+         *
+         * @param bytes the total number of bytes transferred
+         * @return the result
+         * @throws IOException if the transfer can not be completed
+         */
+        T finish(long bytes) throws IOException;
+
+        /**
+         * Aborts the transfer, e.g. closes and deletes an incomplete file.
+         */
+        void abort();
+    }
+
+    private final Call<ResponseBody> delegate;
+
+    private final Supplier<Sink<T>> sinkFactory;
+
+    private volatile ProgressListener progressListener;
+
+    StreamingCall(Call<ResponseBody> delegate, Supplier<Sink<T>> sinkFactory) {
+        this.delegate = Objects.requireNonNull(delegate, "call can not be null");
+        this.sinkFactory = sinkFactory;
+    }
+
+    void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    @Override
+    public Response<T> execute() throws IOException {
+        return stream(delegate.execute());
+    }
+
+    private Response<T> stream(Response<ResponseBody> response) throws IOException {
+        if (!response.isSuccessful()) {
+            return Response.error(response.errorBody(), response.raw());
+        }
+
+        ResponseBody body = response.body();
+        if (body == null) {
+            return Response.success(sinkFactory.get().finish(0), response.raw());
+        }
+
+        long contentLength = body.contentLength();
+        ProgressListener listener = progressListener;
+
+        Sink<T> sink = sinkFactory.get();
+        boolean completed = false;
+
+        try (InputStream in = body.byteStream()) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long total = 0;
+            int read;
+
+            if (listener != null) {
+                listener.progress(0, contentLength);
+            }
+
+            while ((read = in.read(buffer)) != -1) {
+                if (delegate.isCanceled()) {
+                    throw new IOException("Canceled");
+                }
+
+                sink.write(ByteBuffer.wrap(buffer, 0, read));
+                total += read;
+
+                if (listener != null) {
+                    listener.progress(total, contentLength);
+                }
+            }
+
+            T result = sink.finish(total);
+            completed = true;
+            return Response.success(result, response.raw());
+        } finally {
+            if (!completed) {
+                sink.abort();
+            }
+        }
+    }
+
+    @Override
+    public void enqueue(Callback<T> callback) {
+        delegate.enqueue(new Callback<ResponseBody>() {
+            @Override
+            public void onResponse(Call<ResponseBody> call, Response<ResponseBody> response) {
+                Response<T> streamed;
+                try {
+                    streamed = stream(response);
+                } catch (IOException e) {
+                    callback.onFailure(StreamingCall.this, e);
+                    return;
+                }
+                callback.onResponse(StreamingCall.this, streamed);
+            }
+
+            @Override
+            public void onFailure(Call<ResponseBody> call, Throwable t) {
+                callback.onFailure(StreamingCall.this, t);
+            }
+        });
+    }
+
+    @Override
+    public boolean isExecuted() {
+        return delegate.isExecuted();
+    }
+
+    @Override
+    public void cancel() {
+        delegate.cancel();
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return delegate.isCanceled();
+    }
+
+    @Override
+    public Call<T> clone() {
+        StreamingCall<T> clone = new StreamingCall<>(delegate.clone(), sinkFactory);
+        clone.progressListener = progressListener;
+        return clone;
+    }
+
+    @Override
+    public Request request() {
+        return delegate.request();
+    }
+}
@@ -6,6 +6,8 @@ module com.dlsc.gemsfx {
     requires org.kordamp.ikonli.materialdesign;
 
     requires java.logging;
+    requires java.management;
+    requires jdk.jfr;
     requires java.prefs;
 
     requires commons.validator;
@@ -14,6 +16,7 @@ module com.dlsc.gemsfx {
 
     requires retrofit2;
     requires okhttp3;
+    requires okio;
     requires java.desktop;
     requires com.dlsc.pickerfx;
 
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import retrofit2.Response;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ErrorPreviewTest {
+
+    private static final MediaType HTML = MediaType.get("text/html; charset=utf-8");
+
+    @BeforeClass
+    public static void startToolkit() throws InterruptedException {
+        FXToolkit.start();
+    }
+
+    @Test
+    public void previewIsTruncatedToMaxErrorBodySize() throws Exception {
+        AtomicReference<ErrorPreview> preview = new AtomicReference<>();
+
+        execute(ServiceInvocation.create("Error page", () -> Response.<String>error(502, ResponseBody.create(HTML, "0123456789")))
+                .withMaxErrorBodySize(4)
+                .onFailureDetailedPreview((name, errorPreview) -> preview.set(errorPreview)));
+
+        assertEquals(502, preview.get().getStatusCode());
+        assertEquals("0123", preview.get().getText());
+        assertTrue(preview.get().isTruncated());
+    }
+
+    @Test
+    public void previewHandlerWinsOverDefaultHandlers() throws Exception {
+        List<String> invoked = new CopyOnWriteArrayList<>();
+
+        execute(ServiceInvocation.create("Error page", () -> Response.<String>error(500, ResponseBody.create(HTML, "error")))
+                .onFailureDefault((name, message) -> invoked.add("onFailureDefault"))
+                .onFailureDetailedDefault((name, response) -> invoked.add("onFailureDetailedDefault"))
+                .onFailureDetailedPreview((name, preview) -> invoked.add("onFailureDetailedPreview")));
+
+        execute(ServiceInvocation.create("Error page", () -> Response.<String>error(500, ResponseBody.create(HTML, "error")))
+                .onFailureDefault((name, message) -> invoked.add("onFailureDefault"))
+                .onFailureDetailed((name, response) -> invoked.add("onFailureDetailed")));
+
+        execute(ServiceInvocation.create("Error page", () -> Response.<String>error(500, ResponseBody.create(HTML, "error")))
+                .onFailureDefault((name, message) -> invoked.add("onFailureDefault: " + message))
+                .onFailureDetailedDefault((name, response) -> invoked.add("onFailureDetailedDefault")));
+
+        execute(ServiceInvocation.create("Error page", () -> Response.<String>error(500, ResponseBody.create(HTML, "error")))
+                .onFailure((name, message) -> invoked.add("onFailure"))
+                .onFailureDetailedPreview((name, preview) -> invoked.add("onFailureDetailedPreview")));
+
+        // "on failure" handlers win over "on failure detailed" handlers, also the default ones
+        assertEquals(List.of("onFailureDetailedPreview", "onFailureDefault", "onFailureDefault: error", "onFailure"), invoked);
+    }
+
+    @Test
+    public void deduplicatedInvocationsShareTheTruncatedErrorBody() throws Exception {
+        String key = "error preview test " + System.nanoTime();
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch called = new CountDownLatch(1);
+        CountDownLatch respond = new CountDownLatch(1);
+        List<String> previews = new CopyOnWriteArrayList<>();
+        CountDownLatch finished = new CountDownLatch(2);
+
+        for (int i = 0; i < 2; i++) {
+            ServiceInvocation<String> invocation = ServiceInvocation.create("Error page", () -> {
+                calls.incrementAndGet();
+                called.countDown();
+                respond.await();
+                return Response.<String>error(502, ResponseBody.create(HTML, "0123456789"));
+            })
+                    .withKey(key)
+                    .withDeduplication(true)
+                    .withMaxErrorBodySize(4)
+                    .onFailureDetailedPreview((name, preview) -> previews.add(preview.getText() + (preview.isTruncated() ? "..." : "")))
+                    .onFinally(finished::countDown);
+
+            FXToolkit.runAndWait(invocation::execute);
+            assertTrue(called.await(10, TimeUnit.SECONDS));
+        }
+
+        // gives the second invocation the time to join the call of the first one
+        Thread.sleep(200);
+        respond.countDown();
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+        assertEquals(List.of("0123...", "0123..."), previews);
+    }
+
+    private static void execute(ServiceInvocation<?> invocation) throws InterruptedException {
+        CountDownLatch finished = new CountDownLatch(1);
+        invocation.onFinally(finished::countDown);
+        FXToolkit.runAndWait(invocation::execute);
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javafx.application.Platform;
+
+/**
+ * Starts the JavaFX platform once for all tests that need the application thread. The build
+ * runs the tests with the headless Monocle platform.
+ */
+final class FXToolkit {
+
+    private static final AtomicBoolean STARTED = new AtomicBoolean();
+
+    private FXToolkit() {
+    }
+
+    static void start() throws InterruptedException {
+        if (STARTED.compareAndSet(false, true)) {
+            CountDownLatch latch = new CountDownLatch(1);
+            Platform.startup(latch::countDown);
+            Platform.setImplicitExit(false);
+            latch.await();
+        }
+    }
+
+    /**
+     * Runs the given runnable on the application thread and waits for its completion.
+     */
+    static void runAndWait(Runnable runnable) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<RuntimeException> error = new AtomicReference<>();
+
+        Platform.runLater(() -> {
+            try {
+                runnable.run();
+            } catch (RuntimeException e) {
+                error.set(e);
+            } finally {
+                latch.countDown();
+            }
+        });
+
+        if (!latch.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("application thread did not respond");
+        }
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+
+    /**
+     * Waits until all runnables dispatched so far have been executed on the application thread.
+     */
+    static void waitForDispatcher() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        FXDispatcher.getDefault().dispatch(latch::countDown);
+        if (!latch.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("dispatcher did not drain its queue");
+        }
+    }
+}
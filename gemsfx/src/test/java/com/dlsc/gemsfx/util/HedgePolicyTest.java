@@ -0,0 +1,133 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.dlsc.gemsfx.util.ServiceInvocationMetrics.Phase;
+import okhttp3.ResponseBody;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import retrofit2.Call;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.http.GET;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HedgePolicyTest {
+
+    interface Api {
+
+        @GET("search")
+        Call<ResponseBody> search();
+    }
+
+    private MockWebServer server;
+
+    private Api api;
+
+    private String key;
+
+    @BeforeClass
+    public static void startToolkit() throws InterruptedException {
+        FXToolkit.start();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        api = new Retrofit.Builder().baseUrl(server.url("/")).build().create(Api.class);
+        key = "hedge test " + System.nanoTime();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void hedgedCallWinsAgainstSlowCall() throws Exception {
+        HedgePolicy hedge = new HedgePolicy().withDelay(Duration.ofMillis(100)).withMaxHedgeRatio(1);
+
+        server.enqueue(new MockResponse().setBody("slow").setHeadersDelay(2, TimeUnit.SECONDS));
+        server.enqueue(new MockResponse().setBody("fast"));
+
+        long start = System.nanoTime();
+        Response<ResponseBody> response = ServiceInvocation.createForCall("Search", api::search)
+                .withKey(key)
+                .withHedging(hedge)
+                .executeDetached();
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals("fast", response.body().string());
+        assertTrue("took " + millis + " ms", millis < 1500);
+        assertEquals(2, server.getRequestCount());
+        assertEquals(1, hedge.getHedgeCount());
+        assertEquals(1, hedge.getHedgeWinCount());
+
+        // the cancelled slow call must not distort the latencies the hedge delay is based on
+        assertEquals(1, ServiceInvocationMetrics.getDefault().getMetrics(key).getHistogram(Phase.NETWORK).getCount());
+    }
+
+    @Test
+    public void doesNotHedgeFastCalls() throws Exception {
+        HedgePolicy hedge = new HedgePolicy().withDelay(Duration.ofSeconds(2)).withMaxHedgeRatio(1);
+
+        server.enqueue(new MockResponse().setBody("fast"));
+
+        Response<ResponseBody> response = ServiceInvocation.createForCall("Search", api::search)
+                .withKey(key)
+                .withHedging(hedge)
+                .executeDetached();
+
+        assertEquals("fast", response.body().string());
+        assertEquals(1, server.getRequestCount());
+        assertEquals(0, hedge.getHedgeCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void requiresCallSupplier() {
+        ServiceInvocation.create("Search", () -> api.search().execute())
+                .withHedging(new HedgePolicy());
+    }
+
+    @Test
+    public void hedgedCallRespectsSchedulerLimits() throws Exception {
+        HedgePolicy hedge = new HedgePolicy().withDelay(Duration.ofMillis(100)).withMaxHedgeRatio(1);
+        ServiceInvocationScheduler scheduler = new ServiceInvocationScheduler(1, 1, 0);
+
+        server.enqueue(new MockResponse().setBody("slow").setHeadersDelay(500, TimeUnit.MILLISECONDS));
+        server.enqueue(new MockResponse().setBody("unused"));
+
+        ServiceInvocation<ResponseBody> invocation = ServiceInvocation.createForCall("Search", api::search)
+                .withKey(key)
+                .withHedging(hedge)
+                .withScheduler(scheduler);
+
+        // occupies the only slot of the service, like execute() does
+        CompletableFuture<Response<ResponseBody>> result = new CompletableFuture<>();
+        invocation.resolveExecutor().execute(() -> {
+            try {
+                result.complete(invocation.executeDetached());
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+
+        Response<ResponseBody> response = result.get(10, TimeUnit.SECONDS);
+
+        assertEquals("slow", response.body().string());
+        assertEquals(1, server.getRequestCount());
+        assertEquals(0, hedge.getHedgeWinCount());
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javafx.concurrent.Worker.State;
+import okhttp3.ResponseBody;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import retrofit2.Call;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.http.GET;
+import retrofit2.http.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class InvocationGraphTest {
+
+    interface Api {
+
+        @GET("{resource}")
+        Call<ResponseBody> load(@Path("resource") String resource);
+    }
+
+    private final AtomicInteger dashboardRequests = new AtomicInteger();
+
+    private MockWebServer server;
+
+    private Api api;
+
+    @BeforeClass
+    public static void startToolkit() throws InterruptedException {
+        FXToolkit.start();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                String path = request.getPath().substring(1);
+                switch (path) {
+                    case "user":
+                        return new MockResponse().setBody("alice").setHeader("X-User", "alice");
+                    case "alice-permissions":
+                        return new MockResponse().setBody("admin");
+                    case "alice-settings":
+                        return new MockResponse().setBody("dark");
+                    case "dashboard":
+                        // fails once, succeeds when retried
+                        return dashboardRequests.getAndIncrement() == 0 ? new MockResponse().setResponseCode(503) : new MockResponse().setBody("admin/dark");
+                    case "slow":
+                        return new MockResponse().setBody("slow").setHeadersDelay(500, TimeUnit.MILLISECONDS);
+                    default:
+                        return new MockResponse().setResponseCode(404);
+                }
+            }
+        });
+        server.start();
+        api = new Retrofit.Builder().baseUrl(server.url("/")).build().create(Api.class);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void runsNodesAfterTheirDependencies() throws Exception {
+        InvocationGraph graph = InvocationGraph.create("Load dashboard");
+
+        InvocationGraph.Node<ResponseBody> user = graph.add("user", results -> api.load("user"));
+        InvocationGraph.Node<ResponseBody> permissions = graph.add("permissions", results -> api.load(userId(results.getResponse(user)) + "-permissions"), user);
+        InvocationGraph.Node<ResponseBody> settings = graph.add("settings", results -> api.load(userId(results.getResponse(user)) + "-settings"), user);
+        InvocationGraph.Node<ResponseBody> dashboard = graph.add("dashboard", results -> api.load("dashboard"), permissions, settings);
+
+        graph.withInvocationSetup(invocation -> invocation
+                .withKey("graph test " + invocation.getName())
+                .withRetryPolicy(RetryPolicy.create().withBackoff(Duration.ofMillis(10), Duration.ofSeconds(1), 2)));
+
+        AtomicReference<InvocationGraph.Results> succeeded = new AtomicReference<>();
+        graph.onSuccess(succeeded::set);
+
+        InvocationGraph.Results results = execute(graph).get(10, TimeUnit.SECONDS);
+        FXToolkit.waitForDispatcher();
+
+        assertEquals(State.SUCCEEDED, graph.getState());
+        assertEquals(4, graph.getWorkDone(), 0);
+        assertEquals(1, graph.getProgress(), 0);
+        assertEquals("Graph succeeded", graph.getMessage());
+        assertEquals(results, succeeded.get());
+
+        assertEquals("admin/dark", results.get(dashboard).string());
+        List<InvocationGraph.Node<?>> criticalPath = results.getCriticalPath();
+        assertEquals(3, criticalPath.size());
+        assertEquals(user, criticalPath.get(0));
+        assertEquals(dashboard, criticalPath.get(2));
+
+        // the node invocations used the retry policy and recorded their metrics
+        assertEquals(2, dashboardRequests.get());
+        assertNotNull(ServiceInvocationMetrics.getDefault().getMetrics("graph test dashboard"));
+    }
+
+    @Test
+    public void publishedResultsAreNotChangedByLateNodes() throws Exception {
+        InvocationGraph graph = InvocationGraph.create("Load dashboard");
+
+        InvocationGraph.Node<ResponseBody> slow = graph.add("slow", results -> api.load("slow"));
+        InvocationGraph.Node<ResponseBody> missing = graph.add("missing", results -> api.load("missing"));
+
+        CountDownLatch finished = new CountDownLatch(1);
+        graph.onFinally(finished::countDown);
+
+        InvocationGraph.Results results = execute(graph).get(10, TimeUnit.SECONDS);
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+
+        assertEquals(State.FAILED, graph.getState());
+        assertEquals(missing, results.getFailedNode());
+        assertEquals(404, results.getResponse(missing).code());
+        assertEquals(State.RUNNING, results.getState(slow));
+
+        // give the slow node the chance to complete
+        Thread.sleep(700);
+
+        assertEquals(State.RUNNING, results.getState(slow));
+        assertEquals(Duration.ZERO, results.getDuration(slow));
+    }
+
+    @Test
+    public void cancelsRunningNodes() throws Exception {
+        InvocationGraph graph = InvocationGraph.create("Load dashboard");
+        graph.add("slow", results -> api.load("slow"));
+
+        CountDownLatch finished = new CountDownLatch(1);
+        graph.onFinally(finished::countDown);
+
+        CompletableFuture<InvocationGraph.Results> result = execute(graph);
+        FXToolkit.runAndWait(() -> assertTrue(graph.cancel()));
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        FXToolkit.waitForDispatcher();
+
+        assertTrue(result.isCancelled());
+        assertEquals(State.CANCELLED, graph.getState());
+    }
+
+    @Test
+    public void rateLimitedNodesWaitBeforeTheyGetHandedToTheExecutor() throws Exception {
+        InvocationGraph graph = InvocationGraph.create("Load dashboard");
+        InvocationGraph.Node<ResponseBody> permissions = graph.add("permissions", results -> api.load("alice-permissions"));
+        InvocationGraph.Node<ResponseBody> settings = graph.add("settings", results -> api.load("alice-settings"));
+
+        // the second node has to wait 500ms for its token
+        RateLimiter limiter = new RateLimiter(2, 1);
+        List<Long> handedOver = new CopyOnWriteArrayList<>();
+
+        long start = System.nanoTime();
+        graph.withInvocationSetup(invocation -> invocation.withRateLimiter(limiter));
+        graph.withExecutor(command -> {
+            handedOver.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            new Thread(command).start();
+        });
+
+        InvocationGraph.Results results = execute(graph).get(10, TimeUnit.SECONDS);
+
+        assertEquals("admin", results.get(permissions).string());
+        assertEquals("dark", results.get(settings).string());
+        assertEquals(2, handedOver.size());
+        assertTrue("handed over after " + handedOver.get(1) + " ms", handedOver.get(1) >= 400);
+    }
+
+    // the body can only be read once, the user id is also sent as a header
+    private static String userId(Response<ResponseBody> response) {
+        return response.headers().get("X-User");
+    }
+
+    private static CompletableFuture<InvocationGraph.Results> execute(InvocationGraph graph) throws InterruptedException {
+        AtomicReference<CompletableFuture<InvocationGraph.Results>> result = new AtomicReference<>();
+        FXToolkit.runAndWait(() -> result.set(graph.execute()));
+        return result.get();
+    }
+}
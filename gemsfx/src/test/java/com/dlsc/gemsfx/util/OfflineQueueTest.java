@@ -0,0 +1,370 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.ResponseBody;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import retrofit2.Call;
+import retrofit2.Retrofit;
+import retrofit2.http.Body;
+import retrofit2.http.Header;
+import retrofit2.http.POST;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OfflineQueueTest {
+
+    interface Api {
+
+        @POST("orders/{id}")
+        Call<ResponseBody> save(@retrofit2.http.Path("id") String id, @Body RequestBody order);
+
+        @POST("orders/{id}")
+        Call<ResponseBody> save(@retrofit2.http.Path("id") String id, @Header("Idempotency-Key") String key, @Body RequestBody order);
+    }
+
+    private static final MediaType TEXT = MediaType.parse("text/plain");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+
+    private volatile boolean available = true;
+
+    private final AtomicBoolean dropNextResponse = new AtomicBoolean();
+
+    private final OkHttpClient client = new OkHttpClient.Builder()
+            .addInterceptor(OfflineQueue.idempotencyInterceptor())
+            .retryOnConnectionFailure(false)
+            .build();
+
+    private MockWebServer server;
+
+    private Path journal;
+
+    private OfflineQueue queue;
+
+    @BeforeClass
+    public static void startToolkit() throws InterruptedException {
+        FXToolkit.start();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if (dropNextResponse.getAndSet(false)) {
+                    // the backend receives the request, but the response gets lost
+                    return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+                }
+                if (!available || request.getPath().equals("/orders/blocked")) {
+                    return new MockResponse().setResponseCode(503);
+                }
+                delivered.add(request.getPath());
+                return new MockResponse().setBody("ok");
+            }
+        });
+        server.start();
+        journal = folder.getRoot().toPath().resolve("outbox.journal");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (queue != null) {
+            queue.close();
+        }
+        server.shutdown();
+    }
+
+    @Test
+    public void replaysRequestsInOrder() throws Exception {
+        available = false;
+        queue = open().withRetryInterval(Duration.ofMillis(10), Duration.ofMillis(50));
+
+        for (int i = 0; i < 5; i++) {
+            queue.enqueue("Save order", request(String.valueOf(i)));
+        }
+        assertFalse(queue.isEmpty());
+        await(() -> queue.getRetryCount() > 0);
+
+        available = true;
+        await(() -> queue.getDeliveredCount() == 5);
+
+        assertEquals(List.of("/orders/0", "/orders/1", "/orders/2", "/orders/3", "/orders/4"), delivered);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void replayNowCancelsTheWaitForTheNextRetry() throws Exception {
+        available = false;
+        queue = open().withRetryInterval(Duration.ofMinutes(1), Duration.ofMinutes(1));
+
+        queue.enqueue("Save order", request("1"));
+        await(() -> queue.getRetryCount() == 1);
+
+        available = true;
+        queue.replayNow();
+        await(() -> queue.getDeliveredCount() == 1);
+
+        assertEquals(List.of("/orders/1"), delivered);
+    }
+
+    @Test
+    public void compactsJournalAndKeepsPendingRequests() throws Exception {
+        available = false;
+        queue = open().withRetryInterval(Duration.ofMillis(10), Duration.ofMillis(50));
+
+        for (int i = 0; i < 256; i++) {
+            queue.enqueue("Save order", request(String.valueOf(i)));
+        }
+        queue.enqueue("Save order", request("blocked"));
+        long fullSize = queue.getJournalSize();
+
+        available = true;
+        // compaction starts after 256 completed requests
+        await(() -> queue.getDeliveredCount() == 256 && queue.getCompactionCount() == 1, 60);
+        assertTrue(queue.getJournalSize() < fullSize / 100);
+
+        queue.close();
+        queue = open();
+
+        FXToolkit.waitForDispatcher();
+        assertEquals(1, queue.getSize());
+        assertFalse(queue.isEmpty());
+    }
+
+    @Test
+    public void discardsTornRecordAtTheEndOfTheJournal() throws Exception {
+        available = false;
+        queue = open();
+
+        queue.enqueue("Save order", request("1"));
+        queue.enqueue("Save order", request("2"));
+        queue.close();
+
+        long validSize = Files.size(journal);
+
+        // a record whose payload has only partially been written
+        Files.write(journal, new byte[]{0, 0, 0, 100, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        queue = open();
+        assertEquals(validSize, queue.getJournalSize());
+
+        FXToolkit.waitForDispatcher();
+        assertEquals(2, queue.getSize());
+
+        await(() -> queue.getRetryCount() >= 1);
+        available = true;
+        queue.replayNow();
+        await(() -> queue.getDeliveredCount() == 2);
+
+        assertEquals(List.of("/orders/1", "/orders/2"), delivered);
+    }
+
+    @Test
+    public void liveCallAndReplayCarryTheSameIdempotencyKey() throws Exception {
+        queue = open();
+        dropNextResponse.set(true);
+
+        Api api = api();
+        ServiceInvocation<ResponseBody> invocation = ServiceInvocation.createForCall("Save order", () -> api.save("1", RequestBody.create(TEXT, "order 1")))
+                .withOfflineQueue(queue);
+
+        assertNull(invocation.executeDetached());
+        assertTrue(invocation.isQueued());
+        await(() -> queue.getDeliveredCount() == 1);
+
+        String liveKey = server.takeRequest(1, TimeUnit.SECONDS).getHeader("Idempotency-Key");
+        RecordedRequest replayed = server.takeRequest(1, TimeUnit.SECONDS);
+
+        assertNotNull(liveKey);
+        assertEquals(liveKey, replayed.getHeader("Idempotency-Key"));
+        assertEquals("order 1", replayed.getBody().readUtf8());
+    }
+
+    @Test
+    public void buildsTheCallOncePerExecution() throws Exception {
+        queue = open();
+        dropNextResponse.set(true);
+
+        Api api = api();
+        AtomicInteger calls = new AtomicInteger();
+        ServiceInvocation<ResponseBody> invocation = ServiceInvocation.createForCall("Save order", () -> {
+            calls.incrementAndGet();
+            return api.save("1", RequestBody.create(TEXT, "order 1"));
+        }).withOfflineQueue(queue);
+
+        // the key, the live call and the queued request all come from the same call
+        assertNull(invocation.executeDetached());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void keepsIdempotencyKeyDeclaredByTheRequest() throws Exception {
+        queue = open();
+        dropNextResponse.set(true);
+
+        Api api = api();
+        ServiceInvocation<ResponseBody> invocation = ServiceInvocation.createForCall("Save order", () -> api.save("7", "order-7", RequestBody.create(TEXT, "order 7")))
+                .withOfflineQueue(queue);
+
+        assertNull(invocation.executeDetached());
+        await(() -> queue.getDeliveredCount() == 1);
+
+        assertEquals("order-7", server.takeRequest(1, TimeUnit.SECONDS).getHeader("Idempotency-Key"));
+        assertEquals("order-7", server.takeRequest(1, TimeUnit.SECONDS).getHeader("Idempotency-Key"));
+    }
+
+    @Test
+    public void appendsRacingWithCloseDoNotHang() throws Exception {
+        available = false;
+        queue = open().withRetryInterval(Duration.ofMinutes(1), Duration.ofMinutes(1));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> appends = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            appends.add(executor.submit(() -> {
+                for (int j = 0; ; j++) {
+                    try {
+                        queue.enqueue("Save order", request(String.valueOf(j)));
+                    } catch (IOException e) {
+                        // the queue has been closed
+                        return null;
+                    }
+                }
+            }));
+        }
+
+        Thread.sleep(100);
+        queue.close();
+
+        try {
+            for (Future<?> append : appends) {
+                append.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void requestsQueuedBehindOthersGiveBackTheirBreakerPermission() throws Exception {
+        available = false;
+        queue = open().withRetryInterval(Duration.ofMinutes(1), Duration.ofMinutes(1));
+        queue.enqueue("Save order", request("0"));
+
+        CircuitBreaker breaker = halfOpenBreaker();
+
+        Api api = api();
+        for (int i = 1; i <= 3; i++) {
+            String id = String.valueOf(i);
+            ServiceInvocation<ResponseBody> invocation = ServiceInvocation.createForCall("Save order", () -> api.save(id, RequestBody.create(TEXT, "order " + id)))
+                    .withOfflineQueue(queue)
+                    .withCircuitBreaker(breaker);
+
+            // the breaker permits a single trial call at a time
+            assertNull(invocation.executeDetached());
+        }
+
+        FXToolkit.waitForDispatcher();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+
+    @Test
+    public void unreachableBackendOpensHalfOpenBreaker() throws Exception {
+        queue = open();
+        dropNextResponse.set(true);
+
+        CircuitBreaker breaker = halfOpenBreaker();
+
+        Api api = api();
+        ServiceInvocation<ResponseBody> invocation = ServiceInvocation.createForCall("Save order", () -> api.save("1", RequestBody.create(TEXT, "order 1")))
+                .withOfflineQueue(queue)
+                .withCircuitBreaker(breaker);
+
+        assertNull(invocation.executeDetached());
+
+        FXToolkit.waitForDispatcher();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    // a breaker that switches to the half open state on the next call, permitting one trial call
+    private static CircuitBreaker halfOpenBreaker() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("offline queue test")
+                .withSlidingWindow(1, 1)
+                .withOpenDuration(Duration.ofMillis(10), 1);
+
+        assertTrue(breaker.tryAcquirePermission());
+        breaker.record(true, 0);
+
+        Thread.sleep(20);
+        return breaker;
+    }
+
+    private OfflineQueue open() throws IOException {
+        return OfflineQueue.open(journal, client);
+    }
+
+    private Api api() {
+        return new Retrofit.Builder().baseUrl(server.url("/")).client(client).build().create(Api.class);
+    }
+
+    private Request request(String id) {
+        return new Request.Builder()
+                .url(server.url("/orders/" + id))
+                .post(RequestBody.create(TEXT, "order " + id))
+                .build();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        await(condition, 10);
+    }
+
+    private static void await(BooleanSupplier condition, int seconds) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > end) {
+                throw new AssertionError("condition not met within " + seconds + " seconds");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ResponseBody;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.SocketPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import retrofit2.Call;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.http.GET;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+    interface Api {
+
+        @GET("data")
+        Call<ResponseBody> data();
+    }
+
+    private static final RetryPolicy FAST = RetryPolicy.create()
+            .withBackoff(Duration.ofMillis(10), Duration.ofSeconds(5), 2)
+            .withJitter(0);
+
+    private MockWebServer server;
+
+    private Api api;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        api = new Retrofit.Builder().baseUrl(server.url("/")).build().create(Api.class);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    private Response<ResponseBody> execute(RetryPolicy policy) throws Exception {
+        return ServiceInvocation.createForCall("Retry test", api::data)
+                .withRetryPolicy(policy)
+                .executeDetached();
+    }
+
+    @Test
+    public void retriesScriptedFailuresUntilSuccess() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setResponseCode(429));
+        server.enqueue(new MockResponse().setBody("ok"));
+
+        Response<ResponseBody> response = execute(FAST);
+
+        assertTrue(response.isSuccessful());
+        assertEquals("ok", response.body().string());
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            server.enqueue(new MockResponse().setResponseCode(503));
+        }
+
+        Response<ResponseBody> response = execute(FAST.withMaxAttempts(4));
+
+        assertEquals(503, response.code());
+        assertEquals(4, server.getRequestCount());
+    }
+
+    @Test
+    public void doesNotRetryOtherStatusCodes() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(400));
+        server.enqueue(new MockResponse().setBody("ok"));
+
+        Response<ResponseBody> response = execute(FAST);
+
+        assertEquals(400, response.code());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void retriesBrokenConnections() throws Exception {
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+        server.enqueue(new MockResponse().setBody("ok"));
+
+        Response<ResponseBody> response = execute(FAST);
+
+        assertTrue(response.isSuccessful());
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void honoursRetryAfterSeconds() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(503).setHeader("Retry-After", "1"));
+        server.enqueue(new MockResponse().setBody("ok"));
+
+        long start = System.nanoTime();
+        Response<ResponseBody> response = execute(FAST);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(response.isSuccessful());
+        assertTrue("waited only " + millis + " ms", millis >= 950);
+    }
+
+    @Test
+    public void givesUpWhenRetryAfterExceedsMaxBackoff() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(503).setHeader("Retry-After", "3600"));
+        server.enqueue(new MockResponse().setBody("ok"));
+
+        Response<ResponseBody> response = execute(FAST);
+
+        assertEquals(503, response.code());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void parsesRetryAfterSeconds() {
+        assertEquals(Duration.ofSeconds(120), RetryPolicy.parseRetryAfter("120"));
+        assertEquals(Duration.ofSeconds(5), RetryPolicy.parseRetryAfter(" 5 "));
+        assertEquals(Duration.ZERO, RetryPolicy.parseRetryAfter("-5"));
+    }
+
+    @Test
+    public void parsesRetryAfterDates() {
+        String future = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(60));
+        Duration wait = RetryPolicy.parseRetryAfter(future);
+        assertTrue("unexpected wait " + wait, wait.getSeconds() >= 58 && wait.getSeconds() <= 60);
+
+        String past = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).minusHours(1));
+        assertEquals(Duration.ZERO, RetryPolicy.parseRetryAfter(past));
+    }
+
+    @Test
+    public void ignoresInvalidRetryAfter() {
+        assertNull(RetryPolicy.parseRetryAfter(null));
+        assertNull(RetryPolicy.parseRetryAfter(""));
+        assertNull(RetryPolicy.parseRetryAfter("soon"));
+    }
+
+    @Test
+    public void backoffGrowsExponentiallyUpToMax() {
+        RetryPolicy policy = RetryPolicy.create().withBackoff(Duration.ofMillis(100), Duration.ofMillis(500), 2).withJitter(0);
+
+        assertEquals(Duration.ofMillis(100), policy.getBackoff(1, null));
+        assertEquals(Duration.ofMillis(200), policy.getBackoff(2, null));
+        assertEquals(Duration.ofMillis(400), policy.getBackoff(3, null));
+        assertEquals(Duration.ofMillis(500), policy.getBackoff(4, null));
+    }
+
+    @Test
+    public void stopsRetryingWhenBudgetIsExhausted() throws Exception {
+        RetryBudget budget = new RetryBudget(0, 1);
+        for (int i = 0; i < 10; i++) {
+            server.enqueue(new MockResponse().setResponseCode(503));
+        }
+
+        Response<ResponseBody> first = execute(FAST.withMaxAttempts(5).withBudget(budget));
+        assertEquals(503, first.code());
+        assertEquals("one retry from the reserve", 2, server.getRequestCount());
+
+        Response<ResponseBody> second = execute(FAST.withMaxAttempts(5).withBudget(budget));
+        assertEquals(503, second.code());
+        assertEquals("no retry left", 3, server.getRequestCount());
+
+        assertEquals(1, budget.getGrantedCount());
+        assertEquals(2, budget.getRejectedCount());
+    }
+
+    @Test
+    public void budgetIsReplenishedByInitialAttempts() {
+        RetryBudget budget = new RetryBudget(0.5, 0);
+        assertFalse(budget.tryWithdraw());
+
+        budget.deposit();
+        budget.deposit();
+
+        assertTrue(budget.tryWithdraw());
+        assertFalse(budget.tryWithdraw());
+    }
+
+    @Test
+    public void publishesAttemptsInWorkerProperties() throws Exception {
+        FXToolkit.start();
+
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setBody("ok"));
+
+        List<String> messages = Collections.synchronizedList(new ArrayList<>());
+        List<Number> workDone = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch finished = new CountDownLatch(1);
+
+        ServiceInvocation<ResponseBody> invocation = ServiceInvocation.createForCall("Retry test", api::data)
+                .withRetryPolicy(FAST)
+                .onFinally(finished::countDown);
+
+        FXToolkit.runAndWait(() -> {
+            invocation.messageProperty().addListener((obs, oldMessage, newMessage) -> messages.add(newMessage));
+            invocation.workDoneProperty().addListener((obs, oldWork, newWork) -> workDone.add(newWork));
+            invocation.execute();
+        });
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        FXToolkit.waitForDispatcher();
+
+        assertTrue(messages.toString(), messages.contains("Calling service (attempt 3 of 3)"));
+        assertTrue(messages.toString(), messages.contains("Attempt 2 of 3 failed, retrying in 20ms"));
+        assertTrue(workDone.toString(), workDone.contains(3.0));
+        assertEquals(3, invocation.getTotalWork(), 0);
+    }
+}
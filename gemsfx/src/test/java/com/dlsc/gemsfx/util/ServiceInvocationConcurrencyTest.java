@@ -0,0 +1,159 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javafx.application.Platform;
+import okhttp3.ResponseBody;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import retrofit2.Call;
+import retrofit2.Retrofit;
+import retrofit2.http.GET;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the threading contract of concurrent invocations: every invocation calls exactly one of
+ * its success, failure or exception handlers followed by exactly one call of its finally
+ * handler, and all handlers run on the UI thread. The throughput is measured by the
+ * ServiceInvocationStressBenchmark of the demo module.
+ */
+public class ServiceInvocationConcurrencyTest {
+
+    interface Api {
+
+        @GET("data")
+        Call<ResponseBody> data();
+    }
+
+    // strongly referenced, the logger would otherwise lose its level when garbage collected
+    private static final Logger SERVICE_INVOCATION_LOG = Logger.getLogger(ServiceInvocation.class.getName());
+
+    private static final int FAILURE_RATE = 10;
+
+    private static Level logLevel;
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private final List<String> violations = new CopyOnWriteArrayList<>();
+
+    private MockWebServer server;
+
+    private Api api;
+
+    @BeforeClass
+    public static void startToolkit() throws InterruptedException {
+        FXToolkit.start();
+
+        // the server errors would otherwise flood the console
+        logLevel = SERVICE_INVOCATION_LOG.getLevel();
+        SERVICE_INVOCATION_LOG.setLevel(Level.OFF);
+    }
+
+    @AfterClass
+    public static void restoreLogLevel() {
+        SERVICE_INVOCATION_LOG.setLevel(logLevel);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                // every tenth request fails
+                if (requests.getAndIncrement() % FAILURE_RATE == 0) {
+                    return new MockResponse().setResponseCode(503);
+                }
+                return new MockResponse().setBody("ok");
+            }
+        });
+        server.start();
+        api = new Retrofit.Builder().baseUrl(server.url("/")).build().create(Api.class);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void tenConcurrentInvocations() throws Exception {
+        invokeConcurrently(10);
+    }
+
+    @Test
+    public void hundredConcurrentInvocations() throws Exception {
+        invokeConcurrently(100);
+    }
+
+    @Test
+    public void thousandConcurrentInvocations() throws Exception {
+        invokeConcurrently(1000);
+    }
+
+    private void invokeConcurrently(int concurrency) throws InterruptedException {
+        StringBuffer[] calls = new StringBuffer[concurrency];
+        CountDownLatch finished = new CountDownLatch(concurrency);
+
+        FXToolkit.runAndWait(() -> {
+            for (int i = 0; i < concurrency; i++) {
+                StringBuffer handlerCalls = new StringBuffer(2);
+                calls[i] = handlerCalls;
+
+                ServiceInvocation.createForCall("Concurrency test", api::data)
+                        .onSuccess(body -> record(handlerCalls, 'S'))
+                        .onFailure((name, message) -> record(handlerCalls, 'F'))
+                        .onException((name, ex) -> record(handlerCalls, 'E'))
+                        .onFinally(() -> {
+                            record(handlerCalls, 'Z');
+                            finished.countDown();
+                        })
+                        .execute();
+            }
+        });
+
+        assertTrue("only " + (concurrency - finished.getCount()) + " invocations finished", finished.await(60, TimeUnit.SECONDS));
+
+        // gives late, duplicate handler calls the chance to show up
+        FXToolkit.waitForDispatcher();
+
+        int failures = 0;
+        for (int i = 0; i < concurrency; i++) {
+            String handlerCalls = calls[i].toString();
+            if (handlerCalls.equals("FZ")) {
+                failures++;
+            } else if (!handlerCalls.equals("SZ")) {
+                violations.add("invocation " + i + ": unexpected handler calls \"" + handlerCalls + "\"");
+            }
+        }
+
+        assertEquals(List.of(), violations);
+        assertEquals((concurrency + FAILURE_RATE - 1) / FAILURE_RATE, failures);
+        assertEquals(concurrency, server.getRequestCount());
+    }
+
+    private void record(StringBuffer handlerCalls, char handler) {
+        if (!Platform.isFxApplicationThread()) {
+            violations.add("handler " + handler + " called on thread " + Thread.currentThread().getName());
+        }
+        handlerCalls.append(handler);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.util.Set;
+
+import com.dlsc.gemsfx.util.ServiceInvocationMetrics.InvocationMetrics;
+import com.dlsc.gemsfx.util.ServiceInvocationMetrics.Outcome;
+import org.junit.Test;
+import retrofit2.Response;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ServiceInvocationMetricsTest {
+
+    @Test
+    public void recordsFurtherKeysUnderOtherKeyOnceLimitIsReached() {
+        ServiceInvocationMetrics registry = new ServiceInvocationMetrics();
+        registry.setMaxKeys(3);
+
+        for (int i = 0; i < 100; i++) {
+            registry.forKey("Load order " + i).record(Outcome.SUCCESS);
+        }
+
+        assertEquals(Set.of("Load order 0", "Load order 1", "Load order 2", ServiceInvocationMetrics.OTHER_KEY), registry.getKeys());
+        assertEquals(97, registry.getMetrics(ServiceInvocationMetrics.OTHER_KEY).getSuccessCount());
+        assertSame(registry.getMetrics("Load order 1"), registry.forKey("Load order 1"));
+    }
+
+    @Test
+    public void resetDiscardsKeys() {
+        ServiceInvocationMetrics registry = new ServiceInvocationMetrics();
+        registry.forKey("orders").record(Outcome.FAILURE);
+
+        registry.reset();
+
+        assertTrue(registry.getKeys().isEmpty());
+        assertNull(registry.getSnapshot("orders"));
+    }
+
+    @Test
+    public void doesNotRecordWhenDisabled() {
+        ServiceInvocationMetrics registry = new ServiceInvocationMetrics();
+        registry.setEnabled(false);
+
+        assertNull(registry.forKey("orders"));
+        assertTrue(registry.getKeys().isEmpty());
+    }
+
+    @Test
+    public void groupsInvocationsByKey() throws Exception {
+        String key = "metrics test " + System.nanoTime();
+
+        for (int i = 0; i < 3; i++) {
+            ServiceInvocation.create("Load order " + i, () -> Response.success("order"))
+                    .withKey(key)
+                    .executeDetached();
+        }
+
+        InvocationMetrics metrics = ServiceInvocationMetrics.getDefault().getMetrics(key);
+        assertNotNull(metrics);
+        assertEquals(3, metrics.getSuccessCount());
+        assertNull(ServiceInvocationMetrics.getDefault().getMetrics("Load order 0"));
+    }
+}
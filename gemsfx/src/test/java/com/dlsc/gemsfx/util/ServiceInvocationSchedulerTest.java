@@ -0,0 +1,142 @@
+/*
+ * Copyright 2019 DLSC Software & Consulting GmbH.
+ */
+package com.dlsc.gemsfx.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javafx.concurrent.Worker;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import retrofit2.Response;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ServiceInvocationSchedulerTest {
+
+    private final ExecutorService threads = Executors.newCachedThreadPool();
+
+    private volatile boolean rejecting;
+
+    private final Executor executor = runnable -> {
+        if (rejecting) {
+            throw new RejectedExecutionException("shut down");
+        }
+        threads.execute(runnable);
+    };
+
+    @BeforeClass
+    public static void startToolkit() throws InterruptedException {
+        FXToolkit.start();
+    }
+
+    @After
+    public void tearDown() {
+        threads.shutdownNow();
+    }
+
+    @Test
+    public void startsWaitingInvocationsWhenSlotsAreFree() throws Exception {
+        ServiceInvocationScheduler scheduler = new ServiceInvocationScheduler(1, 1, 10, executor);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+        CompletableFuture<Void> first = execute(invocation("first", scheduler, release, order));
+        CompletableFuture<Void> second = execute(invocation("second", scheduler, null, order));
+
+        FXToolkit.waitForDispatcher();
+        assertEquals(1, scheduler.getActiveCount());
+        assertEquals(1, scheduler.getQueueDepth());
+
+        release.countDown();
+        first.get(10, TimeUnit.SECONDS);
+        second.get(10, TimeUnit.SECONDS);
+
+        assertEquals(List.of("first", "second"), order);
+    }
+
+    @Test
+    public void failsWaitingInvocationRejectedByExecutor() throws Exception {
+        ServiceInvocationScheduler scheduler = new ServiceInvocationScheduler(1, 1, 10, executor);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicReference<Exception> exception = new AtomicReference<>();
+        CountDownLatch finished = new CountDownLatch(1);
+
+        ServiceInvocation<String> waiting = invocation("waiting", scheduler, null, new ArrayList<>())
+                .onException((name, ex) -> exception.set(ex))
+                .onFinally(finished::countDown);
+
+        CompletableFuture<Void> first = execute(invocation("first", scheduler, release, new ArrayList<>()));
+        CompletableFuture<Void> second = execute(waiting);
+
+        rejecting = true;
+        release.countDown();
+        first.get(10, TimeUnit.SECONDS);
+
+        try {
+            second.get(10, TimeUnit.SECONDS);
+            fail("waiting invocation should have been rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertTrue(exception.get() instanceof RejectedExecutionException);
+
+        FXToolkit.waitForDispatcher();
+        assertEquals(Worker.State.FAILED, waiting.getState());
+        assertEquals(0, scheduler.getActiveCount());
+        assertEquals(0, scheduler.getQueueDepth());
+    }
+
+    @Test
+    public void rejectsInvocationsWhenQueueIsFull() throws Exception {
+        ServiceInvocationScheduler scheduler = new ServiceInvocationScheduler(1, 1, 0, executor);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<Void> first = execute(invocation("first", scheduler, release, new ArrayList<>()));
+        CompletableFuture<Void> second = execute(invocation("second", scheduler, null, new ArrayList<>()));
+
+        try {
+            second.get(10, TimeUnit.SECONDS);
+            fail("invocation should have been rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+
+        release.countDown();
+        first.get(10, TimeUnit.SECONDS);
+
+        assertEquals(1, scheduler.getRejectedCount());
+    }
+
+    private static ServiceInvocation<String> invocation(String name, ServiceInvocationScheduler scheduler, CountDownLatch release, List<String> order) {
+        return ServiceInvocation.create(name, () -> {
+            if (release != null) {
+                release.await();
+            }
+            order.add(name);
+            return Response.success(name);
+        }).withScheduler(scheduler);
+    }
+
+    private static CompletableFuture<Void> execute(ServiceInvocation<?> invocation) throws InterruptedException {
+        AtomicReference<CompletableFuture<Void>> result = new AtomicReference<>();
+        FXToolkit.runAndWait(() -> result.set(invocation.execute()));
+        return result.get();
+    }
+}